@@ -30,6 +30,7 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -41,7 +42,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -418,12 +421,25 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
     List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
+    // Load the files of each project together, looking up its type once.
+    Map<Long, List<String>> projectFileIds = Maps.newLinkedHashMap();
     for (FileDescriptor file : files) {
-      long projectId = file.getProjectId();
-      String fileId = file.getFileId();
-      result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+      List<String> fileIds = projectFileIds.get(file.getProjectId());
+      if (fileIds == null) {
+        fileIds = Lists.newArrayList();
+        projectFileIds.put(file.getProjectId(), fileIds);
+      }
+      fileIds.add(file.getFileId());
+    }
+    Map<Long, Iterator<String>> projectContents = Maps.newHashMap();
+    for (Map.Entry<Long, List<String>> entry : projectFileIds.entrySet()) {
+      long projectId = entry.getKey();
+      projectContents.put(projectId, getProjectRpcImpl(userId, projectId)
+          .load(userId, projectId, entry.getValue()).iterator());
+    }
+    for (FileDescriptor file : files) {
+      result.add(new FileDescriptorWithContent(file.getProjectId(), file.getFileId(),
+          projectContents.get(file.getProjectId()).next()));
     }
     return result;
   }
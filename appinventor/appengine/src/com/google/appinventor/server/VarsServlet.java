@@ -0,0 +1,60 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.project.CommonProjectService;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that shows the counters of this server instance, the way the
+ * build server shows its own at /buildserver/vars. It is restricted to
+ * admin users.
+ *
+ */
+public class VarsServlet extends OdeServlet {
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+
+    // Runtime
+    RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+    DateFormat dateTimeFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.FULL);
+    variables.put("start-time", dateTimeFormat.format(new Date(runtimeBean.getStartTime())));
+    variables.put("uptime-in-ms", runtimeBean.getUptime() + "");
+
+    // Memory
+    Runtime runtime = Runtime.getRuntime();
+    variables.put("total-memory", runtime.totalMemory() + "");
+    variables.put("free-memory", runtime.freeMemory() + "");
+    variables.put("max-memory", runtime.maxMemory() + "");
+
+    // Saves and storage
+    CommonProjectService.addVariables(variables);
+    StorageIoInstanceHolder.INSTANCE.addVariables(variables);
+
+    StringBuilder html = new StringBuilder();
+    html.append("<html><body><tt>");
+    for (Map.Entry<String, String> variable : variables.entrySet()) {
+      html.append("<b>").append(variable.getKey()).append("</b> ")
+        .append(variable.getValue()).append("<br>");
+    }
+    html.append("</tt></body></html>");
+    resp.setContentType("text/html; charset=utf-8");
+    resp.getWriter().write(html.toString());
+  }
+}
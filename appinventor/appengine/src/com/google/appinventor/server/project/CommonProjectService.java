@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.project;
 
+import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -18,6 +19,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -26,6 +28,17 @@ import java.util.List;
  * @author lizlooney@google.com (Liz Looney)
  */
 public abstract class CommonProjectService {
+  // How long, in milliseconds, the first of a burst of saves of a file waits
+  // for the rest before it is written. The editors already wait for changes
+  // to settle before they save, so by default only the saves that arrive
+  // while the file is being written are coalesced.
+  private static final Flag<Integer> saveCoalesceMillis =
+      Flag.createFlag("save.coalesce.millis", 0);
+
+  // Coalesces saves of the same file from all project services
+  private static final SaveCoalescer saveCoalescer =
+      new SaveCoalescer(saveCoalesceMillis.get());
+
   protected final String projectType;
   protected final StorageIo storageIo;
 
@@ -34,6 +47,16 @@ public abstract class CommonProjectService {
     this.storageIo = storageIo;
   }
 
+  /**
+   * Adds the counts of the saves coalesced by all project services to the
+   * variables shown at /vars.
+   *
+   * @param variables  the variables by name
+   */
+  public static void addVariables(Map<String, String> variables) {
+    saveCoalescer.addVariables(variables);
+  }
+
   /**
    * Stores the project settings.
    *
@@ -177,6 +200,19 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the contents of several source files of a project.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose source should be loaded
+   *
+   * @return  the file contents, in the order of {@code fileIds}
+   */
+  public List<String> load(String userId, long projectId, List<String> fileIds) {
+    return storageIo.downloadFiles(userId, projectId, fileIds, StorageUtil.DEFAULT_CHARSET);
+  }
+
   /**
    * Loads the file information associated with a node in the project tree. The
    * actual return value depends on the file kind. Source (text) files should
@@ -268,6 +304,8 @@ public abstract class CommonProjectService {
    * Saves the content of the file associated with a node in the project tree.
    * if force is false, an error is thrown if an attempt is made to save a
    * trivial (empty) blocks file workspace that had previously had contents.
+   * Saves of a file for which {@link #coalesceSaves} is true may be written
+   * together with saves of the same file that arrive close to them.
    *
    * @param userId the user id
    * @param projectId  project root node ID
@@ -277,7 +315,33 @@ public abstract class CommonProjectService {
    *
    * @see com.google.appinventor.shared.rpc.project.ProjectService#save(String, long, String, String)
    */
-  public long save2(String userId, long projectId, String fileId, boolean force, String content) throws BlocksTruncatedException {
+  public long save2(final String userId, final long projectId, final String fileId, boolean force,
+      String content) throws BlocksTruncatedException {
+    if (!coalesceSaves(fileId)) {
+      return writeFile(userId, projectId, fileId, force, content);
+    }
+    return saveCoalescer.save(userId + '/' + projectId + '/' + fileId, content, force,
+        new SaveCoalescer.Writer() {
+          @Override
+          public long write(String content, boolean force) throws BlocksTruncatedException {
+            return writeFile(userId, projectId, fileId, force, content);
+          }
+        });
+  }
+
+  /**
+   * Returns whether saves of a file that arrive close together may be
+   * written as one save of the newest content. The default is false.
+   *
+   * @param fileId  project node whose source is saved
+   * @return whether saves of the file may be coalesced
+   */
+  protected boolean coalesceSaves(String fileId) {
+    return false;
+  }
+
+  private long writeFile(String userId, long projectId, String fileId, boolean force,
+      String content) throws BlocksTruncatedException {
     if (force) {
       return storageIo.uploadFileForce(projectId, fileId, userId,
           content, StorageUtil.DEFAULT_CHARSET);
@@ -0,0 +1,254 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces saves of the same file that arrive close together into one
+ * write of the newest content.
+ *
+ * <p>The first save of a file waits for a window, if one is set, and every
+ * save of the file that arrives before the write starts is covered by it. A
+ * save that arrives while the file is being written waits for the next
+ * write, which one of the waiting saves makes. No save returns before its
+ * content, or content saved after it, has been written, so a save that
+ * returns is as durable as one that was written on its own.
+ *
+ * <p>A write that is refused because it would truncate the blocks writes
+ * nothing, so its exception goes to the save whose content it was and the
+ * saves before it are written as if that save had not been made. Every save
+ * thus gets the outcome of its own content, or of content saved after it
+ * that was written. Any other failure, such as the datastore being
+ * unavailable, is not about the content, so it goes to all the saves
+ * covered by the write.
+ *
+ * <p>Saves are only coalesced within one server instance.
+ *
+ */
+final class SaveCoalescer {
+
+  /**
+   * Writes the content of a file.
+   */
+  interface Writer {
+    /**
+     * Writes the content of the file.
+     *
+     * @param content  the content to write
+     * @param force  whether to write an empty blocks workspace
+     * @return modification date for project
+     */
+    long write(String content, boolean force) throws BlocksTruncatedException;
+  }
+
+  /*
+   * A save request, which waits until it has been written or until it has
+   * to make the next write of its file.
+   */
+  private static final class Ticket {
+    private final String content;
+    private final boolean force;
+    private boolean done;
+    private boolean writer;
+    private long modDate;
+    private Throwable failure;
+
+    Ticket(String content, boolean force) {
+      this.content = content;
+      this.force = force;
+    }
+
+    synchronized void makeWriter() {
+      writer = true;
+      notifyAll();
+    }
+
+    synchronized void complete(long modDate, Throwable failure) {
+      this.done = true;
+      this.modDate = modDate;
+      this.failure = failure;
+      notifyAll();
+    }
+
+    /*
+     * Waits until the ticket is done or has to make the next write, and
+     * returns whether it is done.
+     */
+    synchronized boolean awaitTurn() {
+      boolean interrupted = false;
+      while (!done && !writer) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // Keep waiting, since another request may be writing our content
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return done;
+    }
+
+    synchronized long result() throws BlocksTruncatedException {
+      if (failure instanceof BlocksTruncatedException) {
+        throw (BlocksTruncatedException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      return modDate;
+    }
+  }
+
+  /*
+   * The saves of a file that have not been written yet.
+   */
+  private static final class PendingSaves {
+    List<Ticket> tickets = new ArrayList<Ticket>();
+    boolean writing;
+  }
+
+  private final int windowMillis;
+
+  // Pending saves by file key, guarded by this
+  private final Map<String, PendingSaves> pending = new HashMap<String, PendingSaves>();
+
+  private final AtomicLong saves = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+
+  /**
+   * Creates a coalescer.
+   *
+   * @param windowMillis  how long the first save of a file waits for more
+   *                      saves before it is written, 0 to only coalesce saves
+   *                      that arrive during a write
+   */
+  SaveCoalescer(int windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Saves the content of a file, returning once that content or content
+   * saved after it has been written.
+   *
+   * @param key  identifies the file, saves with equal keys are coalesced
+   * @param content  content to be saved
+   * @param force  whether to write an empty blocks workspace
+   * @param writer  writes the content of the file
+   * @return modification date for project
+   */
+  long save(String key, String content, boolean force, Writer writer)
+      throws BlocksTruncatedException {
+    Ticket ticket = new Ticket(content, force);
+    PendingSaves file;
+    synchronized (this) {
+      saves.incrementAndGet();
+      file = pending.get(key);
+      if (file == null) {
+        file = new PendingSaves();
+        pending.put(key, file);
+      }
+      file.tickets.add(ticket);
+      if (!file.writing) {
+        file.writing = true;
+        ticket.makeWriter();
+      }
+    }
+
+    if (!ticket.awaitTurn()) {
+      write(key, file, writer);
+    }
+    return ticket.result();
+  }
+
+  /**
+   * Returns the number of saves requested.
+   */
+  long getSaves() {
+    return saves.get();
+  }
+
+  /**
+   * Returns the number of writes made for the saves requested. The
+   * difference from {@link #getSaves} is the number of writes saved.
+   */
+  long getWrites() {
+    return writes.get();
+  }
+
+  /**
+   * Adds the counts of saves and writes to the variables shown at /vars.
+   *
+   * @param variables  the variables by name
+   */
+  void addVariables(Map<String, String> variables) {
+    variables.put("coalesced-saves", saves.get() + "");
+    variables.put("coalesced-save-writes", writes.get() + "");
+  }
+
+  /*
+   * Writes the newest content of a file for all the saves waiting for it,
+   * then hands the next write to a save that arrived meanwhile. If the
+   * newest content is refused as truncating the blocks, the content before
+   * it is written for the saves before it, and so on.
+   */
+  private void write(String key, PendingSaves file, Writer writer) {
+    if (windowMillis > 0) {
+      try {
+        Thread.sleep(windowMillis);
+      } catch (InterruptedException e) {
+        // Write now rather than lose the saves waiting for us
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    List<Ticket> tickets;
+    synchronized (this) {
+      tickets = file.tickets;
+      file.tickets = new ArrayList<Ticket>();
+    }
+
+    for (int end = tickets.size(); end > 0; end--) {
+      Ticket newest = tickets.get(end - 1);
+      long modDate = 0;
+      Throwable failure = null;
+      writes.incrementAndGet();
+      try {
+        modDate = writer.write(newest.content, newest.force);
+      } catch (BlocksTruncatedException e) {
+        // Only this content was refused, try the content before it
+        newest.complete(0, e);
+        continue;
+      } catch (RuntimeException e) {
+        failure = e;
+      } catch (Error e) {
+        failure = e;
+      }
+      for (Ticket ticket : tickets.subList(0, end)) {
+        ticket.complete(modDate, failure);
+      }
+      break;
+    }
+
+    synchronized (this) {
+      if (file.tickets.isEmpty()) {
+        file.writing = false;
+        pending.remove(key);
+      } else {
+        file.tickets.get(0).makeWriter();
+      }
+    }
+  }
+}
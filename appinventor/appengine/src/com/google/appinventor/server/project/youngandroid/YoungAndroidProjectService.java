@@ -52,6 +52,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -114,7 +115,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
   // host[:port] to use for connecting to the build server
-  private static final Flag<String> buildServerHost =
+  @VisibleForTesting
+  static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
   // host[:port] to tell build server app host url
   private static final Flag<String> appengineHost =
@@ -125,6 +127,16 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
 
+  /**
+   * Coalesces saves of the blocks and form files, which the editors save
+   * after every change.
+   */
+  @Override
+  protected boolean coalesceSaves(String fileId) {
+    return fileId.endsWith(YoungAndroidSourceAnalyzer.BLOCKLY_SOURCE_EXTENSION)
+        || fileId.endsWith(YoungAndroidSourceAnalyzer.FORM_PROPERTIES_EXTENSION);
+  }
+
   /**
    * Returns project settings that can be used when creating a new project.
    */
@@ -587,7 +599,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    CountingOutputStream zipOutputStream = null;
     try {
       buildServerUrl = new URL(getBuildServerUrlStr(
           user.getUserEmail(),
@@ -597,15 +609,18 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+      // Send the zip as it is written instead of having the connection buffer
+      // it to learn its length. On App Engine, URLFetch still buffers the
+      // whole request and limits its size, so this only saves our own copy of
+      // the zip; projects that are too large still fail as handled below.
+      connection.setChunkedStreamingMode(0);
+
+      zipOutputStream = new CountingOutputStream(
+          new BufferedOutputStream(connection.getOutputStream()));
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+      fileExporter.writeProjectSourceZip(userId, projectId, false,
+          /* includeAndroidKeystore */ true, true, false, true, false, zipOutputStream);
+      zipOutputStream.close();
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -649,7 +664,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
+      long zipFileLength = zipOutputStream == null ? -1 : zipOutputStream.getCount();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -667,8 +682,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && zipOutputStream != null) {
+        long zipFileLength = zipOutputStream.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -698,18 +713,31 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   private String getBuildServerUrlStr(String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return getBuildServerUrlStr(buildServerHost.get(), userName,
+        sendGitVersion.get() ? GitBuildId.getVersion() : null,
+        "http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
+            + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
+            + Security.encryptUserAndProjectId(userId, projectId)
+            + "/" + fileName);
+  }
+
+  /**
+   * Returns the URL of an asynchronous build request.
+   *
+   * @param host  the build server host
+   * @param userName  the user name for the generated keystore
+   * @param gitBuildVersion  the version the build server must match, or null
+   * @param callbackUrlStr  the URL the build server posts the results to
+   */
+  @VisibleForTesting
+  static String getBuildServerUrlStr(String host, String userName, String gitBuildVersion,
+      String callbackUrlStr) throws UnsupportedEncodingException {
+    return "http://" + host + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
-           + (sendGitVersion.get()
-               ? "&gitBuildVersion="
-                 + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
+           + (gitBuildVersion != null
+               ? "&gitBuildVersion=" + URLEncoder.encode(gitBuildVersion, "UTF-8")
                : "")
-           + "&callback="
-           + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
-                               + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
-                               + Security.encryptUserAndProjectId(userId, projectId)
-                               + "/" + fileName,
-                               "UTF-8");
+           + "&callback=" + URLEncoder.encode(callbackUrlStr, "UTF-8");
   }
 
   private String getCurrentHost() {
@@ -0,0 +1,133 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a list of GCS objects in order, keeping the reads of the next few
+ * objects in flight while the current one is consumed.
+ *
+ * <p>Opening a prefetching read channel starts reading the first block of
+ * its object asynchronously, so channels are opened up to
+ * {@code maxInFlight} objects ahead of the one returned by {@link #next}.
+ * No threads are used, which keeps this usable in App Engine requests.
+ *
+ * <p>Errors reading an object, including a missing object, are thrown by
+ * the first read of its stream, so callers can fall back to reading that
+ * object on its own.
+ *
+ */
+final class GcsPrefetcher {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GcsPrefetcher.class.getName());
+
+  private final GcsService gcsService;
+  private final List<GcsFilename> files;
+  private final int maxInFlight;
+  private final int blockSize;
+
+  // Channels opened for files[next] up to files[next + channels.size() - 1]
+  private final List<GcsInputChannel> channels = new ArrayList<GcsInputChannel>();
+  private int next = 0;
+
+  // The channel of the stream most recently returned by next()
+  private GcsInputChannel current;
+
+  /**
+   * Creates a prefetcher and starts reading the first objects.
+   *
+   * @param gcsService  the service to read the objects from
+   * @param files  the objects to read, in the order they will be consumed
+   * @param maxInFlight  the most objects to read ahead, at least 1
+   * @param blockSize  the size of the blocks each channel reads ahead
+   */
+  GcsPrefetcher(GcsService gcsService, List<GcsFilename> files, int maxInFlight,
+      int blockSize) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.gcsService = gcsService;
+    this.files = new ArrayList<GcsFilename>(files);
+    this.maxInFlight = maxInFlight;
+    this.blockSize = blockSize;
+    fill();
+  }
+
+  /**
+   * Returns whether there are objects left to read.
+   */
+  boolean hasNext() {
+    return next < files.size();
+  }
+
+  /**
+   * Returns a stream over the next object and starts reading the object
+   * {@code maxInFlight} places after it. The stream of the previous object
+   * is closed.
+   *
+   * @return  the content of the next object
+   * @throws NoSuchElementException if all objects have been returned
+   */
+  InputStream next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    closeCurrent();
+    current = channels.remove(0);
+    next++;
+    fill();
+    return Channels.newInputStream(current);
+  }
+
+  /**
+   * Closes all channels, including those of objects that were never
+   * returned.
+   */
+  void close() {
+    closeCurrent();
+    for (GcsInputChannel channel : channels) {
+      closeQuietly(channel);
+    }
+    channels.clear();
+    next = files.size();
+  }
+
+  private void fill() {
+    while (channels.size() < maxInFlight && next + channels.size() < files.size()) {
+      GcsFilename file = files.get(next + channels.size());
+      channels.add(gcsService.openPrefetchingReadChannel(file, 0, blockSize));
+    }
+  }
+
+  private void closeCurrent() {
+    if (current != null) {
+      closeQuietly(current);
+      current = null;
+    }
+  }
+
+  private static void closeQuietly(GcsInputChannel channel) {
+    // GcsInputChannel.close() throws no checked exceptions, but a failure to
+    // close one channel should not keep the others open
+    try {
+      channel.close();
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Error closing GCS read channel", e);
+    }
+  }
+}
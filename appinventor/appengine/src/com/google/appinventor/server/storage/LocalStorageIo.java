@@ -0,0 +1,1531 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.FileData;
+import com.google.appinventor.server.storage.StoredData.PWData;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implements the StorageIo interface on the local file system, for servers
+ * that run App Inventor without the datastore, memcache and Google Cloud
+ * Storage. It is used instead of {@link ObjectifyStorageIo} when the
+ * storage.local.dir flag names a directory; see
+ * {@link StorageIoInstanceHolder}.
+ *
+ * <p>Users, projects and the other records are kept in memory and each is
+ * written to its own file under the meta directory when it changes, so
+ * saving a file rewrites only the record of its project. The contents of
+ * files are kept under the blobs directory, named by the SHA-1 hash of the
+ * content. A file that is saved again unchanged, or that several projects
+ * share, is written only once, and a blob is deleted when no file refers to
+ * it any more.</p>
+ *
+ * <p>The records are read and changed while holding the lock of this object,
+ * and the contents of files are read and written outside of it. A blob that
+ * is being read is pinned with a reference of its own, so that saving or
+ * deleting the file meanwhile does not delete it.</p>
+ *
+ */
+public class LocalStorageIo implements StorageIo {
+  static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final Logger LOG = Logger.getLogger(LocalStorageIo.class.getName());
+
+  private static final String DEFAULT_ENCODING = "UTF-8";
+
+  private static final long MOTD_ID = 1;
+
+  private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
+
+  private static final String TEMP_PREFIX = "__TEMP__/";
+
+  // Data for a user and the user's files, which are not in any project
+  private static final class UserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String id;
+    String email;
+    String emaillower;
+    String settings;
+    boolean tosAccepted;
+    boolean isAdmin;
+    Date visited;
+    String name;
+    String link;
+    int emailFrequency;
+    int type;
+    String sessionid;
+    String password;
+
+    // The ids of the user's projects
+    final Set<Long> projectIds = new LinkedHashSet<Long>();
+
+    // The hash of the content of each user file, or null if the file has no content yet
+    final Map<String, String> files = new LinkedHashMap<String, String>();
+  }
+
+  // Data for a project and its files
+  private static final class ProjectRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    long id;
+    String userId;
+    String name;
+    String type;
+    String settings;
+    long dateCreated;
+    long dateModified;
+    String history;
+    long galleryId;
+    long attributionId;
+
+    final Map<String, FileRecord> files = new LinkedHashMap<String, FileRecord>();
+  }
+
+  private static final class FileRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    FileData.RoleEnum role;
+    String hash;                // Hash of the content, or null if there is no content yet
+    String userId;              // The userId which owns this file
+    long lastBackup;
+  }
+
+  private static final class NonceRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String userId;
+    long projectId;
+    Date timestamp;
+  }
+
+  // The records that aren't about a user or a project: the message of the day,
+  // the splash screen, rendezvous addresses, password reset requests, feedback
+  // and corruption reports.
+  private static final class DataRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final Map<String, String> values = new HashMap<String, String>();
+    Date timestamp;
+  }
+
+  /*
+   * A map from keys to records that writes each record to its own file in a
+   * directory when it is put, and reads all of them back when it is created.
+   * It is only used while holding the lock of the LocalStorageIo.
+   */
+  private static final class RecordStore<T extends Serializable> {
+    private final File dir;
+    private final Map<String, T> records = new HashMap<String, T>();
+
+    RecordStore(File dir, Class<T> recordClass) throws IOException {
+      this.dir = dir;
+      makeDirectory(dir);
+      for (File file : dir.listFiles()) {
+        if (!file.getName().endsWith(".tmp")) {
+          records.put(URLDecoder.decode(file.getName(), DEFAULT_ENCODING),
+              recordClass.cast(readRecord(file)));
+        }
+      }
+    }
+
+    T get(String key) {
+      return records.get(key);
+    }
+
+    Collection<T> values() {
+      return records.values();
+    }
+
+    Set<String> keys() {
+      return records.keySet();
+    }
+
+    void put(String key, T record) {
+      records.put(key, record);
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(record);
+        out.close();
+        writeAtomically(file(key), bytes.toByteArray());
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Writing record " + file(key), e);
+      }
+    }
+
+    void remove(String key) {
+      if (records.remove(key) != null && !file(key).delete()) {
+        LOG.log(Level.WARNING, "Unable to delete record " + file(key));
+      }
+    }
+
+    private File file(String key) {
+      try {
+        return new File(dir, URLEncoder.encode(key, DEFAULT_ENCODING));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static Object readRecord(File file) throws IOException {
+      ObjectInputStream in = new ObjectInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        return in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Unreadable record " + file, e);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private final File blobDir;
+  private final File backupDir;
+  private final File tempDir;
+  private final File whiteListFile;
+
+  private final RecordStore<UserRecord> users;
+  private final RecordStore<ProjectRecord> projects;
+  private final RecordStore<NonceRecord> nonces;
+  private final RecordStore<DataRecord> data;
+
+  // How many files refer to each blob
+  private final Map<String, Integer> blobReferences = new HashMap<String, Integer>();
+
+  private long nextProjectId;
+
+  /**
+   * Creates a LocalStorageIo that keeps its data in the given directory,
+   * reading back the data already there.
+   *
+   * @param root  the directory for the data, which is created if it doesn't exist
+   */
+  public LocalStorageIo(File root) {
+    blobDir = new File(root, "blobs");
+    backupDir = new File(root, "backups");
+    tempDir = new File(root, "temp");
+    whiteListFile = new File(root, "whitelist");
+    try {
+      File metaDir = new File(root, "meta");
+      users = new RecordStore<UserRecord>(new File(metaDir, "users"), UserRecord.class);
+      projects = new RecordStore<ProjectRecord>(new File(metaDir, "projects"),
+          ProjectRecord.class);
+      nonces = new RecordStore<NonceRecord>(new File(metaDir, "nonces"), NonceRecord.class);
+      data = new RecordStore<DataRecord>(new File(metaDir, "data"), DataRecord.class);
+      makeDirectory(blobDir);
+      makeDirectory(backupDir);
+      makeDirectory(tempDir);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Reading storage in " + root, e);
+    }
+    for (UserRecord userRecord : users.values()) {
+      for (String hash : userRecord.files.values()) {
+        addBlobReference(hash);
+      }
+    }
+    for (ProjectRecord projectRecord : projects.values()) {
+      for (FileRecord fileRecord : projectRecord.files.values()) {
+        addBlobReference(fileRecord.hash);
+      }
+    }
+    DataRecord sequence = data.get("sequence");
+    nextProjectId = (sequence == null) ? 1 : Long.parseLong(sequence.values.get("project"));
+    initMotd();
+  }
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  @Override
+  public synchronized User getUser(String userId, String email) {
+    User user = new User(userId, email, null, null, 0, false, false, 0, null);
+    UserRecord userData = users.get(userId);
+    if (userData == null) {     // Attempt to find them by email
+      if (email != null) {
+        userData = findUserRecordByEmail(email);
+        if (userData != null && !userData.id.equals(userId)) {
+          user.setUserId(userData.id);
+        }
+      }
+      if (userData == null) {   // No joy, create it.
+        userData = createUser(userId, email);
+      }
+    } else if (email != null && !email.equals(userData.email)) {
+      userData.email = email;
+      userData.emaillower = email.toLowerCase();
+      users.put(userData.id, userData);
+    }
+    if (userData.emailFrequency == 0) {
+      userData.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+      users.put(userData.id, userData);
+    }
+    user.setUserEmail(userData.email);
+    user.setUserName(userData.name);
+    user.setUserLink(userData.link);
+    user.setUserEmailFrequency(userData.emailFrequency);
+    user.setType(userData.type);
+    user.setUserTosAccepted(userData.tosAccepted || !requireTos.get());
+    user.setIsAdmin(userData.isAdmin);
+    user.setSessionId(userData.sessionid);
+    user.setPassword(userData.password);
+    return user;
+  }
+
+  @Override
+  public synchronized User getUserFromEmail(String email) {
+    UserRecord user = findUserRecordByEmail(email);
+    if (user == null) {         // Create it (in lower case)
+      user = createUser(UUID.randomUUID().toString(), email);
+    }
+    User retUser = new User(user.id, email, user.name, user.link, 0, user.tosAccepted,
+      false, user.type, user.sessionid);
+    retUser.setPassword(user.password);
+    return retUser;
+  }
+
+  // Finds the user with the given email, first as it is given, then in lower case.
+  private UserRecord findUserRecordByEmail(String email) {
+    String emaillower = email.toLowerCase();
+    UserRecord lowerCaseMatch = null;
+    for (UserRecord userRecord : users.values()) {
+      if (email.equals(userRecord.email)) {
+        return userRecord;
+      }
+      if (lowerCaseMatch == null && emaillower.equals(userRecord.emaillower)) {
+        lowerCaseMatch = userRecord;
+      }
+    }
+    return lowerCaseMatch;
+  }
+
+  private UserRecord createUser(String userId, String email) {
+    UserRecord userData = new UserRecord();
+    userData.id = userId;
+    userData.tosAccepted = false;
+    userData.settings = "";
+    userData.email = email == null ? "" : email;
+    userData.name = User.getDefaultName(email);
+    userData.type = User.USER;
+    userData.link = "";
+    userData.emaillower = email == null ? "" : email.toLowerCase();
+    userData.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+    users.put(userId, userData);
+    return userData;
+  }
+
+  @Override
+  public synchronized void setTosAccepted(String userId) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.tosAccepted = true;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserEmail(String userId, String inputemail) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.email = inputemail.toLowerCase();
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserName(String userId, String name) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.name = name;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserLink(String userId, String link) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.link = link;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserEmailFrequency(String userId, int emailFrequency) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.emailFrequency = emailFrequency;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserSessionId(String userId, String sessionId) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.sessionid = sessionId;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized void setUserPassword(String userId, String password) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.password = password;
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public synchronized String loadSettings(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData != null) ? userData.settings : "";
+  }
+
+  @Override
+  public synchronized String getUserName(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData != null) ? userData.name : "unknown";
+  }
+
+  @Override
+  public synchronized String getUserLink(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData != null) ? userData.link : "unknown";
+  }
+
+  @Override
+  public synchronized int getUserEmailFrequency(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData != null) ? userData.emailFrequency : User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+  }
+
+  @Override
+  public synchronized void storeSettings(String userId, String settings) {
+    UserRecord userData = users.get(userId);
+    if (userData != null) {
+      userData.settings = settings;
+      userData.visited = new Date(); // Indicate that this person was active now
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    // Write the contents first, outside of the lock.
+    Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    Map<String, String> hashes = new HashMap<String, String>();
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        contents.put(file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING));
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        contents.put(file.getFileName(), file.getContent());
+      }
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        hashes.put(entry.getKey(), writeBlob(entry.getValue()));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, StorageIo.INVALID_PROJECTID), e);
+    }
+    synchronized (this) {
+      long date = System.currentTimeMillis();
+      ProjectRecord pd = new ProjectRecord();
+      pd.id = nextProjectId++;
+      pd.userId = userId;
+      pd.dateCreated = date;
+      pd.dateModified = date;
+      pd.history = project.getProjectHistory();
+      pd.name = project.getProjectName();
+      pd.settings = projectSettings;
+      pd.type = project.getProjectType();
+      pd.galleryId = UserProject.NOTPUBLISHED;
+      pd.attributionId = UserProject.FROMSCRATCH;
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        FileRecord file = new FileRecord();
+        file.role = FileData.RoleEnum.SOURCE;
+        file.userId = userId;
+        file.hash = hashes.get(entry.getKey());
+        referBlob(file.hash, entry.getValue());
+        pd.files.put(entry.getKey(), file);
+      }
+      DataRecord sequence = new DataRecord();
+      sequence.values.put("project", Long.toString(nextProjectId));
+      data.put("sequence", sequence);
+      projects.put(Long.toString(pd.id), pd);
+
+      UserRecord userData = users.get(userId);
+      if (userData == null) {
+        userData = createUser(userId, null);
+      }
+      userData.projectIds.add(pd.id);
+      users.put(userId, userData);
+      return pd.id;
+    }
+  }
+
+  @Override
+  public synchronized void deleteProject(String userId, long projectId) {
+    UserRecord userData = users.get(userId);
+    if (userData != null && userData.projectIds.remove(projectId)) {
+      users.put(userId, userData);
+    }
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd != null) {
+      for (FileRecord file : pd.files.values()) {
+        releaseBlob(file.hash);
+      }
+      projects.remove(Long.toString(projectId));
+    }
+  }
+
+  @Override
+  public synchronized void setProjectGalleryId(String userId, long projectId, long galleryId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd != null) {
+      pd.galleryId = galleryId;
+      projects.put(Long.toString(projectId), pd);
+    }
+  }
+
+  @Override
+  public synchronized void setProjectAttributionId(String userId, long projectId,
+      long attributionId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd != null) {
+      pd.attributionId = attributionId;
+      projects.put(Long.toString(projectId), pd);
+    }
+  }
+
+  @Override
+  public synchronized List<Long> getProjects(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData == null) ? new ArrayList<Long>() : new ArrayList<Long>(userData.projectIds);
+  }
+
+  @Override
+  public synchronized String loadProjectSettings(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.settings : "";
+  }
+
+  @Override
+  public synchronized void storeProjectSettings(String userId, long projectId, String settings) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd != null) {
+      pd.settings = settings;
+      projects.put(Long.toString(projectId), pd);
+    }
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    // We only have one project type, no need to ask about it
+    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+  }
+
+  @Override
+  public synchronized UserProject getUserProject(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd == null) ? null : makeUserProject(pd);
+  }
+
+  @Override
+  public synchronized List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    List<UserProject> uProjects = new ArrayList<UserProject>(projectIds.size());
+    for (long projectId : projectIds) {
+      ProjectRecord pd = projects.get(Long.toString(projectId));
+      if (pd != null) {
+        uProjects.add(makeUserProject(pd));
+      }
+    }
+    return uProjects;
+  }
+
+  private static UserProject makeUserProject(ProjectRecord pd) {
+    return new UserProject(pd.id, pd.name, pd.type, pd.dateCreated, pd.dateModified,
+        pd.galleryId, pd.attributionId);
+  }
+
+  @Override
+  public synchronized String getProjectName(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.name : "";
+  }
+
+  @Override
+  public synchronized long getProjectDateModified(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.dateModified : UserProject.NOTPUBLISHED;
+  }
+
+  @Override
+  public synchronized String getProjectHistory(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.history : "";
+  }
+
+  @Override
+  public synchronized long getProjectDateCreated(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.dateCreated : UserProject.NOTPUBLISHED;
+  }
+
+  @Override
+  public synchronized long getProjectGalleryId(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.galleryId : UserProject.NOTPUBLISHED;
+  }
+
+  @Override
+  public synchronized long getProjectAttributionId(long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    return (pd != null) ? pd.attributionId : UserProject.FROMSCRATCH;
+  }
+
+  @Override
+  public synchronized void addFilesToUser(String userId, String... fileNames) {
+    UserRecord userData = getOrCreateUser(userId);
+    for (String fileName : fileNames) {
+      if (!userData.files.containsKey(fileName)) {
+        userData.files.put(fileName, null);
+      }
+    }
+    users.put(userId, userData);
+  }
+
+  @Override
+  public synchronized List<String> getUserFiles(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData == null)
+        ? new ArrayList<String>()
+        : new ArrayList<String>(userData.files.keySet());
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileName, String content, String encoding) {
+    try {
+      uploadRawUserFile(userId, fileName, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  /*
+   * SPECIAL CASE: If fileName == StorageUtil.USER_BACKBACK_FILENAME and the
+   * content is "[]", we *delete* the file because the default value returned
+   * if the file doesn't exist is "[]" (the JSON empty list).
+   */
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    if (fileName.equals(StorageUtil.USER_BACKPACK_FILENAME)
+        && Arrays.equals(new byte[] { (byte) 0x5b, (byte) 0x5d }, content)) {
+      deleteUserFile(userId, fileName);
+      return;
+    }
+    String hash = writeBlob(content);
+    synchronized (this) {
+      UserRecord userData = getOrCreateUser(userId);
+      referBlob(hash, content);
+      releaseBlob(userData.files.put(fileName, hash));
+      users.put(userId, userData);
+    }
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, " +
+          collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    String hash;
+    synchronized (this) {
+      UserRecord userData = users.get(userId);
+      if (userData == null || !userData.files.containsKey(fileName)) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+            new FileNotFoundException(fileName));
+      }
+      hash = userData.files.get(fileName);
+      pinBlob(hash);
+    }
+    try {
+      return readBlob(hash);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+    } finally {
+      unpinBlob(hash);
+    }
+  }
+
+  @Override
+  public synchronized void deleteUserFile(String userId, String fileName) {
+    UserRecord userData = users.get(userId);
+    if (userData != null && userData.files.containsKey(fileName)) {
+      releaseBlob(userData.files.remove(fileName));
+      users.put(userId, userData);
+    }
+  }
+
+  private UserRecord getOrCreateUser(String userId) {
+    UserRecord userData = users.get(userId);
+    return (userData != null) ? userData : createUser(userId, null);
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    addFilesToProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileNames) {
+    addFilesToProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private synchronized void addFilesToProject(String userId, long projectId,
+      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+    ProjectRecord pd = getProjectRecord(userId, projectId);
+    for (String fileName : fileNames) {
+      FileRecord fd = pd.files.get(fileName);
+      if (fd == null) {
+        fd = new FileRecord();
+        fd.role = role;
+        fd.userId = userId;
+        pd.files.put(fileName, fd);
+      } else if (!fd.role.equals(role)) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(null, projectId, fileName),
+            new IllegalStateException("File role change is not supported"));
+      }
+    }
+    if (changeModDate) {
+      updateProjectModDate(pd);
+    }
+    projects.put(Long.toString(projectId), pd);
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private synchronized void removeFilesFromProject(String userId, long projectId,
+      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+    ProjectRecord pd = getProjectRecord(userId, projectId);
+    for (String fileName : fileNames) {
+      FileRecord fd = pd.files.get(fileName);
+      if (fd != null && !fd.role.equals(role)) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(null, projectId, fileName),
+            new IllegalStateException("File role change is not supported"));
+      }
+    }
+    for (String fileName : fileNames) {
+      FileRecord fd = pd.files.remove(fileName);
+      if (fd != null) {
+        releaseBlob(fd.hash);
+      }
+    }
+    if (changeModDate) {
+      updateProjectModDate(pd);
+    }
+    projects.put(Long.toString(projectId), pd);
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    return getProjectFiles(userId, projectId, FileData.RoleEnum.SOURCE);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    return getProjectFiles(userId, projectId, FileData.RoleEnum.TARGET);
+  }
+
+  private synchronized List<String> getProjectFiles(String userId, long projectId,
+      FileData.RoleEnum role) {
+    List<String> fileList = new ArrayList<String>();
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd != null) {
+      for (Map.Entry<String, FileRecord> entry : pd.files.entrySet()) {
+        if (entry.getValue().role.equals(role)) {
+          fileList.add(entry.getKey());
+        }
+      }
+    }
+    return fileList;
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileName, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileName, String userId, String content,
+      String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId, byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    boolean considerBackup = fileName.contains("src/") && (fileName.endsWith(".blk")
+        || fileName.endsWith(".bky") || fileName.endsWith(".scm"));
+    String hash = writeBlob(content);
+    long modTime;
+    boolean backup = false;
+    boolean referred = false;
+    try {
+      synchronized (this) {
+        ProjectRecord pd = getProjectRecord(userId, projectId);
+        FileRecord fd = pd.files.get(fileName);
+        // <Screen>.yail files are missing when user converts AI1 project to AI2
+        // instead of blowing up, just create a <Screen>.yail file
+        if (fd == null && (fileName.endsWith(".yail") || fileName.endsWith(".png"))) {
+          fd = new FileRecord();
+          fd.role = FileData.RoleEnum.SOURCE;
+          fd.userId = userId;
+          pd.files.put(fileName, fd);
+        }
+        if (fd == null) {
+          throw new IllegalStateException("File " + fileName + " must be added before upload");
+        }
+        checkOwner(fd, userId, projectId);
+        if (content.length < 125 && fileName.endsWith(".bky") && !force) {
+          // Likely this is an empty blocks workspace, see if we had previous content
+          if (fd.hash != null && blobLength(fd.hash) > 120) {
+            throw new BlocksTruncatedException();
+          }
+        }
+        referBlob(hash, content);
+        referred = true;
+        releaseBlob(fd.hash);
+        fd.hash = hash;
+        if (considerBackup && fd.lastBackup + TWENTYFOURHOURS < System.currentTimeMillis()) {
+          fd.lastBackup = System.currentTimeMillis();
+          backup = true;
+        }
+        // Old file not marked with ownership, mark it now
+        if (Strings.isNullOrEmpty(fd.userId)) {
+          fd.userId = userId;
+        }
+        modTime = updateProjectModDate(pd);
+        projects.put(Long.toString(projectId), pd);
+      }
+    } finally {
+      if (!referred) {
+        discardBlob(hash);
+      }
+    }
+    if (backup) {
+      try {
+        File backupFile = new File(new File(backupDir, Long.toString(projectId)),
+            fileName + "." + System.currentTimeMillis() + ".backup");
+        makeDirectory(backupFile.getParentFile());
+        Files.write(content, backupFile);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to back up " + fileName + " of project " + projectId, e);
+      }
+    }
+    return modTime;
+  }
+
+  // Only update the dateModified if it is more than a minute in the past, as
+  // ObjectifyStorageIo does. The caller writes the project record.
+  private static long updateProjectModDate(ProjectRecord pd) {
+    long modDate = System.currentTimeMillis();
+    if (modDate > pd.dateModified + 1000*60) {
+      pd.dateModified = modDate;
+    }
+    return pd.dateModified;
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileName) {
+    synchronized (this) {
+      ProjectRecord pd = getProjectRecord(userId, projectId);
+      FileRecord fd = pd.files.get(fileName);
+      if (fd != null) {
+        checkOwner(fd, userId, projectId);
+        pd.files.remove(fileName);
+        releaseBlob(fd.hash);
+      }
+      long modTime = updateProjectModDate(pd);
+      projects.put(Long.toString(projectId), pd);
+      return modTime;
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public List<String> downloadFiles(String userId, long projectId, List<String> fileNames,
+      String encoding) {
+    // Files are read from the local disk, so there is nothing to gain from
+    // reading them together.
+    List<String> contents = new ArrayList<String>(fileNames.size());
+    for (String fileName : fileNames) {
+      contents.add(downloadFile(userId, projectId, fileName, encoding));
+    }
+    return contents;
+  }
+
+  @Override
+  public synchronized void recordCorruption(String userId, long projectId, String fileId,
+      String message) {
+    DataRecord record = new DataRecord();
+    record.timestamp = new Date();
+    record.values.put("userId", userId);
+    record.values.put("projectId", Long.toString(projectId));
+    record.values.put("fileId", fileId);
+    record.values.put("message", message);
+    data.put("corruption/" + UUID.randomUUID().toString(), record);
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileName) {
+    String hash;
+    synchronized (this) {
+      ProjectRecord pd = projects.get(Long.toString(projectId));
+      FileRecord fd = (pd == null) ? null : pd.files.get(fileName);
+      if (fd == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName),
+            new FileNotFoundException("No data for " + fileName));
+      }
+      checkOwner(fd, userId, projectId);
+      hash = fd.hash;
+      pinBlob(hash);
+    }
+    try {
+      return readBlob(hash);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      unpinBlob(hash);
+    }
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    String uuid = UUID.randomUUID().toString();
+    writeAtomically(new File(tempDir, uuid), content);
+    return TEMP_PREFIX + uuid;
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    return new ByteArrayInputStream(Files.toByteArray(tempFile(fileName)));
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    File file = tempFile(fileName);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + fileName);
+    }
+  }
+
+  private File tempFile(String fileName) {
+    if (!fileName.startsWith(TEMP_PREFIX) || fileName.indexOf('/', TEMP_PREFIX.length()) >= 0) {
+      throw new RuntimeException("Invalid temporary file name " + fileName);
+    }
+    return new File(tempDir, fileName.substring(TEMP_PREFIX.length()));
+  }
+
+  @Override
+  public synchronized Motd getCurrentMotd() {
+    DataRecord motd = data.get("motd");
+    return new Motd(MOTD_ID, motd.values.get("caption"), motd.values.get("content"));
+  }
+
+  private synchronized void initMotd() {
+    if (data.get("motd") == null) {
+      DataRecord firstMotd = new DataRecord();
+      firstMotd.values.put("caption", "Hello!");
+      firstMotd.values.put("content", "Welcome to the experimental App Inventor system from "
+          + "MIT. This is still a prototype.  It would be a good idea to frequently back up "
+          + "your projects to local storage.");
+      data.put("motd", firstMotd);
+    }
+  }
+
+  /**
+   *  Exports project files as a zip archive
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param zipName  the name of the zip file, if a specific one is desired
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @param fatalError Signal a fatal error if a file is not found
+   * @return  project with the content as requested by params.
+   */
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery, boolean fatalError)
+      throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, zipFile);
+    String projectName = getProjectName(userId, projectId);
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, boolean includeYail,
+      boolean includeScreenShots, boolean forGallery, boolean fatalError, OutputStream stream)
+      throws IOException {
+    // Collect and pin the hashes of the files while holding the lock, then
+    // copy the contents into the zip file without it.
+    Map<String, String> files = new LinkedHashMap<String, String>();
+    String projectHistory = null;
+    String keystoreHash = null;
+    synchronized (this) {
+      ProjectRecord pd = projects.get(Long.toString(projectId));
+      if (pd == null) {
+        throw new IllegalArgumentException("No files to download");
+      }
+      for (Map.Entry<String, FileRecord> entry : pd.files.entrySet()) {
+        String fileName = entry.getKey();
+        if (fileName.startsWith("assets/external_comps") && forGallery) {
+          throw new IOException("FATAL Error, external component in gallery app");
+        }
+        if (!entry.getValue().role.equals(FileData.RoleEnum.SOURCE)
+            || fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)
+            || (fileName.startsWith("screenshots") && !includeScreenShots)
+            || (fileName.endsWith(".yail") && !includeYail)) {
+          continue;
+        }
+        files.put(fileName, entry.getValue().hash);
+      }
+      for (String hash : files.values()) {
+        pinBlob(hash);
+      }
+      if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
+        projectHistory = pd.history;
+      }
+      UserRecord userData = users.get(userId);
+      if (includeAndroidKeystore && userData != null) {
+        keystoreHash = userData.files.get(StorageUtil.ANDROID_KEYSTORE_FILENAME);
+        pinBlob(keystoreHash);
+      }
+    }
+    try {
+      if (files.isEmpty()) {
+        // Nothing has been written yet, so the caller can still report this
+        throw new IllegalArgumentException("No files to download");
+      }
+
+      ZipOutputStream out = new ZipOutputStream(stream);
+      out.setComment("Built with MIT App Inventor");
+      int fileCount = 0;
+      for (Map.Entry<String, String> file : files.entrySet()) {
+        out.putNextEntry(new ZipEntry(file.getKey()));
+        copyBlob(file.getValue(), out);
+        out.closeEntry();
+        fileCount++;
+      }
+      if (projectHistory != null) {
+        byte[] content = projectHistory.getBytes(StorageUtil.DEFAULT_CHARSET);
+        out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+        out.write(content, 0, content.length);
+        out.closeEntry();
+        fileCount++;
+      }
+      if (keystoreHash != null && blobLength(keystoreHash) > 0) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        copyBlob(keystoreHash, out);
+        out.closeEntry();
+        fileCount++;
+      }
+      // Finish rather than close the zip, the caller owns the stream.
+      out.finish();
+      return fileCount;
+    } finally {
+      for (String hash : files.values()) {
+        unpinBlob(hash);
+      }
+      unpinBlob(keystoreHash);
+    }
+  }
+
+  // Find a user by email address. This version does *not* create a new user
+  // if the user does not exist
+  @Override
+  public synchronized String findUserByEmail(String inputemail) throws NoSuchElementException {
+    UserRecord userData = findUserRecordByEmail(inputemail);
+    if (userData == null) {
+      throw new NoSuchElementException("Couldn't find a user with email " + inputemail);
+    }
+    return userData.id;
+  }
+
+  @Override
+  public synchronized String findIpAddressByKey(String key) {
+    DataRecord record = data.get("rendezvous/" + key);
+    return (record == null) ? null : record.values.get("ipAddress");
+  }
+
+  @Override
+  public synchronized void storeIpAddressByKey(String key, String ipAddress) {
+    DataRecord record = new DataRecord();
+    record.values.put("ipAddress", ipAddress);
+    record.timestamp = new Date(); // So we can cleanup old entries
+    data.put("rendezvous/" + key, record);
+  }
+
+  /**
+   * Checks the whitelist file in the storage directory, which has one email
+   * address per line.
+   */
+  @Override
+  public boolean checkWhiteList(String email) {
+    if (!whiteListFile.exists()) {
+      return false;
+    }
+    try {
+      for (String line : Files.readLines(whiteListFile, Charsets.UTF_8)) {
+        if (line.trim().equalsIgnoreCase(email)) {
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read " + whiteListFile, e);
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized void storeFeedback(String notes, String foundIn, String faultData,
+      String comments, String datestamp, String email, String projectId) {
+    DataRecord record = new DataRecord();
+    record.timestamp = new Date();
+    record.values.put("notes", notes);
+    record.values.put("foundIn", foundIn);
+    record.values.put("faultData", faultData);
+    record.values.put("comments", comments);
+    record.values.put("datestamp", datestamp);
+    record.values.put("email", email);
+    record.values.put("projectId", projectId);
+    data.put("feedback/" + UUID.randomUUID().toString(), record);
+  }
+
+  @Override
+  public synchronized Nonce getNoncebyValue(String nonceValue) {
+    NonceRecord record = nonces.get(nonceValue);
+    return (record == null)
+        ? null
+        : new Nonce(nonceValue, record.userId, record.projectId, record.timestamp);
+  }
+
+  @Override
+  public synchronized void storeNonce(String nonceValue, String userId, long projectId) {
+    NonceRecord record = new NonceRecord();
+    record.userId = userId;
+    record.projectId = projectId;
+    record.timestamp = new Date();
+    nonces.put(nonceValue, record);
+  }
+
+  // Cleanup expired nonces which are older then 3 hours, as ObjectifyStorageIo does.
+  @Override
+  public synchronized void cleanupNonces() {
+    Date expired = new Date(System.currentTimeMillis() - 3600*3*1000L);
+    for (String key : new ArrayList<String>(nonces.keys())) {
+      if (nonces.get(key).timestamp.before(expired)) {
+        nonces.remove(key);
+      }
+    }
+  }
+
+  // Projects are never in the blobstore here, so there is nothing to upgrade.
+  @Override
+  public void checkUpgrade(String userId) {
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+  }
+
+  @Override
+  public synchronized SplashConfig getSplashConfig() {
+    DataRecord splash = data.get("splash");
+    if (splash == null) {
+      splash = new DataRecord();
+      splash.values.put("version", "0");
+      splash.values.put("width", "350");
+      splash.values.put("height", "100");
+      splash.values.put("content", "<b>Welcome to MIT App Inventor</b>");
+      data.put("splash", splash);
+    }
+    return new SplashConfig(Integer.parseInt(splash.values.get("version")),
+        Integer.parseInt(splash.values.get("width")),
+        Integer.parseInt(splash.values.get("height")), splash.values.get("content"));
+  }
+
+  @Override
+  public synchronized PWData createPWData(String email) {
+    PWData pwData = new PWData();
+    pwData.id = UUID.randomUUID().toString();
+    pwData.email = email;
+    pwData.timestamp = new Date();
+    DataRecord record = new DataRecord();
+    record.values.put("email", email);
+    record.timestamp = pwData.timestamp;
+    data.put("pwdata/" + pwData.id, record);
+    return pwData;
+  }
+
+  @Override
+  public synchronized PWData findPWData(String uid) {
+    DataRecord record = data.get("pwdata/" + uid);
+    if (record == null) {
+      return null;
+    }
+    PWData pwData = new PWData();
+    pwData.id = uid;
+    pwData.email = record.values.get("email");
+    pwData.timestamp = record.timestamp;
+    return pwData;
+  }
+
+  // Remove expired PWData, which is older than 24 hours
+  @Override
+  public synchronized void cleanuppwdata() {
+    Date expired = new Date(System.currentTimeMillis() - 3600*24*1000L);
+    for (String key : new ArrayList<String>(data.keys())) {
+      if (key.startsWith("pwdata/") && data.get(key).timestamp.before(expired)) {
+        data.remove(key);
+      }
+    }
+  }
+
+  // The routines below are part of the user admin interface. Called from AdminInfoServiceImpl
+
+  @Override
+  public synchronized List<AdminUser> searchUsers(String partialEmail) {
+    TreeMap<String, UserRecord> byEmail = new TreeMap<String, UserRecord>();
+    for (UserRecord user : users.values()) {
+      if (user.email != null && user.email.compareTo(partialEmail) >= 0) {
+        byEmail.put(user.email + "\u0000" + user.id, user);
+      }
+    }
+    List<AdminUser> retval = new ArrayList<AdminUser>();
+    for (UserRecord user : byEmail.values()) {
+      boolean isModerator = (user.type == User.MODERATOR);
+      retval.add(new AdminUser(user.id, user.name, user.email, user.tosAccepted,
+          user.isAdmin, isModerator, user.visited));
+      if (retval.size() > 20) {
+        break;
+      }
+    }
+    return retval;
+  }
+
+  @Override
+  public synchronized void storeUser(AdminUser user) throws AdminInterfaceException {
+    UserRecord userData = (user.getId() == null) ? null : users.get(user.getId());
+    if (userData == null) {     // New User
+      String emaillower = user.getEmail().toLowerCase();
+      for (UserRecord other : users.values()) {
+        if (emaillower.equals(other.email)) {
+          throw new AdminInterfaceException("User Already exists = " + user.getEmail());
+        }
+      }
+      userData = createUser(UUID.randomUUID().toString(), user.getEmail());
+    }
+    userData.email = user.getEmail();
+    userData.emaillower = userData.email.toLowerCase();
+    String password = user.getPassword();
+    if (password != null && !password.equals("")) {
+      userData.password = password;
+    }
+    userData.isAdmin = user.getIsAdmin();
+    userData.type = user.getIsModerator() ? User.MODERATOR : User.USER;
+    users.put(userData.id, userData);
+  }
+
+  private ProjectRecord getProjectRecord(String userId, long projectId) {
+    ProjectRecord pd = projects.get(Long.toString(projectId));
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    return pd;
+  }
+
+  private static void checkOwner(FileRecord fd, String userId, long projectId) {
+    if (!Strings.isNullOrEmpty(fd.userId) && !fd.userId.equals(userId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  // ********* BLOBS *********
+
+  /*
+   * Writes the content to the blob named by its hash, unless that blob is
+   * already there, and returns the hash. Call referBlob with the hash, while
+   * holding the lock, to keep the blob.
+   */
+  private String writeBlob(byte[] content) {
+    String hash = Hashing.sha1().hashBytes(content).toString();
+    File file = blobFile(hash);
+    if (!file.exists()) {
+      try {
+        makeDirectory(file.getParentFile());
+        writeAtomically(file, content);
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Writing blob " + hash, e);
+      }
+    }
+    return hash;
+  }
+
+  private byte[] readBlob(String hash) throws IOException {
+    return (hash == null) ? new byte[0] : Files.toByteArray(blobFile(hash));
+  }
+
+  private void copyBlob(String hash, OutputStream out) throws IOException {
+    if (hash != null) {
+      Files.copy(blobFile(hash), out);
+    }
+  }
+
+  private long blobLength(String hash) {
+    return blobFile(hash).length();
+  }
+
+  private File blobFile(String hash) {
+    return new File(new File(blobDir, hash.substring(0, 2)), hash);
+  }
+
+  private void addBlobReference(String hash) {
+    if (hash != null) {
+      Integer count = blobReferences.get(hash);
+      blobReferences.put(hash, (count == null) ? 1 : count + 1);
+    }
+  }
+
+  /*
+   * Counts a reference to a blob written by writeBlob. If the last reference
+   * to the blob was released between writing and referring to it, the blob
+   * was deleted, so it is written again.
+   */
+  private void referBlob(String hash, byte[] content) {
+    if (!blobFile(hash).exists()) {
+      writeBlob(content);
+    }
+    addBlobReference(hash);
+  }
+
+  // Deletes a blob written by writeBlob that nothing came to refer to.
+  private synchronized void discardBlob(String hash) {
+    if (!blobReferences.containsKey(hash) && !blobFile(hash).delete()) {
+      LOG.log(Level.WARNING, "Unable to delete blob " + hash);
+    }
+  }
+
+  /*
+   * Counts a reference to a blob that is about to be read outside of the
+   * lock, so that it is kept until unpinBlob is called when the read is done.
+   * Call it while holding the lock.
+   */
+  private void pinBlob(String hash) {
+    addBlobReference(hash);
+  }
+
+  private synchronized void unpinBlob(String hash) {
+    releaseBlob(hash);
+  }
+
+  private void releaseBlob(String hash) {
+    if (hash == null) {
+      return;
+    }
+    Integer count = blobReferences.get(hash);
+    if (count == null || count <= 1) {
+      blobReferences.remove(hash);
+      if (!blobFile(hash).delete()) {
+        LOG.log(Level.WARNING, "Unable to delete blob " + hash);
+      }
+    } else {
+      blobReferences.put(hash, count - 1);
+    }
+  }
+
+  // Writes the file through a temporary file, so that it is never seen half written.
+  private static void writeAtomically(File file, byte[] content) throws IOException {
+    File tempFile = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + ".tmp");
+    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void makeDirectory(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Unable to create " + dir);
+    }
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+
+  @Override
+  public synchronized void addVariables(Map<String, String> variables) {
+    variables.put("local-storage-blobs", blobReferences.size() + "");
+  }
+
+  // ********* METHODS BELOW ARE ONLY FOR TESTING *********
+
+  @VisibleForTesting
+  synchronized int getBlobCount() {
+    return blobReferences.size();
+  }
+}
@@ -68,6 +68,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
 // GCS imports
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
@@ -80,15 +81,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -133,6 +137,22 @@ public class ObjectifyStorageIo implements  StorageIo {
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // The most GCS files read ahead when several files of a project are read
+  private static final int GCS_PREFETCH_FILES = Flag.createFlag("gcs.prefetch.files", 8).get();
+
+  // The size of the blocks that each prefetching GCS read channel reads ahead
+  private static final int GCS_PREFETCH_BLOCK_SIZE = 1024 * 1024;
+
+  // How long a project's list of source files is kept in memcache
+  private static final int SOURCE_FILES_CACHE_SECONDS = 600;
+
+  // How long after a project's source files change its list may not be put
+  // back in memcache, so that a list read before the change is not cached
+  private static final long SOURCE_FILES_NO_READD_MILLIS = 10000;
+
+  private final AtomicLong sourceFilesHits = new AtomicLong();
+  private final AtomicLong sourceFilesMisses = new AtomicLong();
+
   // Use this class to define the work of a job that can be
   // retried. The "datastore" argument to run() is the Objectify
   // object for this job (created with
@@ -790,6 +810,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           datastore.delete(projectKey);
         }
       }, true);
+      flushSourceFiles(projectId);
       // have to delete the blobs outside of the user and project jobs
       for (String blobKeyString: blobKeys) {
         deleteBlobstoreFile(blobKeyString);
@@ -1340,6 +1361,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    flushSourceFiles(projectId);
   }
 
   @Override
@@ -1406,6 +1428,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    flushSourceFiles(projectId);
   }
 
   @Override
@@ -1450,6 +1473,16 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public List<String> getProjectSourceFiles(final String userId, final long projectId) {
+    // Listing the files queries every file entity of the project, so the
+    // list is cached until the project's source files change.
+    String cachekey = sourceFilesCacheKey(projectId);
+    @SuppressWarnings("unchecked")
+    List<String> cached = (List<String>) memcache.get(cachekey);
+    countSourceFilesLookup(cached != null);
+    if (cached != null) {
+      return cached;
+    }
+
     final Result<List<String>> result = new Result<List<String>>();
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1462,9 +1495,52 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
+    // Add only if not present, which fails while the list is being flushed
+    memcache.put(cachekey, result.t, Expiration.byDeltaSeconds(SOURCE_FILES_CACHE_SECONDS),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
     return result.t;
   }
 
+  // A project keeps its id, and the names of its files, for as long as it
+  // exists, so only changes to its source files have to flush the list.
+  private static String sourceFilesCacheKey(long projectId) {
+    return "sourcefiles|" + projectId;
+  }
+
+  // Flushes the cached list of a project's source files because it changed.
+  // This is called after the change is committed.
+  private void flushSourceFiles(long projectId) {
+    memcache.delete(sourceFilesCacheKey(projectId), SOURCE_FILES_NO_READD_MILLIS);
+  }
+
+  private void countSourceFilesLookup(boolean hit) {
+    if (hit) {
+      sourceFilesHits.incrementAndGet();
+    } else {
+      sourceFilesMisses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the number of source file lists found in memcache.
+   */
+  long getSourceFilesCacheHits() {
+    return sourceFilesHits.get();
+  }
+
+  /**
+   * Returns the number of source file lists read from the datastore.
+   */
+  long getSourceFilesCacheMisses() {
+    return sourceFilesMisses.get();
+  }
+
+  @Override
+  public void addVariables(Map<String, String> variables) {
+    variables.put("source-files-cache-hits", getSourceFilesCacheHits() + "");
+    variables.put("source-files-cache-misses", getSourceFilesCacheMisses() + "");
+  }
+
   @Override
   public List<String> getProjectOutputFiles(final String userId, final long projectId) {
    final Result<List<String>> result = new Result<List<String>>();
@@ -1559,6 +1635,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<Boolean> created = new Result<Boolean>();
+    created.t = false;
     final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
     final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
@@ -1587,6 +1665,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
             fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
             fd.userId = userId;
+            created.t = true;
           }
 
           Preconditions.checkState(fd != null);
@@ -1684,6 +1763,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (oldBlobstoreKey.t != null) {
         deleteBlobstoreFile(oldBlobstoreKey.t);
       }
+      if (created.t) {
+        flushSourceFiles(projectId);
+      }
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
         throw new BlocksTruncatedException();
@@ -1762,6 +1844,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
+    flushSourceFiles(projectId);
     if (oldBlobKeyString.t != null) {
       deleteBlobstoreFile(oldBlobKeyString.t);
     }
@@ -1954,6 +2037,94 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
+  @Override
+  public List<String> downloadFiles(final String userId, final long projectId,
+      final List<String> fileNames, final String encoding) {
+    validateGCS();
+    final Map<String, FileData> found = new HashMap<String, FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          found.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          Map<String, Key<FileData>> fileKeys = new HashMap<String, Key<FileData>>();
+          for (String fileName : fileNames) {
+            Key<FileData> fileKey = projectFileKey(projectKey, fileName);
+            fileKeys.put(fileKey.getString(), fileKey);
+          }
+          Map<String, Object> cached = memcache.getAll(fileKeys.keySet());
+          for (Object fd : cached.values()) {
+            found.put(((FileData) fd).fileName, (FileData) fd);
+          }
+          // Get the files that are not in memcache with one datastore call
+          fileKeys.keySet().removeAll(cached.keySet());
+          if (!fileKeys.isEmpty()) {
+            for (FileData fd : datastore.get(fileKeys.values()).values()) {
+              found.put(fd.fileName, fd);
+            }
+          }
+        }
+      }, false); // Transaction not needed
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+
+    // Start reading the files kept in GCS together, outside of the job
+    List<GcsFilename> gcsFiles = new ArrayList<GcsFilename>();
+    for (String fileName : fileNames) {
+      FileData fileData = found.get(fileName);
+      if (fileData == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName),
+            new FileNotFoundException("No data for " + fileName));
+      }
+      if (fileData.userId != null && !fileData.userId.equals("")) {
+        if (!fileData.userId.equals(userId)) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectUserProjectErrorInfo(userId, projectId),
+            new UnauthorizedAccessException(userId, projectId, null));
+        }
+      }
+      if (isTrue(fileData.isGCS)) {
+        gcsFiles.add(new GcsFilename(GCS_BUCKET_NAME, fileData.gcsName));
+      }
+    }
+    GcsPrefetcher prefetcher =
+        new GcsPrefetcher(gcsService, gcsFiles, GCS_PREFETCH_FILES, GCS_PREFETCH_BLOCK_SIZE);
+
+    List<String> contents = new ArrayList<String>(fileNames.size());
+    String fileName = null;
+    try {
+      for (String name : fileNames) {
+        fileName = name;
+        FileData fileData = found.get(fileName);
+        byte[] content;
+        if (isTrue(fileData.isGCS)) {
+          InputStream in = prefetcher.next();
+          try {
+            content = ByteStreams.toByteArray(in);
+          } catch (IOException e) {
+            // The object may be missing, which downloadRawFile knows how to handle
+            content = downloadRawFile(userId, projectId, fileName);
+          }
+        } else if (fileData.isBlob) {
+          content = downloadRawFile(userId, projectId, fileName);
+        } else {
+          content = (fileData.content == null) ? new byte[0] : fileData.content;
+        }
+        contents.add(new String(content, encoding));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      prefetcher.close();
+    }
+    return contents;
+  }
+
   // Note: this must be called outside of any transaction, since getBlobKey()
   // uses the current transaction and it will most likely have the wrong
   // entity group!
@@ -1992,6 +2163,59 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, zipFile,
+        projectName);
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  /**
+   *  Writes project files as a zip archive to a stream. Files kept in GCS
+   *  are copied from their read channel into the zip, so no file is held
+   *  in memory whole and neither is the zip.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @param fatalError Signal a fatal error if a file is not found
+   * @param stream the stream to write the zip archive to; it is not closed
+   * @return  the number of files in the zip archive
+   */
+  @Override
+  public int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream stream) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, stream, new Result<String>());
+  }
+
+  // Writes the zip like the method above, and sets projectName to the name of the project, which
+  // is read along with the files.
+  private int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream stream,
+    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -2002,14 +2226,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
-    projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-    out.setComment("Built with MIT App Inventor");
-
     try {
       JobRetryHelper job = new JobRetryHelper() {
         @Override
@@ -2058,12 +2276,37 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (error != null) {
         throw error;
       }
+    } catch (ObjectifyException e) {
+      throw reflectExportError(userId, projectId, fileName, e);
+    } catch (RuntimeException e) {
+      throw reflectExportError(userId, projectId, fileName, e);
+    }
+
+    if (fileData.isEmpty()) {
+      // Nothing has been written yet, so the caller can still report this
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    final ZipOutputStream out = new ZipOutputStream(stream);
+    out.setComment("Built with MIT App Inventor");
+
+    // Start reading the files kept in GCS, a few ahead of the one being zipped.
+    List<GcsFilename> gcsFiles = new ArrayList<GcsFilename>();
+    for (FileData fd : fileData) {
+      if (!fd.isBlob && isTrue(fd.isGCS)) {
+        gcsFiles.add(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+      }
+    }
+    GcsPrefetcher prefetcher =
+        new GcsPrefetcher(gcsService, gcsFiles, GCS_PREFETCH_FILES, GCS_PREFETCH_BLOCK_SIZE);
+
+    try {
       // Process the file contents outside of the job since we can't read
       // blobs in the job.
       for (FileData fd : fileData) {
         fileName = fd.fileName;
-        byte[] data = null;
         if (fd.isBlob) {
+          byte[] data;
           try {
             if (fd.blobKey == null) {
               throw new BlobReadException("blobKey is null");
@@ -2073,57 +2316,26 @@ public class ObjectifyStorageIo implements  StorageIo {
             throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId, fileName), e);
           }
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
         } else if (isTrue(fd.isGCS)) {
           try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
+            InputStream in;
+            InputStream retried = null;
+            try {
+              in = awaitFirstBlock(prefetcher.next());
+            } catch (IOException e) {
+              // The object may be missing, so read it on its own to find out.
+              in = retried = openGcsFileWithRetries(fd.gcsName, fatalError);
             }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
+            try {
+              out.putNextEntry(new ZipEntry(fileName));
+              if (in != null) {
+                ByteStreams.copy(in, out);
+              }
+            } finally {
+              if (retried != null) {
+                retried.close();
               }
             }
           } catch (IOException e) {
@@ -2131,13 +2343,11 @@ public class ObjectifyStorageIo implements  StorageIo {
               collectProjectErrorInfo(userId, projectId, fileName), e);
           }
         } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+          out.putNextEntry(new ZipEntry(fileName));
+          if (fd.content != null) {   // This is null if file creation is interrupted
+            out.write(fd.content, 0, fd.content.length);
+          }
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
         out.closeEntry();
         fileCount.t++;
       }
@@ -2148,21 +2358,10 @@ public class ObjectifyStorageIo implements  StorageIo {
         out.closeEntry();
         fileCount.t++;
       }
-    } catch (ObjectifyException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
     } catch (RuntimeException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
-    }
-
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
+      throw reflectExportError(userId, projectId, fileName, e);
+    } finally {
+      prefetcher.close();
     }
 
     if (includeAndroidKeystore) {
@@ -2193,15 +2392,68 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
+    // Finish rather than close the zip, the caller owns the stream.
+    out.finish();
+    return fileCount.t;
+  }
+
+  // Waits for the first block of a prefetched GCS file, so that a missing
+  // object or a failed read shows up here rather than part way through
+  // copying the file.
+  private static InputStream awaitFirstBlock(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in);
+    int b = pushback.read();
+    if (b != -1) {
+      pushback.unread(b);
+    }
+    return pushback;
+  }
+
+  // Opens a GCS file for reading, retrying if its metadata cannot be found.
+  // Returns null if the file is missing and fatalError is false.
+  private InputStream openGcsFileWithRetries(String gcsName, boolean fatalError)
+      throws IOException {
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, gcsName);
+    // The metadata is null if the object in GCS is non-existent, which would happen
+    // when people uploaded a zero length object. As of this change, we now
+    // store zero length objects into GCS, but there are plenty of older objects
+    // that are missing in GCS.
+    GcsFileMetadata metadata = null;
+    int count;
+    for (count = 0; count < 5 && metadata == null; count++) {
+      metadata = gcsService.getMetadata(gcsFileName);
+      if (metadata == null) {
+        LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + gcsName);
+      }
+    }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+    // report out on how things went above
+    if (count > 1) {    // We lost at least once
+      if (metadata != null) {
+        LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + gcsName +
+          " count = " + count);
+      } else {
+        LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + gcsName);
+        if (fatalError) {
+          throw new IOException("FATAL Error reading file from GCS filename = " + gcsName);
+        }
+      }
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+
+    if (metadata == null) {
+      return null;
+    }
+    return Channels.newInputStream(gcsService.openReadChannel(gcsFileName, 0));
+  }
+
+  // Logs an error from exporting a project and returns it as an IOException
+  // for the caller to throw.
+  private IOException reflectExportError(String userId, long projectId, String fileName,
+      Exception e) {
+    CrashReport.createAndLogError(LOG, null,
+        collectProjectErrorInfo(userId, projectId, fileName), e);
+    return new IOException("Reflecting exception for userid " + userId +
+        " projectId " + projectId + ", original exception " + e.getMessage());
   }
 
   @Override
@@ -19,8 +19,10 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -509,6 +511,19 @@ public interface StorageIo {
    */
   String downloadFile(String userId, long projectId, String fileId, String encoding);
 
+  /**
+   * Downloads the data of several text files of a project. The files are
+   * read together rather than one after another where the storage allows.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   * @param encoding  encoding of the text files
+   *
+   * @return  text file contents, in the order of {@code fileIds}
+   */
+  List<String> downloadFiles(String userId, long projectId, List<String> fileIds,
+      String encoding);
+
   /**
    * Records a "corruption" record so we can analyze if corruption is
    * happening.
@@ -590,6 +605,32 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Writes project files as a zip archive to a stream, reading each file as
+   *  it is written so that the whole archive is never held in memory.
+   *  Nothing is written if the project has no files to export.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param out  the stream to write the zip archive to; it is not closed
+   *
+   * @return  the number of files in the zip archive
+   * @throws IllegalArgumentException if the project has no files to export
+   */
+  int writeProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    OutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -656,4 +697,8 @@ public interface StorageIo {
   List<AdminUser> searchUsers(String partialEmail);
   void storeUser(AdminUser user) throws AdminInterfaceException;
 
+  // Add the counters of this storage, such as cache hits, to the variables
+  // shown at /vars
+  void addVariables(Map<String, String> variables);
+
 }
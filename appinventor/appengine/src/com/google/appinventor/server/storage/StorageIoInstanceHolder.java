@@ -6,17 +6,33 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
+
+import java.io.File;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
  * the references in the code to the INSTANCE.
- * 
+ *
+ * <p>If the storage.local.dir property names a directory, projects are kept
+ * there by {@link LocalStorageIo}; otherwise they are kept in the datastore by
+ * {@link ObjectifyStorageIo}.
+ *
  * @author sharon@google.com (Sharon Perl)
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
+  public static final StorageIo INSTANCE = createInstance();
   
   private StorageIoInstanceHolder() {} // not to be instantiated
+
+  private static StorageIo createInstance() {
+    String localDir = Flag.createFlag("storage.local.dir", "").get();
+    if (!localDir.isEmpty()) {
+      return new LocalStorageIo(new File(localDir));
+    }
+    return new ObjectifyStorageIo();
+  }
     
 }
@@ -0,0 +1,64 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.LocalStorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Runs the tests of {@link ProjectServiceTest} with the projects kept by
+ * {@link LocalStorageIo}. The storage.local.dir property has to be set before
+ * StorageIoInstanceHolder is loaded, which works because each test class runs
+ * in a JVM of its own.
+ *
+ */
+@PowerMockIgnore({"javax.crypto.*" })
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ LocalUser.class })
+public class LocalStorageProjectServiceTest extends ProjectServiceTest {
+  private static File root;
+
+  @BeforeClass
+  public static void setUpLocalStorage() {
+    root = Files.createTempDir();
+    System.setProperty("storage.local.dir", root.getPath());
+  }
+
+  @AfterClass
+  public static void tearDownLocalStorage() {
+    System.clearProperty("storage.local.dir");
+    deleteRecursively(root);
+  }
+
+  @Test
+  public void testProjectsAreKeptLocally() {
+    assertTrue(StorageIoInstanceHolder.INSTANCE instanceof LocalStorageIo);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
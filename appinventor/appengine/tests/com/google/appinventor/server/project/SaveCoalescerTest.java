@@ -0,0 +1,270 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SaveCoalescer}.
+ *
+ */
+public class SaveCoalescerTest extends TestCase {
+
+  /*
+   * Records the content written, and can hold writes until released.
+   */
+  private static class RecordingWriter implements SaveCoalescer.Writer {
+    final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release;
+
+    RecordingWriter(boolean hold) {
+      release = new CountDownLatch(hold ? 1 : 0);
+    }
+
+    @Override
+    public long write(String content, boolean force) throws BlocksTruncatedException {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (content.isEmpty() && !force) {
+        throw new BlocksTruncatedException();
+      }
+      written.add(content);
+      return written.size();
+    }
+  }
+
+  /*
+   * Saves content on its own thread, keeping the outcome.
+   */
+  private static class SaveThread extends Thread {
+    private final SaveCoalescer coalescer;
+    private final String key;
+    private final String content;
+    private final SaveCoalescer.Writer writer;
+    volatile long modDate;
+    volatile Throwable failure;
+
+    SaveThread(SaveCoalescer coalescer, String key, String content,
+        SaveCoalescer.Writer writer) {
+      this.coalescer = coalescer;
+      this.key = key;
+      this.content = content;
+      this.writer = writer;
+    }
+
+    @Override
+    public void run() {
+      try {
+        modDate = coalescer.save(key, content, false, writer);
+      } catch (Throwable e) {
+        failure = e;
+      }
+    }
+  }
+
+  public void testSingleSaveIsWritten() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    RecordingWriter writer = new RecordingWriter(false);
+    assertEquals(1, coalescer.save("1/2/Screen1.bky", "one", false, writer));
+    assertEquals(2, coalescer.save("1/2/Screen1.bky", "two", false, writer));
+    assertEquals(2, writer.written.size());
+    assertEquals(2, coalescer.getSaves());
+    assertEquals(2, coalescer.getWrites());
+  }
+
+  public void testSavesDuringWriteAreCoalesced() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    RecordingWriter writer = new RecordingWriter(true);
+    SaveThread first = new SaveThread(coalescer, "key", "first", writer);
+    first.start();
+    writer.started.await();
+
+    // These arrive while "first" is being written
+    List<SaveThread> later = new ArrayList<SaveThread>();
+    for (int i = 0; i < 5; i++) {
+      SaveThread thread = new SaveThread(coalescer, "key", "later" + i, writer);
+      later.add(thread);
+      thread.start();
+    }
+    while (coalescer.getSaves() < 6) {
+      Thread.sleep(10);
+    }
+    writer.release.countDown();
+    first.join();
+    for (SaveThread thread : later) {
+      thread.join();
+      assertNull(thread.failure);
+      assertEquals(2, thread.modDate);
+    }
+
+    // The later saves were written once, with the content of the last of them
+    assertEquals(2, writer.written.size());
+    assertEquals("first", writer.written.get(0));
+    assertTrue(writer.written.get(1).startsWith("later"));
+    assertEquals(6, coalescer.getSaves());
+    assertEquals(2, coalescer.getWrites());
+  }
+
+  public void testSavesWithinWindowAreCoalesced() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(500);
+    RecordingWriter writer = new RecordingWriter(false);
+    SaveThread first = new SaveThread(coalescer, "key", "first", writer);
+    SaveThread second = new SaveThread(coalescer, "key", "second", writer);
+    first.start();
+    while (coalescer.getSaves() < 1) {
+      Thread.sleep(10);
+    }
+    second.start();
+    first.join();
+    second.join();
+    assertEquals(1, writer.written.size());
+    assertEquals("second", writer.written.get(0));
+    assertEquals(1, first.modDate);
+    assertEquals(1, second.modDate);
+  }
+
+  public void testDifferentFilesAreNotCoalesced() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(200);
+    RecordingWriter writer = new RecordingWriter(false);
+    SaveThread blocks = new SaveThread(coalescer, "1/2/Screen1.bky", "blocks", writer);
+    SaveThread form = new SaveThread(coalescer, "1/2/Screen1.scm", "form", writer);
+    blocks.start();
+    form.start();
+    blocks.join();
+    form.join();
+    assertEquals(2, writer.written.size());
+    assertTrue(writer.written.contains("blocks"));
+    assertTrue(writer.written.contains("form"));
+  }
+
+  public void testFailureReachesCoveredSaves() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    RecordingWriter writer = new RecordingWriter(true);
+    SaveThread first = new SaveThread(coalescer, "key", "first", writer);
+    first.start();
+    writer.started.await();
+
+    // Empty content without force makes the writer throw
+    SaveThread second = new SaveThread(coalescer, "key", "", writer);
+    SaveThread third = new SaveThread(coalescer, "key", "", writer);
+    second.start();
+    third.start();
+    while (coalescer.getSaves() < 3) {
+      Thread.sleep(10);
+    }
+    writer.release.countDown();
+    first.join();
+    second.join();
+    third.join();
+    assertNull(first.failure);
+    assertTrue(second.failure instanceof BlocksTruncatedException);
+    assertTrue(third.failure instanceof BlocksTruncatedException);
+
+    // The coalescer is left ready for the next save
+    assertEquals(2, coalescer.save("key", "fourth", false, writer));
+  }
+
+  public void testEarlierSaveIsWrittenWhenLaterFails() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    RecordingWriter writer = new RecordingWriter(true);
+    SaveThread first = new SaveThread(coalescer, "key", "first", writer);
+    first.start();
+    writer.started.await();
+
+    // The empty third save is refused, and the second is written on its own
+    SaveThread second = new SaveThread(coalescer, "key", "second", writer);
+    second.start();
+    while (coalescer.getSaves() < 2) {
+      Thread.sleep(10);
+    }
+    SaveThread third = new SaveThread(coalescer, "key", "", writer);
+    third.start();
+    while (coalescer.getSaves() < 3) {
+      Thread.sleep(10);
+    }
+    writer.release.countDown();
+    first.join();
+    second.join();
+    third.join();
+    assertNull(first.failure);
+    assertNull(second.failure);
+    assertEquals(2, second.modDate);
+    assertTrue(third.failure instanceof BlocksTruncatedException);
+    assertEquals(Arrays.asList("first", "second"), writer.written);
+    assertEquals(3, coalescer.getWrites());
+  }
+
+  public void testOtherFailuresReachAllCoveredSaves() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> attempted = Collections.synchronizedList(new ArrayList<String>());
+    SaveCoalescer.Writer writer = new SaveCoalescer.Writer() {
+      @Override
+      public long write(String content, boolean force) {
+        attempted.add(content);
+        if (content.equals("first")) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          return 1;
+        }
+        throw new IllegalStateException("storage unavailable");
+      }
+    };
+    SaveThread first = new SaveThread(coalescer, "key", "first", writer);
+    first.start();
+    started.await();
+
+    List<SaveThread> later = new ArrayList<SaveThread>();
+    for (int i = 0; i < 3; i++) {
+      SaveThread thread = new SaveThread(coalescer, "key", "later" + i, writer);
+      later.add(thread);
+      thread.start();
+    }
+    while (coalescer.getSaves() < 4) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    first.join();
+    for (SaveThread thread : later) {
+      thread.join();
+      assertTrue(thread.failure instanceof IllegalStateException);
+    }
+
+    // The outage is not retried with the older content
+    assertEquals(2, attempted.size());
+    assertEquals(2, coalescer.getWrites());
+  }
+
+  public void testVariables() throws Exception {
+    SaveCoalescer coalescer = new SaveCoalescer(0);
+    RecordingWriter writer = new RecordingWriter(false);
+    coalescer.save("key", "one", false, writer);
+    Map<String, String> variables = new HashMap<String, String>();
+    coalescer.addVariables(variables);
+    assertEquals("1", variables.get("coalesced-saves"));
+    assertEquals("1", variables.get("coalesced-save-writes"));
+  }
+}
@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.encryption.KeyczarEncryptor;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.RpcResult;
+import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link YoungAndroidProjectService}.
+ *
+ */
+public class YoungAndroidProjectServiceTest extends LocalDatastoreTestCase {
+  private static final String CALLBACK =
+      "http://localhost:8888/ode2/receivebuild/abc/build/Android";
+  private static final String USER_ID = "id1";
+  private static final String USER_EMAIL = "noname1@domain.com";
+  private static final String KEYSTORE_ROOT_PATH = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/appengine/build/war/";  // must end with a slash
+
+  private HttpServer buildServer;
+  private String buildRequestQuery;
+  private byte[] buildRequestBody;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    KeyczarEncryptor.rootPath.setForTest(KEYSTORE_ROOT_PATH);
+    // A stand-in for the build server, which records the build request and accepts it.
+    buildServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    buildServer.createContext("/buildserver/build-all-from-zip-async", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        buildRequestQuery = exchange.getRequestURI().getRawQuery();
+        buildRequestBody = ByteStreams.toByteArray(exchange.getRequestBody());
+        byte[] response = "0".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(response);
+        responseBody.close();
+      }
+    });
+    buildServer.start();
+    YoungAndroidProjectService.buildServerHost.setForTest(
+        "localhost:" + buildServer.getAddress().getPort());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    buildServer.stop(0);
+    super.tearDown();
+  }
+
+  public void testBuildServerUrl() throws Exception {
+    assertEquals("http://localhost:9990/buildserver/build-all-from-zip-async"
+        + "?uname=user%40example.com&gitBuildVersion=v1.0"
+        + "&callback=http%3A%2F%2Flocalhost%3A8888%2Fode2%2Freceivebuild%2Fabc%2Fbuild%2FAndroid",
+        YoungAndroidProjectService.getBuildServerUrlStr("localhost:9990", "user@example.com",
+            "v1.0", CALLBACK));
+  }
+
+  public void testBuild() throws Exception {
+    StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+    storageIo.getUser(USER_ID, USER_EMAIL);
+    YoungAndroidProjectService service = new YoungAndroidProjectService(storageIo);
+    long projectId = service.newProject(USER_ID, "Project1",
+        new NewYoungAndroidProjectParameters("com.domain.noname.Project1"));
+    User user = new User(USER_ID, USER_EMAIL, "NoName", null, 0, false, false, 0, null);
+
+    RpcResult result = service.build(user, projectId, "nonce",
+        YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID);
+    assertTrue(result.getError(), result.succeeded());
+
+    // The user's APK is built, at the normal priority.
+    assertTrue(buildRequestQuery, buildRequestQuery.startsWith("uname=noname1%40domain.com&"));
+    assertFalse(buildRequestQuery, buildRequestQuery.contains("isForCompanion"));
+    assertFalse(buildRequestQuery, buildRequestQuery.contains("priority"));
+    assertTrue(buildRequestQuery, buildRequestQuery.contains("&callback="));
+
+    Set<String> entryNames = new HashSet<String>();
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(buildRequestBody));
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      entryNames.add(entry.getName());
+    }
+    assertTrue(entryNames.toString(),
+        entryNames.contains("youngandroidproject/project.properties"));
+    assertTrue(entryNames.toString(),
+        entryNames.contains("src/com/domain/noname/Project1/Screen1.scm"));
+  }
+}
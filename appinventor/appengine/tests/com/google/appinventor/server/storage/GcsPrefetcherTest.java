@@ -0,0 +1,120 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link GcsPrefetcher}. The GCS service is the local one that
+ * the App Engine SDK provides outside of production, which keeps objects in
+ * the local datastore.
+ *
+ */
+public class GcsPrefetcherTest extends LocalDatastoreTestCase {
+
+  private static final String BUCKET = "prefetcher-test";
+
+  private GcsService gcsService;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    gcsService = GcsServiceFactory.createGcsService();
+  }
+
+  private GcsFilename createObject(String name, byte[] content) throws IOException {
+    GcsFilename file = new GcsFilename(BUCKET, name);
+    gcsService.createOrReplace(file, GcsFileOptions.getDefaultInstance(),
+        ByteBuffer.wrap(content));
+    return file;
+  }
+
+  // Content spanning a few 1kb blocks
+  private static String contentOfFile(int i) {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 3000) {
+      sb.append("content of file ").append(i).append('\n');
+    }
+    return sb.toString();
+  }
+
+  public void testReadsObjectsInOrder() throws IOException {
+    List<GcsFilename> files = new ArrayList<GcsFilename>();
+    for (int i = 0; i < 10; i++) {
+      files.add(createObject("file" + i, contentOfFile(i).getBytes("UTF-8")));
+    }
+    // Fewer reads in flight than objects, and blocks smaller than the objects
+    // (GCS requires blocks of at least 1kb)
+    GcsPrefetcher prefetcher = new GcsPrefetcher(gcsService, files, 3, 1024);
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(prefetcher.hasNext());
+        InputStream in = prefetcher.next();
+        assertEquals(contentOfFile(i), new String(ByteStreams.toByteArray(in), "UTF-8"));
+      }
+      assertFalse(prefetcher.hasNext());
+    } finally {
+      prefetcher.close();
+    }
+  }
+
+  public void testEmptyObject() throws IOException {
+    GcsFilename file = createObject("empty", new byte[0]);
+    GcsPrefetcher prefetcher = new GcsPrefetcher(gcsService, Arrays.asList(file), 1, 1024);
+    try {
+      assertEquals(0, ByteStreams.toByteArray(prefetcher.next()).length);
+    } finally {
+      prefetcher.close();
+    }
+  }
+
+  public void testMissingObjectFailsOnRead() throws IOException {
+    GcsFilename missing = new GcsFilename(BUCKET, "missing");
+    GcsFilename present = createObject("present", new byte[] { 1, 2, 3 });
+    GcsPrefetcher prefetcher =
+        new GcsPrefetcher(gcsService, Arrays.asList(missing, present), 2, 1024);
+    try {
+      InputStream in = prefetcher.next();
+      try {
+        in.read();
+        fail();
+      } catch (IOException e) {
+        // expected
+      }
+      // Later objects can still be read
+      assertTrue(Arrays.equals(new byte[] { 1, 2, 3 },
+          ByteStreams.toByteArray(prefetcher.next())));
+    } finally {
+      prefetcher.close();
+    }
+  }
+
+  public void testNextAfterLastObject() throws IOException {
+    GcsPrefetcher prefetcher =
+        new GcsPrefetcher(gcsService, new ArrayList<GcsFilename>(), 2, 1024);
+    assertFalse(prefetcher.hasNext());
+    try {
+      prefetcher.next();
+      fail();
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+    prefetcher.close();
+  }
+}
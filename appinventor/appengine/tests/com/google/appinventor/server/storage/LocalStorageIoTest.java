@@ -0,0 +1,194 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link LocalStorageIo}. The tests that every StorageIo has to
+ * pass are inherited from {@link StorageIoTestCase}.
+ *
+ */
+public class LocalStorageIoTest extends StorageIoTestCase<LocalStorageIo> {
+
+  private static final String BLOCKS_FILE_NAME = "src/com/yourdomain/Form1.bky";
+
+  private File root;
+
+  @Override
+  protected LocalStorageIo createStorageIo() {
+    root = Files.createTempDir();
+    return new LocalStorageIo(root);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    deleteRecursively(root);
+    super.tearDown();
+  }
+
+  public void testCreateAndDeleteProject() {
+    final String USER_ID = "400";
+    storage.getUser(USER_ID, "newuser400@test.com");
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    assertEquals(FILE_CONTENT2,
+        storage.downloadFile(USER_ID, projectId, FILE_NAME2, StorageUtil.DEFAULT_CHARSET));
+    assertEquals(3, storage.getBlobCount());
+
+    storage.deleteProject(USER_ID, projectId);
+    assertEquals(0, storage.getProjects(USER_ID).size());
+    assertNull(storage.getUserProject(USER_ID, projectId));
+    assertEquals(0, storage.getBlobCount());
+  }
+
+  public void testBlocksTruncated() throws Exception {
+    final String USER_ID = "1800";
+    storage.getUser(USER_ID, "newuser1800@test.com");
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+    char[] blocks = new char[200];
+    Arrays.fill(blocks, 'x');
+    storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, new String(blocks),
+        StorageUtil.DEFAULT_CHARSET);
+    int blobCount = storage.getBlobCount();
+    try {
+      storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed truncating blocks");
+    } catch (BlocksTruncatedException ignored) {
+      // The empty workspace must be forced
+    }
+    assertEquals(blobCount, storage.getBlobCount());
+    storage.uploadFileForce(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals("<xml/>", storage.downloadFile(USER_ID, projectId, BLOCKS_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testSameContentIsStoredOnce() throws Exception {
+    final String USER_ID = "1900";
+    storage.getUser(USER_ID, "newuser1900@test.com");
+    long projectId1 = storage.createProject(USER_ID, project, SETTINGS);
+    long projectId2 = storage.createProject(USER_ID, project, SETTINGS);
+    assertEquals(3, storage.getBlobCount());
+
+    storage.uploadFile(projectId1, FILE_NAME1, USER_ID, "changed", StorageUtil.DEFAULT_CHARSET);
+    assertEquals(4, storage.getBlobCount());
+    storage.deleteProject(USER_ID, projectId2);
+    assertEquals(3, storage.getBlobCount());
+    assertEquals(FILE_CONTENT2,
+        storage.downloadFile(USER_ID, projectId1, FILE_NAME2, StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testDataIsReadBack() throws Exception {
+    final String USER_ID = "2000";
+    final String USER_EMAIL = "newuser2000@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    storage.storeSettings(USER_ID, SETTINGS);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, "changed", StorageUtil.DEFAULT_CHARSET);
+    storage.storeNonce("nonce", USER_ID, projectId);
+
+    LocalStorageIo reopened = new LocalStorageIo(root);
+    assertEquals(USER_EMAIL, reopened.getUser(USER_ID).getUserEmail());
+    assertEquals(SETTINGS, reopened.loadSettings(USER_ID));
+    assertEquals(Arrays.asList(projectId), reopened.getProjects(USER_ID));
+    assertEquals("changed",
+        reopened.downloadFile(USER_ID, projectId, FILE_NAME1, StorageUtil.DEFAULT_CHARSET));
+    assertEquals(projectId, reopened.getNoncebyValue("nonce").getProjectId());
+    assertEquals(storage.getBlobCount(), reopened.getBlobCount());
+    // New projects don't reuse ids
+    assertTrue(reopened.createProject(USER_ID, project, SETTINGS) > projectId);
+  }
+
+  public void testExportProjectSourceZip() throws Exception {
+    final String USER_ID = "2100";
+    storage.getUser(USER_ID, "newuser2100@test.com");
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID, true, FILE_CONTENT_OUTPUT);
+
+    ProjectSourceZip zip = storage.exportProjectSourceZip(USER_ID, projectId, false, false,
+        null, false, false, false, false);
+    assertEquals(PROJECT_NAME + ".aia", zip.getFileName());
+    assertEquals(4, zip.getFileCount());
+    List<String> entries = new ArrayList<String>();
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.getContent()));
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      entries.add(entry.getName());
+    }
+    assertEquals(Arrays.asList(FILE_NAME1, FILE_NAME2, RAW_FILE_NAME1, RAW_FILE_NAME2),
+        entries);
+  }
+
+  public void testReadWhileBlobIsReplaced() throws Exception {
+    final String USER_ID = "2200";
+    final byte[] CONTENT_A = { (byte) 1 };
+    final byte[] CONTENT_B = { (byte) 2, (byte) 2 };
+    storage.getUser(USER_ID, "newuser2200@test.com");
+    final long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, true, CONTENT_A);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    // Each upload releases the blob of the content it replaces, which must
+    // not be deleted while it is being read
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 200; i++) {
+            storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, true,
+                (i % 2 == 0) ? CONTENT_B : CONTENT_A);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    };
+    writer.start();
+    try {
+      while (writer.isAlive()) {
+        byte[] content = storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+        assertTrue(Arrays.equals(CONTENT_A, content) || Arrays.equals(CONTENT_B, content));
+        assertEquals(4, storage.exportProjectSourceZip(USER_ID, projectId, false, false,
+            null, false, false, false, false).getFileCount());
+      }
+    } finally {
+      writer.join();
+    }
+    assertNull(failure.get());
+    assertTrue(Arrays.equals(CONTENT_A,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    // The readers' references are all released again
+    assertEquals(4, storage.getBlobCount());
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
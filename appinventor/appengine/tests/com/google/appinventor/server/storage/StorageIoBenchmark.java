@@ -0,0 +1,128 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.utils.config.GenerationDirectory;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Measures how many source file uploads and downloads per second
+ * {@link ObjectifyStorageIo}, on the local datastore the tests use, and
+ * {@link LocalStorageIo}, on a temporary directory, complete. Both are given
+ * the same project, whose screens are saved and read back in turn, the way
+ * the designer autosaves them.
+ *
+ * <p>This is not a unit test and is not run by the test suite; run it with
+ * {@code ant StorageIoBenchmark}.</p>
+ *
+ * <p>Usage: StorageIoBenchmark [file-size] [operations]</p>
+ */
+public final class StorageIoBenchmark {
+
+  private static final String USER_ID = "benchmark";
+  private static final String USER_EMAIL = "benchmark@test.com";
+  private static final int SCREENS = 10;
+
+  private StorageIoBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int fileSize = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+    System.out.println("storage\tupload-ops-per-sec\tdownload-ops-per-sec");
+
+    System.setProperty(GenerationDirectory.GENERATED_DIR_PROPERTY,
+        TestUtils.APP_INVENTOR_ROOT_DIR + "/appengine/build/tests/appengine-generated");
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    try {
+      run("objectify", new ObjectifyStorageIo(), fileSize, operations);
+    } finally {
+      helper.tearDown();
+    }
+
+    File root = Files.createTempDir();
+    try {
+      run("local", new LocalStorageIo(root), fileSize, operations);
+    } finally {
+      deleteRecursively(root);
+    }
+    System.exit(0);
+  }
+
+  private static void run(String name, StorageIo storage, int fileSize, int operations)
+      throws Exception {
+    char[] content = new char[fileSize];
+    Arrays.fill(content, 'x');
+    Project project = new Project("Benchmark");
+    project.setProjectType(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE);
+    for (int i = 0; i < SCREENS; i++) {
+      project.addTextFile(new TextFile(screenFileName(i), new String(content)));
+    }
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, "");
+
+    // Warm up, then time the same number of uploads and downloads.
+    upload(storage, projectId, content, operations / 10);
+    download(storage, projectId, operations / 10);
+    long start = System.nanoTime();
+    upload(storage, projectId, content, operations);
+    long uploadTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    download(storage, projectId, operations);
+    long downloadTime = System.nanoTime() - start;
+
+    System.out.println(name + "\t" + perSecond(operations, uploadTime) + "\t"
+        + perSecond(operations, downloadTime));
+  }
+
+  private static void upload(StorageIo storage, long projectId, char[] content, int operations)
+      throws Exception {
+    for (int i = 0; i < operations; i++) {
+      // Change the content so that every upload is a real change.
+      content[i % content.length] = (char) ('a' + i % 26);
+      storage.uploadFile(projectId, screenFileName(i % SCREENS), USER_ID, new String(content),
+          "UTF-8");
+    }
+  }
+
+  private static void download(StorageIo storage, long projectId, int operations) {
+    for (int i = 0; i < operations; i++) {
+      storage.downloadFile(USER_ID, projectId, screenFileName(i % SCREENS), "UTF-8");
+    }
+  }
+
+  private static String screenFileName(int screen) {
+    return "src/com/benchmark/Benchmark/Screen" + (screen + 1) + ".scm";
+  }
+
+  private static long perSecond(int operations, long nanos) {
+    return operations * 1000000000L / Math.max(nanos, 1);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,75 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link Executor} used by the {@link BuildServer} to run build tasks.
+ *
+ * <p>Implementations decide what happens when all build slots are in use:
+ * {@link NonQueuingExecutor} rejects the task and {@link QueuingExecutor}
+ * holds it in a bounded queue until a slot frees up.</p>
+ */
+interface BuildExecutor extends Executor {
+
+  /**
+   * Priority classes for build tasks. Lower ordinals are run first. The priority class of a build
+   * is chosen by the caller with the priority parameter of the build request, independently of
+   * what is built.
+   */
+  enum Priority {
+    // Builds that someone is waiting on, such as the builds of a live testing session.
+    HIGH,
+    NORMAL;
+
+    /**
+     * Returns the priority class named by the priority parameter of a build request.
+     *
+     * @param value the parameter, case insensitive; null or empty means {@link #NORMAL}
+     * @throws IllegalArgumentException if there is no priority class of that name
+     */
+    static Priority fromParameter(String value) {
+      if (value == null || value.isEmpty()) {
+        return NORMAL;
+      }
+      return valueOf(value.toUpperCase(Locale.ENGLISH));
+    }
+  }
+
+  /**
+   * Executes the given build task on behalf of the given user.
+   *
+   * @param runnable the build task
+   * @param userName the user that requested the build
+   * @param priority the priority class of the build
+   * @throws RejectedExecutionException if the task cannot be accepted
+   */
+  void execute(Runnable runnable, String userName, Priority priority);
+
+  /**
+   * Returns whether a task of the given user would currently be accepted. The answer may be out
+   * of date by the time the task is executed, so callers must still handle rejection; this only
+   * lets them avoid preparing a task that is going to be rejected.
+   *
+   * @param userName the user that requests the build
+   */
+  boolean hasCapacity(String userName);
+
+  int getMaxActiveTasks();
+
+  int getActiveTaskCount();
+
+  int getCompletedTaskCount();
+
+  /**
+   * Adds implementation specific figures to the /buildserver/vars output.
+   */
+  void addVariables(Map<String, String> variables);
+}
@@ -0,0 +1,145 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for the stages of a build, for the time builds wait in
+ * the queue and for whole builds.
+ *
+ * <p>The histograms are shared by all builds of the build server and are
+ * written out in the Prometheus text exposition format by
+ * {@link #writeMetrics}, so that they can be scraped and summed across a
+ * fleet of build servers.</p>
+ */
+final class BuildMetrics {
+
+  /**
+   * The timed stages of a build.
+   */
+  enum Stage {
+    EXTRACT("extract"),
+    YAIL_GENERATION("yail_generation"),
+    COMPILE_PERMIT_WAIT("compile_permit_wait"),
+    KAWA("kawa"),
+    DX("dx"),
+    AAPT("aapt"),
+    APK_BUILDER("apkbuilder"),
+    JAR_SIGNER("jarsigner"),
+    ZIPALIGN("zipalign");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  // The upper bounds of the histogram buckets, in seconds. The last bucket (+Inf) is implicit.
+  private static final double[] BUCKET_BOUNDS = {
+    0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500
+  };
+
+  private static final Map<Stage, Histogram> stageHistograms =
+      new EnumMap<Stage, Histogram>(Stage.class);
+  static {
+    for (Stage stage : Stage.values()) {
+      stageHistograms.put(stage, new Histogram());
+    }
+  }
+
+  private static final Histogram queueWaitHistogram = new Histogram();
+  private static final Histogram buildHistogram = new Histogram();
+
+  private BuildMetrics() {
+  }
+
+  /**
+   * Records that the given stage ran from the given start time until now.
+   *
+   * @param stage the stage
+   * @param startMillis the start time of the stage, from {@link System#currentTimeMillis}
+   */
+  static void recordStage(Stage stage, long startMillis) {
+    stageHistograms.get(stage).record(System.currentTimeMillis() - startMillis);
+  }
+
+  /**
+   * Records that a build waited in the queue from the given time until now.
+   */
+  static void recordQueueWait(long enqueuedMillis) {
+    queueWaitHistogram.record(System.currentTimeMillis() - enqueuedMillis);
+  }
+
+  /**
+   * Records that a build request was handled from the given time until now, including the time it
+   * waited in the queue and the time it took to send the results.
+   */
+  static void recordBuild(long receivedMillis) {
+    buildHistogram.record(System.currentTimeMillis() - receivedMillis);
+  }
+
+  /**
+   * Writes all histograms in the Prometheus text exposition format.
+   */
+  static void writeMetrics(StringBuilder out) {
+    String name = "buildserver_stage_duration_seconds";
+    writeHeader(out, name, "Time spent in each stage of a build.");
+    for (Map.Entry<Stage, Histogram> entry : stageHistograms.entrySet()) {
+      entry.getValue().write(out, name, "stage=\"" + entry.getKey().label + "\"");
+    }
+    name = "buildserver_queue_wait_seconds";
+    writeHeader(out, name, "Time builds waited for a build thread.");
+    queueWaitHistogram.write(out, name, null);
+    name = "buildserver_build_duration_seconds";
+    writeHeader(out, name, "Time from receiving a build request to sending its results.");
+    buildHistogram.write(out, name, null);
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" histogram\n");
+  }
+
+  /*
+   * A histogram with the fixed BUCKET_BOUNDS. Buckets are not cumulative here; they are summed
+   * when written out.
+   */
+  private static class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final AtomicLong sumMillis = new AtomicLong();
+
+    void record(long millis) {
+      double seconds = millis / 1000.0;
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS.length && seconds > BUCKET_BOUNDS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      sumMillis.addAndGet(millis);
+    }
+
+    void write(StringBuilder out, String name, String labels) {
+      String prefix = labels == null ? "{" : "{" + labels + ",";
+      long cumulative = 0;
+      for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+        cumulative += buckets.get(i);
+        String bound = i < BUCKET_BOUNDS.length ? Double.toString(BUCKET_BOUNDS[i]) : "+Inf";
+        out.append(name).append("_bucket").append(prefix).append("le=\"").append(bound)
+            .append("\"} ").append(cumulative).append('\n');
+      }
+      String suffix = labels == null ? " " : "{" + labels + "} ";
+      out.append(name).append("_sum").append(suffix).append(sumMillis.get() / 1000.0)
+          .append('\n');
+      // The count is the sum of the buckets, so that a scrape never sees them disagree.
+      out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+  }
+}
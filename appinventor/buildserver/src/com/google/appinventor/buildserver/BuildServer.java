@@ -6,13 +6,14 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
 import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
 
+import org.apache.commons.io.FileUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
@@ -26,7 +27,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PushbackInputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
@@ -41,6 +45,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -79,6 +84,47 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a free build slot. 0 means builds are " +
+        "rejected when all slots are busy. Requires --maxSimultaneousBuilds.")
+    int maxQueuedBuilds = 0;  // The default is no queue.
+
+    @Option(name = "--maxQueuedBuildsPerUser",
+      usage = "Maximum number of builds a single user can have waiting for a free build slot.")
+    int maxQueuedBuildsPerUser = 2;
+
+    @Option(name = "--maxSimultaneousCompiles",
+      usage = "Maximum number of Kawa, DX or YailGenerator processes that can run in parallel, " +
+        "across all builds. 0 means the limit is chosen from the number of processors and the " +
+        "available memory.")
+    int maxSimultaneousCompiles = 0;
+
+    @Option(name = "--kawaDaemonBuilds",
+      usage = "Number of builds after which a warm Kawa compiler process is replaced. " +
+        "0 means a new Kawa process is started for every build.")
+    int kawaDaemonBuilds = 100;
+
+    @Option(name = "--classCacheDir",
+      usage = "The directory to cache the compiled classes of unchanged screens, such as " +
+        "~/.appinventor/classes. It must belong to the user running the build server and is " +
+        "made accessible to that user only. If not given, every screen is compiled in every build.")
+    String classCacheDir = null;
+
+    @Option(name = "--classCacheMaxEntries",
+      usage = "Maximum number of screens kept in the class cache.")
+    int classCacheMaxEntries = 10000;
+
+    @Option(name = "--resourceCacheDir",
+      usage = "The directory where the tools and libraries used by builds are unpacked. It can " +
+        "be shared by the build servers of a user. It must belong to the user running the build " +
+        "server and is made accessible to that user only. Defaults to ~/.appinventor/resources.")
+    String resourceCacheDir = null;
+
+    @Option(name = "--keyPairPoolSize",
+      usage = "Number of key pairs for new keystores that are generated ahead of time. " +
+        "-1 means keytool is run for every new keystore.")
+    int keyPairPoolSize = 4;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -109,6 +155,9 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // The chunk size used to stream the build results to the callback url.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -130,9 +179,10 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildExecutor buildExecutor;
 
-  // The input zip file. It will be deleted in cleanUp.
+  // The input zip file of a synchronous build request. It will be deleted in cleanUp. Async
+  // build requests extract the request body without writing it to a file, so it stays null.
   private File inputZip;
 
   // The built APK file for this build request, if any.
@@ -244,6 +294,23 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    buildExecutor.addVariables(variables);
+    variables.put("maximum-simultaneous-compiles-allowed", Compiler.getMaxSimultaneousCompiles() + "");
+    variables.put("waiting-compiles", Compiler.getWaitingCompileCount() + "");
+    variables.put("dex-cache-hits", DexExecTask.getPreDexHitCount() + "");
+    variables.put("dex-cache-misses", DexExecTask.getPreDexMissCount() + "");
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      kawaCompilerPool.addVariables(variables);
+    }
+    ClassCache classCache = Compiler.getClassCache();
+    if (classCache != null) {
+      classCache.addVariables(variables);
+    }
+    KeyStoreGenerator keyStoreGenerator = ProjectBuilder.getKeyStoreGenerator();
+    if (keyStoreGenerator != null) {
+      keyStoreGenerator.addVariables(variables);
+    }
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -255,6 +322,33 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns the build latency histograms and the build request counters in the Prometheus text
+   * exposition format, for scraping.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response metrics() throws IOException {
+    StringBuilder text = new StringBuilder();
+    BuildMetrics.writeMetrics(text);
+    appendCounter(text, "buildserver_async_build_requests_total",
+      "Async build requests received.", asyncBuildRequests.get());
+    appendCounter(text, "buildserver_rejected_async_build_requests_total",
+      "Async build requests rejected.", rejectedAsyncBuildRequests.get());
+    appendCounter(text, "buildserver_successful_build_requests_total",
+      "Build requests that produced an APK.", successfulBuildRequests.get());
+    appendCounter(text, "buildserver_failed_build_requests_total",
+      "Build requests that failed.", failedBuildRequests.get());
+    return Response.ok(text.toString(), "text/plain; version=0.0.4").build();
+  }
+
+  private static void appendCounter(StringBuilder text, String name, String help, long value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -387,11 +481,18 @@ public class BuildServer {
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
    * as connection.getResponseCode().
    *
+   * The input zip is extracted straight from the request body into the directory the project is
+   * built in, and the result zip is streamed straight into the body of the callback request, so
+   * neither zip is ever written to disk.
+   *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
-   * @param inputZipFile  The zip file representing the App Inventor source code.
+   * @param priority  The priority class of the build, "high" or "normal" (the default). High
+   *     priority builds are queued ahead of the others when the build server is at maximum
+   *     capacity. The priority doesn't change what is built.
+   * @param inputZipStream  The zip stream representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
   @POST
@@ -401,17 +502,17 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
-    final File inputZipFile) throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in
-    // cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
+    @QueryParam("priority") final String priority,
+    InputStream inputZipStream) throws IOException {
+    final long receivedMillis = System.currentTimeMillis();
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
-    //for the request for update part, the file should be empty
-    if (inputZip.length() == 0L) {
-      cleanUp();
-    } else {
+    //for the request for update part, the body should be empty
+    PushbackInputStream requestBody = new PushbackInputStream(inputZipStream);
+    int firstByte = requestBody.read();
+    if (firstByte != -1) {
+      requestBody.unread(firstByte);
+
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
         return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Temporary build error, try again.").build();
@@ -437,6 +538,15 @@ public class BuildServer {
 
       asyncBuildRequests.incrementAndGet();
 
+      final BuildExecutor.Priority buildPriority;
+      try {
+        buildPriority = BuildExecutor.Priority.fromParameter(priority);
+      } catch (IllegalArgumentException e) {
+        rejectedAsyncBuildRequests.incrementAndGet();
+        return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+          .entity("Unknown build priority " + priority + ".").build();
+      }
+
       if (gitBuildVersion != null && !gitBuildVersion.isEmpty()) {
         if (!gitBuildVersion.equals(GitBuildId.getVersion())) {
           // This build server is not compatible with the App Inventor instance. Log this as severe
@@ -447,7 +557,8 @@ public class BuildServer {
           // This request was rejected because the gitBuildVersion parameter did not equal the
           // expected value.
           rejectedAsyncBuildRequests.incrementAndGet();
-          cleanUp();
+          // Nothing has been extracted or built for this request yet, so there is nothing to clean
+          // up.
           // Here, we use CONFLICT (response code 409), which means (according to rfc2616, section
           // 10) "The request could not be completed due to a conflict with the current state of the
           // resource."
@@ -455,14 +566,36 @@ public class BuildServer {
         }
       }
 
+      // Extracting the project is a large part of the cost of a request, so don't do it for a
+      // build that the executor is going to reject. The request body can only be read while the
+      // request is being handled, so the project is extracted here rather than in the build task.
+      if (!buildExecutor.hasCapacity(userName)) {
+        rejectedAsyncBuildRequests.incrementAndGet();
+        return atMaximumCapacity();
+      }
+
+      File projectRoot;
+      try {
+        projectRoot = projectBuilder.extractProject(new BufferedInputStream(requestBody));
+      } catch (IOException e) {
+        // Report the problem through the callback, like any other build error.
+        LOG.severe("unexpected problem extracting project file from request: " + e.getMessage());
+        projectRoot = null;
+      }
+      final File extractedProjectRoot = projectRoot;
+
+      final long enqueuedMillis = System.currentTimeMillis();
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
+            BuildMetrics.recordQueueWait(enqueuedMillis);
             int count = buildCount.incrementAndGet();
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
+              Result buildResult = extractedProjectRoot == null
+                ? Result.createFailingResult("", "Problems processing zip file.")
+                : buildExtractedProject(userName, extractedProjectRoot);
               // Send zip back to the callbackUrl
               LOG.info("CallbackURL: " + callbackUrlStr);
               URL callbackUrl = new URL(callbackUrlStr);
@@ -474,17 +607,12 @@ public class BuildServer {
               connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
               connection.setConnectTimeout(60000);
               connection.setReadTimeout(60000);
+              // Without a streaming mode, HttpURLConnection would hold the whole zip in memory.
+              connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
               BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
               try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
+                writeResultZip(buildResult, bufferedOutputStream);
+                checkMemory();
               } finally {
                 bufferedOutputStream.close();
               }
@@ -493,42 +621,62 @@ public class BuildServer {
               }
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
-              LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+              LOG.severe("Exception: " + e.getMessage());
             } finally {
               cleanUp();
               checkMemory();
+              BuildMetrics.recordBuild(receivedMillis);
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
       try {
-        buildExecutor.execute(buildTask);
+        buildExecutor.execute(buildTask, userName, buildPriority);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy (and, if queuing is enabled, the queue is full).
         rejectedAsyncBuildRequests.incrementAndGet();
-        cleanUp();
-        // Here, we use SERVICE_UNAVAILABLE (response code 503), which
-        // means (according to rfc2616, section 10) "The server is
-        // currently unable to handle the request due to a temporary
-        // overloading or maintenance of the server. The implication
-        // is that this is a temporary condition which will be
-        // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        if (extractedProjectRoot != null) {
+          FileUtils.deleteQuietly(extractedProjectRoot);
+        }
+        return atMaximumCapacity();
       }
     }
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
       .entity("" + projectBuilder.getProgress()).build();
   }
 
+  private static Response atMaximumCapacity() {
+    // Here, we use SERVICE_UNAVAILABLE (response code 503), which
+    // means (according to rfc2616, section 10) "The server is
+    // currently unable to handle the request due to a temporary
+    // overloading or maintenance of the server. The implication
+    // is that this is a temporary condition which will be
+    // alleviated after some delay."
+    return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+  }
+
   private void buildAndCreateZip(String userName, File inputZipFile)
     throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
+    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputZip));
+    try {
+      writeResultZip(buildResult, outputStream);
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /*
+   * Writes the zip of the build results to the given stream, which is flushed but not closed. The
+   * APK and the keystore are streamed into the zip straight from the output directory.
+   */
+  private void writeResultZip(Result buildResult, OutputStream outputStream)
+    throws IOException, JSONException {
+    boolean buildSucceeded = buildResult.succeeded();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
     if (buildSucceeded) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
@@ -546,8 +694,9 @@ public class BuildServer {
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
+    // Finish rather than close the zip, so that the caller can close the underlying stream.
+    zipOutputStream.finish();
     zipOutputStream.flush();
-    zipOutputStream.close();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -562,14 +711,27 @@ public class BuildServer {
   }
 
   private Result build(String userName, File zipFile) throws IOException {
+    createOutputDir();
+    return handleBuildResult(projectBuilder.build(userName, new ZipFile(zipFile), outputDir,
+      false, commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir));
+  }
+
+  private Result buildExtractedProject(String userName, File projectRoot) {
+    createOutputDir();
+    return handleBuildResult(projectBuilder.build(userName, projectRoot, outputDir,
+      false, commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir));
+  }
+
+  private void createOutputDir() {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+  }
+
+  private Result handleBuildResult(Result buildResult) {
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -586,6 +748,10 @@ public class BuildServer {
     return buildResult;
   }
 
+  /*
+   * Deletes the files of this build request. The input zip is only deleted for synchronous
+   * requests; the project root that an async request extracts is deleted by the build itself.
+   */
   private void cleanUp() {
     if (inputZip != null) {
       inputZip.delete();
@@ -611,6 +777,11 @@ public class BuildServer {
       + mBean.getHeapMemoryUsage().getUsed() + " bytes");
   }
 
+  @VisibleForTesting
+  static void setBuildExecutor(BuildExecutor executor) {
+    buildExecutor = executor;
+  }
+
   public static void main(String[] args) throws IOException {
     // TODO(markf): Eventually we'll figure out how to appropriately start and stop the server when
     // it's run in a production environment.   For now, just kill the process
@@ -625,7 +796,54 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    // A queue only makes sense if the number of simultaneous builds is limited.
+    if (commandLineOptions.maxQueuedBuilds > 0 && commandLineOptions.maxSimultaneousBuilds > 0) {
+      buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxQueuedBuildsPerUser);
+    } else {
+      buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    }
+    int maxSimultaneousCompiles = commandLineOptions.maxSimultaneousCompiles;
+    if (maxSimultaneousCompiles == 0) {
+      maxSimultaneousCompiles =
+        Compiler.getDefaultMaxSimultaneousCompiles(commandLineOptions.childProcessRamMb);
+    }
+    Compiler.setMaxSimultaneousCompiles(maxSimultaneousCompiles);
+    if (commandLineOptions.kawaDaemonBuilds > 0) {
+      // At most maxSimultaneousCompiles compiler processes are in use at the same time.
+      Compiler.setKawaCompilerPool(
+        new KawaCompilerPool(maxSimultaneousCompiles, commandLineOptions.kawaDaemonBuilds));
+    }
+    if (commandLineOptions.resourceCacheDir != null) {
+      Compiler.setResourceCacheDir(new File(commandLineOptions.resourceCacheDir));
+    }
+    if (commandLineOptions.keyPairPoolSize >= 0) {
+      ProjectBuilder.setKeyStoreGenerator(
+        new KeyStoreGenerator(commandLineOptions.keyPairPoolSize));
+    }
+    if (commandLineOptions.classCacheDir != null) {
+      try {
+        Compiler.setClassCache(new ClassCache(new File(commandLineOptions.classCacheDir),
+          commandLineOptions.classCacheMaxEntries));
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "Unable to use the class cache; every screen will be compiled", e);
+      }
+    }
+    if (commandLineOptions.dexCacheDir != null) {
+      // Fill the dex cache with the runtime libraries in the background, so that even the first
+      // builds only need to dex the classes of the user's project.
+      Thread preDexThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          if (!Compiler.preDexRuntimeLibraries(commandLineOptions.dexCacheDir,
+              commandLineOptions.childProcessRamMb)) {
+            LOG.warning("Unable to pre-dex the runtime libraries");
+          }
+        }
+      });
+      preDexThread.setDaemon(true);
+      preDexThread.start();
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -638,6 +856,11 @@ public class BuildServer {
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
     }
+    LOG.info("Maximum simultaneous Kawa or DX processes = " + maxSimultaneousCompiles);
+    if (buildExecutor instanceof QueuingExecutor) {
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds
+        + " (" + commandLineOptions.maxQueuedBuildsPerUser + " per user)");
+    }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
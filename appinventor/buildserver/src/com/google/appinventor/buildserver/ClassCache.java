@@ -0,0 +1,243 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed, on-disk cache of the class files that Kawa generates
+ * for a single screen (or for the YAIL runtime).
+ *
+ * <p>Each entry is a directory named after its key, holding the class files
+ * at their paths relative to the classes directory of the build. The key is
+ * computed by the caller from everything that the class files depend on; see
+ * {@link #newKey}. Entries are written to a temporary directory that is then
+ * renamed, so a build never sees a partially written entry. When there are
+ * more than the given number of entries, the least recently used ones are
+ * removed.</p>
+ *
+ * <p>Since the cached class files end up in the user's APK, the cache
+ * directory must belong to the server user and is made accessible to that
+ * user only. Each entry also lists the SHA-256 of its class files, which are
+ * checked when the entry is fetched.</p>
+ */
+final class ClassCache {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ClassCache.class.getName());
+
+  // The file of an entry that lists the SHA-256 and the path of each of its class files.
+  private static final String MANIFEST = "classes.sha256";
+
+  private final File cacheDir;
+  private final int maxEntries;
+
+  private final AtomicInteger hits = new AtomicInteger(0);
+  private final AtomicInteger misses = new AtomicInteger(0);
+
+  /**
+   * Creates a ClassCache.
+   *
+   * @param cacheDir the directory that holds the cache entries
+   * @param maxEntries the maximum number of entries to keep
+   * @throws IOException if the cache directory couldn't be created, or is
+   *     owned by another user
+   */
+  ClassCache(File cacheDir, int maxEntries) throws IOException {
+    Preconditions.checkArgument(maxEntries > 0);
+    this.cacheDir = cacheDir;
+    this.maxEntries = maxEntries;
+    PrivateDirectories.check(cacheDir, "Class cache");
+  }
+
+  /**
+   * Returns a hasher for the key of a cache entry. Callers add everything that the cached class
+   * files depend on.
+   */
+  static Hasher newKey() {
+    return Hashing.md5().newHasher();
+  }
+
+  /**
+   * Copies the class files of the entry with the given key into the classes directory.
+   *
+   * @param key the key of the entry
+   * @param classesDir the classes directory of the build
+   * @return true if the entry was found, verified and copied
+   */
+  boolean fetch(String key, File classesDir) {
+    File entryDir = new File(cacheDir, key);
+    if (!entryDir.isDirectory()) {
+      misses.incrementAndGet();
+      return false;
+    }
+    try {
+      // Read and verify all the class files before writing any of them, so that the bytes that
+      // are written are the ones that were verified.
+      Map<String, byte[]> classFiles = readEntry(entryDir);
+      if (classFiles == null) {
+        LOG.warning("Removing class cache entry " + key + ", which doesn't match its manifest");
+        FileUtils.deleteQuietly(entryDir);
+        misses.incrementAndGet();
+        return false;
+      }
+      for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+        File file = new File(classesDir, classFile.getKey());
+        Files.createParentDirs(file);
+        Files.write(classFile.getValue(), file);
+      }
+      // Keep track of when the entry was last used, for the eviction.
+      entryDir.setLastModified(System.currentTimeMillis());
+      hits.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      // The entry may have been evicted while it was copied.
+      LOG.log(Level.WARNING, "Unable to read class cache entry " + key, e);
+      misses.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Stores the given class files as the entry with the given key, unless the entry exists.
+   *
+   * @param key the key of the entry
+   * @param classesDir the classes directory of the build
+   * @param classFiles the class files to store, which must be in the classes directory
+   */
+  void store(String key, File classesDir, Collection<File> classFiles) {
+    File entryDir = new File(cacheDir, key);
+    if (entryDir.isDirectory()) {
+      return;
+    }
+    String classesPath = classesDir.getAbsolutePath() + File.separator;
+    File tempDir = new File(cacheDir, "tmp-" + key + "-" + UUID.randomUUID());
+    try {
+      StringBuilder manifest = new StringBuilder();
+      for (File classFile : classFiles) {
+        String path = classFile.getAbsolutePath();
+        Preconditions.checkArgument(path.startsWith(classesPath));
+        String relativePath = path.substring(classesPath.length());
+        byte[] content = Files.toByteArray(classFile);
+        File cachedFile = new File(tempDir, relativePath);
+        Files.createParentDirs(cachedFile);
+        Files.write(content, cachedFile);
+        manifest.append(Hashing.sha256().hashBytes(content)).append(' ')
+            .append(relativePath).append('\n');
+      }
+      File manifestFile = new File(tempDir, MANIFEST);
+      Files.createParentDirs(manifestFile);
+      Files.write(manifest.toString(), manifestFile, Charsets.UTF_8);
+      if (!tempDir.renameTo(entryDir)) {
+        // Another build stored the same entry in the meantime.
+        FileUtils.deleteDirectory(tempDir);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to write class cache entry " + key, e);
+      FileUtils.deleteQuietly(tempDir);
+      return;
+    }
+    evict();
+  }
+
+  /*
+   * Reads the class files listed in the manifest of the given entry, keyed by their relative
+   * paths. Returns null if the manifest is missing or malformed, or if a class file is missing,
+   * outside of the entry, or doesn't have the listed SHA-256.
+   */
+  private static Map<String, byte[]> readEntry(File entryDir) throws IOException {
+    File manifestFile = new File(entryDir, MANIFEST);
+    if (!manifestFile.isFile()) {
+      return null;
+    }
+    String entryPath = entryDir.getCanonicalPath() + File.separator;
+    List<String> lines = Files.readLines(manifestFile, Charsets.UTF_8);
+    Map<String, byte[]> classFiles = new LinkedHashMap<String, byte[]>();
+    for (String line : lines) {
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        return null;
+      }
+      String hash = line.substring(0, space);
+      String relativePath = line.substring(space + 1);
+      File file = new File(entryDir, relativePath);
+      if (!file.getCanonicalPath().startsWith(entryPath) || !file.isFile()) {
+        return null;
+      }
+      byte[] content = Files.toByteArray(file);
+      if (!Hashing.sha256().hashBytes(content).toString().equals(hash)) {
+        return null;
+      }
+      classFiles.put(relativePath, content);
+    }
+    return classFiles;
+  }
+
+  /*
+   * Removes the least recently used entries if there are too many.
+   */
+  private void evict() {
+    File[] entries = cacheDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory() && !file.getName().startsWith("tmp-");
+      }
+    });
+    if (entries == null || entries.length <= maxEntries) {
+      return;
+    }
+    // Take the times once, since entries can be used while they are sorted.
+    final Map<File, Long> lastUsed = new HashMap<File, Long>();
+    for (File entry : entries) {
+      lastUsed.put(entry, entry.lastModified());
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return lastUsed.get(a).compareTo(lastUsed.get(b));
+      }
+    });
+    for (int i = 0; i < entries.length - maxEntries; i++) {
+      FileUtils.deleteQuietly(entries[i]);
+    }
+  }
+
+  int getHitCount() {
+    return hits.get();
+  }
+
+  int getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Adds the cache figures to the /buildserver/vars output.
+   */
+  void addVariables(Map<String, String> variables) {
+    variables.put("class-cache-hits", hits.get() + "");
+    variables.put("class-cache-misses", misses.get() + "");
+  }
+}
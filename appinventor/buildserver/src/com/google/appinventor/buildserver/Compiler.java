@@ -8,9 +8,12 @@ package com.google.appinventor.buildserver;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
@@ -29,19 +32,25 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,8 +77,22 @@ public final class Compiler {
 
   public static int currentProgress = 10;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Kawa, DX and YailGenerator processes can use a lot of memory and CPU. We limit the number of
+  // these child processes that run at the same time with this semaphore. By default only one runs
+  // at a time; the build server sizes it to the machine with setMaxSimultaneousCompiles().
+  private static volatile Semaphore childProcessPermits = new Semaphore(1, true);
+  private static volatile int childProcessPermitCount = 1;
+
+  // Warm Kawa compiler processes. If null, a new Kawa process is started for every build.
+  private static volatile KawaCompilerPool kawaCompilerPool;
+
+  // Class files of the screens of earlier builds. If null, every screen is compiled.
+  private static volatile ClassCache classCache;
+  private static final ConcurrentMap<String, String> resourceHashes =
+      new ConcurrentHashMap<String, String>();
+
+  // The directory, relative to the classes directory, of the class files of the YAIL runtime.
+  private static final String YAIL_RUNTIME_PACKAGE_DIR = "com/google/youngandroid";
 
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
@@ -176,13 +199,12 @@ public final class Compiler {
       new ConcurrentHashMap<String, Set<String>>();
 
   /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
+   * Cache of the resources that we've written out as files.
+   * Don't use this cache directly. Please call getResource() with one of the
+   * constants above to get the path to a resource.
    */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
+  private static volatile ResourceCache resources = new ResourceCache(
+      new File(System.getProperty("user.home"), ".appinventor" + File.separator + "resources"));
 
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String COMPILATION_ERROR =
@@ -828,6 +850,7 @@ public final class Compiler {
    * can call System.exit(1), which will bring down our server.
    */
   private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClassesDir) {
+    long startApkBuilder = System.currentTimeMillis();
     try {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
@@ -837,6 +860,7 @@ public final class Compiler {
           "classes2.dex");
       }
       apkBuilder.sealApk();
+      BuildMetrics.recordStage(BuildMetrics.Stage.APK_BUILDER, startApkBuilder);
       return true;
     } catch (Exception e) {
       // This is fatal.
@@ -933,6 +957,11 @@ public final class Compiler {
       classpath.append(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
       classpath.append(COLON);
 
+      // Everything on the class path, for the keys of the class cache.
+      List<String> classpathResources = Lists.newArrayList(KAWA_RUNTIME, ACRA_RUNTIME,
+          SIMPLE_ANDROID_RUNTIME_JAR);
+      List<String> classpathExtFiles = Lists.newArrayList();
+
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
       for (String type : extCompTypes) {
@@ -941,6 +970,7 @@ public final class Compiler {
           classpath.append(sourcePath);
           classpath.append(COLON);
           addedExtJars.add(sourcePath);
+          classpathExtFiles.add(sourcePath);
         }
       }
 
@@ -952,8 +982,10 @@ public final class Compiler {
 
           if (simpleCompTypes.contains(type)) {
             sourcePath = getResource(pathSuffix);
+            classpathResources.add(pathSuffix);
           } else if (extCompTypes.contains(type)) {
             sourcePath = getExtCompDirPath(type) + pathSuffix;
+            classpathExtFiles.add(sourcePath);
           } else {
             userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
             return false;
@@ -967,29 +999,67 @@ public final class Compiler {
       }
 
       classpath.append(getResource(ANDROID_RUNTIME));
+      classpathResources.add(ANDROID_RUNTIME);
 
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // Take the screens that have not changed since an earlier build from the class cache, and
+      // only compile the others.
+      ClassCache cache = classCache;
+      List<String> sourceFileNamesToCompile = sourceFileNames;
+      List<String> classFileNamesToCompile = classFileNames;
+      List<String> screenKeysToCompile = Lists.newArrayList();
+      String runtimeKey = null;
+      if (cache != null) {
+        String compileKey = getCompileKey(classpathResources, classpathExtFiles, packagePrefix);
+        runtimeKey = ClassCache.newKey().putString(compileKey).putString(YAIL_RUNTIME)
+            .hash().toString();
+        sourceFileNamesToCompile = Lists.newArrayList();
+        classFileNamesToCompile = Lists.newArrayList();
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          String screenKey = ClassCache.newKey().putString(compileKey)
+              .putBytes(Files.toByteArray(new File(sourceFileNames.get(i)))).hash().toString();
+          if (!cache.fetch(screenKey, classesDir)) {
+            sourceFileNamesToCompile.add(sourceFileNames.get(i));
+            classFileNamesToCompile.add(classFileNames.get(i));
+            screenKeysToCompile.add(screenKey);
+          }
+        }
+        if (sourceFileNamesToCompile.isEmpty() && cache.fetch(runtimeKey, classesDir)) {
+          out.println("All screens are unchanged, skipping the Kawa compile");
+          LOG.info("All screens are unchanged, skipping the Kawa compile");
+          return true;
+        }
+      }
+
+      List<String> jvmArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
+      Collections.addAll(jvmArgs,
           "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
+          "-mx" + mx + "M");
+      List<String> kawaArgs = Lists.newArrayList();
+      Collections.addAll(kawaArgs,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packagePrefix,
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
+      kawaArgs.addAll(sourceFileNamesToCompile);
+      kawaArgs.add(yailRuntime);
+      List<String> kawaCommandArgs = Lists.newArrayList();
+      kawaCommandArgs.add(System.getProperty("java.home") + "/bin/java");
+      kawaCommandArgs.addAll(jvmArgs);
+      Collections.addAll(kawaCommandArgs,
+          "-cp", classpath.toString(),
+          "kawa.repl",
+          "-f", yailRuntime);
+      kawaCommandArgs.addAll(kawaArgs);
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
       long start = System.currentTimeMillis();
@@ -998,9 +1068,28 @@ public final class Compiler {
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      Semaphore permits = acquireChildProcessPermit();
+      long startKawa = System.currentTimeMillis();
+      try {
+        KawaCompilerPool pool = kawaCompilerPool;
+        // The class path of a project with extensions is never seen again, so there is no point
+        // in keeping a compiler process for it.
+        if (pool != null && extCompTypes.isEmpty()) {
+          try {
+            kawaSuccess = pool.compile(classpath.toString(), yailRuntime, jvmArgs, kawaArgs,
+                System.out, new PrintStream(kawaOutputStream));
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Kawa compiler process failed, starting a new Kawa process", e);
+            kawaSuccess = Execution.execute(null, kawaCommandLine,
+                System.out, new PrintStream(kawaOutputStream));
+          }
+        } else {
+          kawaSuccess = Execution.execute(null, kawaCommandLine,
+              System.out, new PrintStream(kawaOutputStream));
+        }
+      } finally {
+        BuildMetrics.recordStage(BuildMetrics.Stage.KAWA, startKawa);
+        permits.release();
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
@@ -1024,10 +1113,22 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (cache != null && kawaSuccess) {
+        for (int i = 0; i < classFileNamesToCompile.size(); i++) {
+          cache.store(screenKeysToCompile.get(i), classesDir,
+              getScreenClassFiles(new File(classFileNamesToCompile.get(i))));
+        }
+        cache.store(runtimeKey, classesDir, getRuntimeClassFiles(classesDir));
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
       return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
+      return false;
     }
 
     return true;
@@ -1064,12 +1165,14 @@ public final class Compiler {
         apkAbsolutePath,
         "AndroidKey"
     };
+    long startJarSigner = System.currentTimeMillis();
     if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
       LOG.warning("YAIL compiler - jarsigner execution failed.");
       err.println("YAIL compiler - jarsigner execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
     }
+    BuildMetrics.recordStage(BuildMetrics.Stage.JAR_SIGNER, startJarSigner);
 
     return true;
   }
@@ -1117,6 +1220,7 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
       return false;
     }
+    BuildMetrics.recordStage(BuildMetrics.Stage.ZIPALIGN, startZipAlign);
     String zipALignTimeMessage = "ZIPALIGN time: " +
         ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
     out.println(zipALignTimeMessage);
@@ -1227,7 +1331,17 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
+    boolean retry = false;
+    Semaphore permits;
+    try {
+      permits = acquireChildProcessPermit();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+      return false;
+    }
+    long startDexTask = System.currentTimeMillis();
+    try {
       setProgress(50);
       dxSuccess = dexTask.execute(inputList);
       if (dxSuccess && (class2List.size() > 0)) {
@@ -1238,15 +1352,22 @@ public final class Compiler {
         setProgress(75);
         hasSecondDex = true;
       } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
-        }
+        retry = true;
+      }
+    } finally {
+      BuildMetrics.recordStage(BuildMetrics.Stage.DX, startDexTask);
+      // Release the permit before a retry so that the retry does not wait on itself.
+      permits.release();
+    }
+    if (retry) {
+      LOG.info("DX execution failed, trying with fewer libraries.");
+      if (secondTry) {        // Already tried the more conservative approach!
+        LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
+        err.println("YAIL compiler - DX execution failed.");
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      } else {
+        return runDx(classesDir, dexedClassesDir, true);
       }
     }
     if (!dxSuccess) {
@@ -1301,6 +1422,7 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
       return false;
     }
+    BuildMetrics.recordStage(BuildMetrics.Stage.AAPT, startAapt);
     String aaptTimeMessage = "AAPT time: " +
         ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
     out.println(aaptTimeMessage);
@@ -1390,38 +1512,197 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Sets the maximum number of Kawa, DX or YailGenerator child processes that may run at the
+   * same time across all builds in this JVM. This should be called before any build is started.
+   *
+   * @param maxSimultaneousCompiles the maximum number of simultaneous child processes
+   */
+  static void setMaxSimultaneousCompiles(int maxSimultaneousCompiles) {
+    Preconditions.checkArgument(maxSimultaneousCompiles > 0);
+    childProcessPermits = new Semaphore(maxSimultaneousCompiles, true);
+    childProcessPermitCount = maxSimultaneousCompiles;
+  }
+
+  static int getMaxSimultaneousCompiles() {
+    return childProcessPermitCount;
+  }
+
+  /**
+   * Sets the pool of warm Kawa compiler processes used to compile YAIL sources, or null to start
+   * a new Kawa process for every build.
+   */
+  static void setKawaCompilerPool(KawaCompilerPool pool) {
+    kawaCompilerPool = pool;
+  }
+
+  static KawaCompilerPool getKawaCompilerPool() {
+    return kawaCompilerPool;
+  }
+
+  /**
+   * Sets the cache of the class files of unchanged screens, or null to compile all of the
+   * screens of every build.
+   */
+  static void setClassCache(ClassCache cache) {
+    classCache = cache;
+  }
+
+  static ClassCache getClassCache() {
+    return classCache;
+  }
+
+  /*
+   * Returns the part of the class cache keys that is shared by all of the screens of the project:
+   * the YAIL runtime, the content of everything on the class path, the package and the set of
+   * components.
+   */
+  private String getCompileKey(List<String> classpathResources, List<String> classpathExtFiles,
+      String packagePrefix) throws IOException {
+    Hasher key = ClassCache.newKey();
+    key.putString(getResourceHash(YAIL_RUNTIME));
+    for (String resource : classpathResources) {
+      key.putString(getResourceHash(resource));
+    }
+    for (String extFile : classpathExtFiles) {
+      key.putString(Files.hash(new File(extFile), Hashing.md5()).toString());
+    }
+    key.putString(packagePrefix);
+    for (String type : new TreeSet<String>(simpleCompTypes)) {
+      key.putString(type);
+    }
+    for (String type : new TreeSet<String>(extCompTypes)) {
+      key.putString(type);
+    }
+    return key.hash().toString();
+  }
+
+  /*
+   * Returns the MD5 hash of the content of a resource. Resources don't change while the build
+   * server runs, so the hash is computed once.
+   */
+  private static String getResourceHash(String resourcePath) throws IOException {
+    String hash = resourceHashes.get(resourcePath);
+    if (hash == null) {
+      hash = Files.hash(new File(getResource(resourcePath)), Hashing.md5()).toString();
+      resourceHashes.put(resourcePath, hash);
+    }
+    return hash;
+  }
+
+  /*
+   * Returns the class files that Kawa generated for a screen: the given class file and its inner
+   * classes.
+   */
+  private static List<File> getScreenClassFiles(File classFile) {
+    final String className = classFile.getName().substring(0,
+        classFile.getName().length() - ".class".length());
+    File[] files = classFile.getParentFile().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.equals(className + ".class")
+            || (name.startsWith(className + "$") && name.endsWith(".class"));
+      }
+    });
+    return files == null ? new ArrayList<File>() : Arrays.asList(files);
+  }
+
+  /*
+   * Returns the class files that Kawa generated for the YAIL runtime.
+   */
+  private static List<File> getRuntimeClassFiles(File classesDir) {
+    File[] files = new File(classesDir, YAIL_RUNTIME_PACKAGE_DIR).listFiles();
+    return files == null ? new ArrayList<File>() : Arrays.asList(files);
+  }
+
+  /**
+   * Returns the number of builds that are waiting to launch a Kawa, DX or YailGenerator process.
+   */
+  static int getWaitingCompileCount() {
+    return childProcessPermits.getQueueLength();
+  }
+
+  /**
+   * Pre-dexes the runtime libraries that every build uses into the given dex cache directory, so
+   * that the first build after a restart only needs to dex the classes of the user's project.
+   *
+   * @param dexCacheDir the directory to cache the pre-dexed libraries
+   * @param childProcessRamMb maximum ram that can be used by a child process, in MB
+   * @return true if all of the runtime libraries are in the dex cache
+   */
+  static boolean preDexRuntimeLibraries(String dexCacheDir, int childProcessRamMb) {
+    createDir(new File(dexCacheDir));
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setDexedLibs(dexCacheDir);
+    List<File> runtimeLibraries = new ArrayList<File>();
+    runtimeLibraries.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    runtimeLibraries.add(new File(getResource(KAWA_RUNTIME)));
+    runtimeLibraries.add(new File(getResource(ACRA_RUNTIME)));
+    Semaphore permits;
+    try {
+      permits = acquireChildProcessPermit();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      return dexTask.preDexLibraries(runtimeLibraries);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Returns the number of Kawa, DX or YailGenerator child processes that this machine can run at
+   * the same time, based on the number of processors and, if it is known, the amount of physical
+   * memory.
+   *
+   * @param childProcessRamMb maximum ram that can be used by a child process, in MB
+   */
+  static int getDefaultMaxSimultaneousCompiles(int childProcessRamMb) {
+    int max = Runtime.getRuntime().availableProcessors();
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean && childProcessRamMb > 0) {
+      long physicalMb = ((com.sun.management.OperatingSystemMXBean) osBean)
+          .getTotalPhysicalMemorySize() / (1024 * 1024);
+      // Leave room for the build server itself.
+      long freeForChildrenMb = physicalMb - Runtime.getRuntime().maxMemory() / (1024 * 1024);
+      max = (int) Math.min(max, freeForChildrenMb / childProcessRamMb);
+    }
+    return Math.max(1, max);
+  }
+
+  /**
+   * Waits for a permit to launch a Kawa, DX or YailGenerator child process. Returns the semaphore
+   * the permit was taken from, so the caller releases it to the same semaphore even if the limit
+   * changes.
+   */
+  static Semaphore acquireChildProcessPermit() throws InterruptedException {
+    Semaphore permits = childProcessPermits;
+    long start = System.currentTimeMillis();
+    permits.acquire();
+    BuildMetrics.recordStage(BuildMetrics.Stage.COMPILE_PERMIT_WAIT, start);
+    return permits;
+  }
+
+  /**
+   * Sets the directory where resources are written out as files. The files are reused by later
+   * runs and shared with other build servers that use the same directory.
+   */
+  static void setResourceCacheDir(File dir) {
+    resources = new ResourceCache(dir);
+  }
+
+  /**
+   * Writes out the given resource as a file, unless it has been written out before, and returns
+   * the absolute path.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
+      return resources.get(resourcePath).getAbsolutePath();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
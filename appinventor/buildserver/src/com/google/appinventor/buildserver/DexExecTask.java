@@ -19,13 +19,16 @@ package com.google.appinventor.buildserver;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -44,9 +47,16 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
+    private static Map<String, String> alreadyChecked = new ConcurrentHashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // Used to protect dex cache creation. There is one lock per pre-dexed library, so that
+    // concurrent builds only wait for each other when they need the same library.
+    private static final ConcurrentMap<String, Object> dexedLibLocks =
+        new ConcurrentHashMap<String, Object>();
+
+    // Number of libraries found in, and added to, the dex cache.
+    private static final AtomicInteger preDexHits = new AtomicInteger(0);
+    private static final AtomicInteger preDexMisses = new AtomicInteger(0);
 
 
     /**
@@ -93,50 +103,116 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
-    private boolean preDexLibraries(List<File> inputs) {
+    /**
+     * Replaces each library jar in inputs with its pre-dexed version from the dex cache,
+     * running dx on the libraries that are not in the cache yet. The cached files are keyed by
+     * the content of the library and of the dx tool, so they can be shared by builds, by build
+     * server restarts and by several build servers using the same cache directory.
+     */
+    boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
             // just a jar file (case for proguard'ed builds)
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
+        final int count = inputs.size();
+        boolean allSuccessful = true;
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile()) {
+                // check if this libs needs to be pre-dexed
+                String fileName = getDexFileName(input);
+                File dexedLib = new File(mDexedLibs, fileName);
+                String dexedLibPath = dexedLib.getAbsolutePath();
+
+                synchronized(getDexedLibLock(dexedLibPath)) {
                     if (dexedLib.isFile() == false/*||
                                                     dexedLib.lastModified() < input.lastModified()*/) {
 
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
+                        if (mVerbose) {
+                            System.out.println(
+                                String.format("Pre-Dexing %1$s -> %2$s",
+                                  input.getAbsolutePath(), fileName));
                         }
 
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
+                        preDexMisses.incrementAndGet();
+                        boolean dexSuccess = preDexLibrary(input, dexedLib);
                         allSuccessful = allSuccessful && dexSuccess;
                     } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
+                        preDexHits.incrementAndGet();
+                        if (mVerbose) {
+                            System.out.println(
+                                String.format("Using Pre-Dexed %1$s <- %2$s",
+                                  fileName, input.getAbsolutePath()));
+                        }
                     }
+                }
 
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
+            }
+        }
+        return allSuccessful;
+    }
+
+    /*
+     * Runs dx on a single library. The output is written to a temporary file which is then
+     * renamed, so that another process using the same cache directory never sees a partially
+     * written file.
+     */
+    private boolean preDexLibrary(File input, File dexedLib) {
+        File tempLib;
+        try {
+            // dx decides on the output format from the extension, so keep the .jar extension.
+            tempLib = File.createTempFile("tmp-", "-" + dexedLib.getName(), new File(mDexedLibs));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            if (!runDx(input, tempLib.getAbsolutePath(), false /*showInput*/)) {
+                return false;
+            }
+            try {
+                Files.move(tempLib.toPath(), dexedLib.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Another process may have published the same library in the meantime.
+                if (!dexedLib.isFile()) {
+                    e.printStackTrace();
+                    return false;
                 }
             }
-            return allSuccessful;
+            return true;
+        } finally {
+            tempLib.delete();
+        }
+    }
+
+    /**
+     * Returns the number of libraries that were found in the dex cache.
+     */
+    static int getPreDexHitCount() {
+        return preDexHits.get();
+    }
+
+    /**
+     * Returns the number of libraries that had to be pre-dexed.
+     */
+    static int getPreDexMissCount() {
+        return preDexMisses.get();
+    }
+
+    private static Object getDexedLibLock(String dexedLibPath) {
+        Object lock = dexedLibLocks.get(dexedLibPath);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = dexedLibLocks.putIfAbsent(dexedLibPath, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
         }
+        return lock;
     }
 
     private String getDexFileName(File inputFile) {
@@ -148,7 +224,12 @@ public class DexExecTask  {
             name = name.substring(0, pos);
         }
 
-        String hashed = getHashFor(inputFile);
+        // The dex of a library depends on the library, on the dx tool and on its options.
+        String hashed = Hashing.md5().newHasher()
+            .putString(getHashFor(inputFile))
+            .putString(getHashFor(new File(mExecutable)))
+            .putBoolean(mNoLocals)
+            .hash().toString();
 
         return "dex-cached-" + hashed + ".jar";
     }
@@ -159,7 +240,7 @@ public class DexExecTask  {
         // add a hash of the original file path
         try {
             HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
+            HashCode hashCode = com.google.common.io.Files.hash(inputFile, hashFunction);
             retval = hashCode.toString();
             alreadyChecked.put(inputFile.getAbsolutePath(), retval);
             return retval;
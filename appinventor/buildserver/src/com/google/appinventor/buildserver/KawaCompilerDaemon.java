@@ -0,0 +1,101 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main class of a long-lived Kawa compiler process, started by
+ * {@link KawaCompilerPool}.
+ *
+ * <p>The process loads the YAIL runtime once and then compiles YAIL sources
+ * on request, which saves the JVM startup and the loading of the runtime
+ * for every build. Each request is one line on standard input holding the
+ * tab separated arguments that would otherwise follow {@code -f runtime.scm}
+ * on the {@code kawa.repl} command line. When a request has been handled, a
+ * line made of the token and the status (0 for success) is written to both
+ * standard output and standard error, so that the caller knows where the
+ * output of the request ends. Messages for the log of the build server,
+ * rather than for the output of the request, are written to standard output
+ * as lines made of the token, {@code log} and the message.</p>
+ *
+ * <p>kawa.repl calls {@code System.exit} when a source file has errors. The
+ * process then ends without a token line, and the caller takes the exit
+ * status as the status of the request, as it would for a kawa.repl process
+ * of its own. The caller replaces a process after a failed request anyway.</p>
+ *
+ * <p>Kawa is only on the class path of the compiler process, not on the
+ * class path of the build server, so it is called through reflection.</p>
+ *
+ * @see Compiler#generateClasses
+ */
+public final class KawaCompilerDaemon {
+
+  private KawaCompilerDaemon() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of the YAIL runtime and the token that ends each response
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: KawaCompilerDaemon <yail runtime> <token>");
+      System.exit(1);
+    }
+    String yailRuntime = args[0];
+    String token = args[1];
+
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+    processArgs.invoke(null, new String[] { "-f", yailRuntime }, 0, 2);
+    // Source files always have new paths, but don't trust cached modification times anyway.
+    Class<?> moduleManagerClass = Class.forName("gnu.expr.ModuleManager");
+    Object moduleManager = moduleManagerClass.getMethod("getInstance").invoke(null);
+    moduleManagerClass.getField("lastModifiedCacheTime").setLong(moduleManager, 0);
+
+    respond(token, 0);
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String request;
+    while ((request = requests.readLine()) != null) {
+      String[] kawaArgs = request.split("\t");
+      int status = 0;
+      try {
+        processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+      } catch (InvocationTargetException e) {
+        log(token, e.getCause());
+        status = 1;
+      }
+      respond(token, status);
+    }
+    Runtime.getRuntime().halt(0);
+  }
+
+  /*
+   * Sends the stack trace of an unexpected failure to the log of the build server.
+   */
+  private static void log(String token, Throwable failure) {
+    StringWriter stackTrace = new StringWriter();
+    failure.printStackTrace(new PrintWriter(stackTrace));
+    for (String line : stackTrace.toString().split("\n")) {
+      System.out.println(token + " log " + line);
+    }
+    System.out.flush();
+  }
+
+  private static void respond(String token, int status) {
+    System.err.println(token + " " + status);
+    System.err.flush();
+    System.out.println(token + " " + status);
+    System.out.flush();
+  }
+}
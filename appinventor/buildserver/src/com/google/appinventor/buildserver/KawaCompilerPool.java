@@ -0,0 +1,323 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of warm Kawa compiler processes (see {@link KawaCompilerDaemon}).
+ *
+ * <p>A compiler process can only be reused for builds that have exactly the
+ * same class path, since its classes are loaded once. Each process is
+ * replaced after a given number of builds, or as soon as a build fails, so
+ * that state left behind by earlier builds cannot pile up or leak into later
+ * builds. Processes that are not in use are kept in a bounded idle list; the
+ * least recently used one is stopped when the list is full.</p>
+ */
+final class KawaCompilerPool {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  // The maximum number of idle compiler processes.
+  private final int maxIdleDaemons;
+
+  // The number of builds after which a compiler process is replaced.
+  private final int maxBuildsPerDaemon;
+
+  // Idle compiler processes, least recently used first. Guarded by itself.
+  private final LinkedList<Daemon> idleDaemons = new LinkedList<Daemon>();
+
+  private final AtomicInteger startedDaemonCount = new AtomicInteger(0);
+  private final AtomicInteger warmCompileCount = new AtomicInteger(0);
+  private final AtomicInteger coldCompileCount = new AtomicInteger(0);
+
+  /**
+   * Creates a KawaCompilerPool.
+   *
+   * @param maxIdleDaemons the maximum number of idle compiler processes to keep
+   * @param maxBuildsPerDaemon the number of builds after which a compiler process is replaced
+   */
+  KawaCompilerPool(int maxIdleDaemons, int maxBuildsPerDaemon) {
+    Preconditions.checkArgument(maxIdleDaemons > 0);
+    Preconditions.checkArgument(maxBuildsPerDaemon > 0);
+    this.maxIdleDaemons = maxIdleDaemons;
+    this.maxBuildsPerDaemon = maxBuildsPerDaemon;
+  }
+
+  /**
+   * Compiles YAIL sources with a warm compiler process for the given class path, starting a new
+   * one if none is idle.
+   *
+   * @param classpath the class path for the compiler
+   * @param yailRuntime the path of the YAIL runtime
+   * @param jvmArgs the arguments for the JVM of a new compiler process
+   * @param kawaArgs the kawa.repl arguments following -f yailRuntime
+   * @param out the stream for the standard output of the compiler
+   * @param err the stream for the standard error of the compiler
+   * @return true if the compilation succeeded
+   * @throws IOException if the compiler process could not be started or stopped unexpectedly;
+   *     in this case nothing has been written to out or err
+   */
+  boolean compile(String classpath, String yailRuntime, List<String> jvmArgs,
+      List<String> kawaArgs, PrintStream out, PrintStream err) throws IOException {
+    String key = Joiner.on(' ').join(jvmArgs) + " " + classpath + " " + yailRuntime;
+    Daemon daemon = takeIdleDaemon(key);
+    if (daemon == null) {
+      coldCompileCount.incrementAndGet();
+      daemon = new Daemon(key, classpath, yailRuntime, jvmArgs);
+      startedDaemonCount.incrementAndGet();
+    } else {
+      warmCompileCount.incrementAndGet();
+    }
+
+    List<String> outLines = new ArrayList<String>();
+    List<String> errLines = new ArrayList<String>();
+    boolean success;
+    try {
+      success = daemon.compile(kawaArgs, outLines, errLines);
+    } catch (IOException e) {
+      daemon.destroy();
+      throw e;
+    }
+    for (String line : outLines) {
+      out.println(line);
+    }
+    for (String line : errLines) {
+      err.println(line);
+    }
+
+    if (success && !daemon.exited && daemon.builds < maxBuildsPerDaemon) {
+      releaseDaemon(daemon);
+    } else {
+      daemon.destroy();
+    }
+    return success;
+  }
+
+  private Daemon takeIdleDaemon(String key) {
+    synchronized (idleDaemons) {
+      Iterator<Daemon> it = idleDaemons.descendingIterator();
+      while (it.hasNext()) {
+        Daemon daemon = it.next();
+        if (daemon.key.equals(key)) {
+          it.remove();
+          return daemon;
+        }
+      }
+      return null;
+    }
+  }
+
+  private void releaseDaemon(Daemon daemon) {
+    Daemon evicted = null;
+    synchronized (idleDaemons) {
+      idleDaemons.addLast(daemon);
+      if (idleDaemons.size() > maxIdleDaemons) {
+        evicted = idleDaemons.removeFirst();
+      }
+    }
+    if (evicted != null) {
+      evicted.destroy();
+    }
+  }
+
+  /**
+   * Stops all idle compiler processes.
+   */
+  void shutdown() {
+    synchronized (idleDaemons) {
+      for (Daemon daemon : idleDaemons) {
+        daemon.destroy();
+      }
+      idleDaemons.clear();
+    }
+  }
+
+  int getIdleDaemonCount() {
+    synchronized (idleDaemons) {
+      return idleDaemons.size();
+    }
+  }
+
+  /**
+   * Adds the pool figures to the /buildserver/vars output.
+   */
+  void addVariables(Map<String, String> variables) {
+    variables.put("kawa-daemons-idle", getIdleDaemonCount() + "");
+    variables.put("kawa-daemons-started", startedDaemonCount.get() + "");
+    variables.put("kawa-compiles-warm", warmCompileCount.get() + "");
+    variables.put("kawa-compiles-cold", coldCompileCount.get() + "");
+  }
+
+  /*
+   * Returns the location of the classes of the build server, which contains KawaCompilerDaemon.
+   */
+  private static String getDaemonClasspath() throws IOException {
+    try {
+      return new File(KawaCompilerDaemon.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * A single compiler process. A daemon is used by one build at a time.
+   */
+  private static class Daemon {
+    private final String key;
+    private final String token = UUID.randomUUID().toString();
+    private final Process process;
+    private final Writer requests;
+    private final BufferedReader stdout;
+    private final BlockingQueue<String> stderrLines = new LinkedBlockingQueue<String>();
+    private int builds = 0;
+    // Whether the process has exited, which kawa.repl does after errors.
+    private boolean exited = false;
+
+    Daemon(String key, String classpath, String yailRuntime, List<String> jvmArgs)
+        throws IOException {
+      this.key = key;
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + "/bin/java");
+      command.addAll(jvmArgs);
+      command.add("-cp");
+      // The daemon class comes last so that it cannot hide any of the compiler's classes.
+      command.add(classpath + File.pathSeparator + getDaemonClasspath());
+      command.add(KawaCompilerDaemon.class.getName());
+      command.add(yailRuntime);
+      command.add(token);
+      LOG.info("Starting Kawa compiler process");
+      process = new ProcessBuilder(command).start();
+      requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+      stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+
+      // Standard error is read by its own thread, so that neither stream can fill up its pipe
+      // and block the process while we are reading the other one.
+      final BufferedReader stderr =
+          new BufferedReader(new InputStreamReader(process.getErrorStream(), "UTF-8"));
+      Thread stderrReader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            String line;
+            while ((line = stderr.readLine()) != null) {
+              stderrLines.add(line);
+            }
+          } catch (IOException e) {
+            // The process has stopped.
+          } finally {
+            stderrLines.add(token + " EOF");
+          }
+        }
+      });
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+
+      // Wait until the runtime is loaded.
+      List<String> startupErrors = new ArrayList<String>();
+      boolean started;
+      try {
+        started = readResponse(new ArrayList<String>(), startupErrors);
+      } catch (IOException e) {
+        started = false;
+      }
+      if (!started || exited) {
+        destroy();
+        throw new IOException("Kawa compiler process did not start: " + startupErrors);
+      }
+    }
+
+    boolean compile(List<String> kawaArgs, List<String> outLines, List<String> errLines)
+        throws IOException {
+      builds++;
+      for (String arg : kawaArgs) {
+        if (arg.indexOf('\t') != -1 || arg.indexOf('\n') != -1) {
+          throw new IOException("Kawa compiler argument cannot be sent to the compiler process: "
+              + arg);
+        }
+      }
+      requests.write(Joiner.on('\t').join(kawaArgs));
+      requests.write('\n');
+      requests.flush();
+      return readResponse(outLines, errLines);
+    }
+
+    /*
+     * Reads the output of one request from standard output and standard error, up to the lines
+     * holding the token, and returns whether the request succeeded. Log lines from the process
+     * go to our own log rather than to the output of the request. If the process exits instead,
+     * which kawa.repl does after errors, the output ends with the streams and the exit status is
+     * the status of the request, as it would be for a kawa.repl process of its own.
+     */
+    private boolean readResponse(List<String> outLines, List<String> errLines)
+        throws IOException {
+      String logPrefix = token + " log ";
+      List<String> logLines = new ArrayList<String>();
+      String status = null;
+      String line;
+      while ((line = stdout.readLine()) != null) {
+        if (line.startsWith(logPrefix)) {
+          logLines.add(line.substring(logPrefix.length()));
+        } else if (line.startsWith(token + " ")) {
+          status = line.substring(token.length() + 1);
+          break;
+        } else {
+          outLines.add(line);
+        }
+      }
+      if (!logLines.isEmpty()) {
+        LOG.warning("Kawa compiler process failed:\n" + Joiner.on('\n').join(logLines));
+      }
+      try {
+        while (!(line = stderrLines.take()).startsWith(token + " ")) {
+          errLines.add(line);
+        }
+        if (status == null) {
+          exited = true;
+          return process.waitFor() == 0;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      if (!line.equals(token + " " + status)) {
+        throw new IOException("Kawa compiler process stopped unexpectedly");
+      }
+      return status.equals("0");
+    }
+
+    void destroy() {
+      try {
+        requests.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Unable to close Kawa compiler process input", e);
+      }
+      process.destroy();
+    }
+  }
+}
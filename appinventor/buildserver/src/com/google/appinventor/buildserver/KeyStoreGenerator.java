@@ -0,0 +1,176 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates the android.keystore of a project in the build server process,
+ * instead of running keytool.
+ *
+ * <p>Almost all of the time that keytool takes is spent starting a JVM and
+ * generating the RSA key pair. The key pair doesn't depend on the user, so
+ * a background thread keeps a small pool of key pairs ready; only the
+ * self-signed certificate, which holds the user name, is made during the
+ * build. The keystore has the same alias, passwords, key size, distinguished
+ * name and validity as the one keytool makes.</p>
+ *
+ * @see ProjectBuilder#createKeyStore
+ */
+final class KeyStoreGenerator {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStoreGenerator.class.getName());
+
+  private static final String KEY_ALIAS = "AndroidKey";
+  private static final char[] PASSWORD = "android".toCharArray();
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the expiration number of days.
+  private static final long VALIDITY_DAYS = 10000;
+
+  private final SecureRandom random = new SecureRandom();
+
+  // Key pairs that are ready to be used. Null if there is no pool.
+  private final BlockingQueue<KeyPair> keyPairs;
+
+  private final AtomicInteger pooledKeyPairCount = new AtomicInteger(0);
+  private final AtomicInteger inlineKeyPairCount = new AtomicInteger(0);
+
+  /**
+   * Creates a KeyStoreGenerator.
+   *
+   * @param poolSize the number of key pairs to keep ready, or 0 to generate each key pair when it
+   *     is needed
+   */
+  KeyStoreGenerator(int poolSize) {
+    Preconditions.checkArgument(poolSize >= 0);
+    if (poolSize == 0) {
+      keyPairs = null;
+      return;
+    }
+    keyPairs = new ArrayBlockingQueue<KeyPair>(poolSize);
+    Thread filler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            // Blocks while the pool is full.
+            keyPairs.put(generateKeyPair());
+          }
+        } catch (InterruptedException e) {
+          // Stop filling the pool.
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.WARNING, "Unable to generate key pairs for the keystore pool", e);
+        }
+      }
+    }, "KeyStoreGenerator");
+    filler.setDaemon(true);
+    // Builds come first.
+    filler.setPriority(Thread.MIN_PRIORITY);
+    filler.start();
+  }
+
+  /**
+   * Writes a new keystore for the given user to the given file.
+   *
+   * @param userName the user name for the CN of the certificate
+   * @param keyStoreFile the keystore file
+   * @throws GeneralSecurityException if the key pair or the certificate could not be made
+   * @throws IOException if the keystore could not be written
+   */
+  void generate(String userName, File keyStoreFile) throws GeneralSecurityException, IOException {
+    KeyPair keyPair = keyPairs == null ? null : keyPairs.poll();
+    if (keyPair == null) {
+      inlineKeyPairCount.incrementAndGet();
+      keyPair = generateKeyPair();
+    } else {
+      pooledKeyPairCount.incrementAndGet();
+    }
+
+    // The same distinguished name as keytool -dname "CN=userName, O=..., C=US", which lists the
+    // most significant attribute last.
+    X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+        .addRDN(BCStyle.C, "US")
+        .addRDN(BCStyle.O, "AppInventor for Android")
+        .addRDN(BCStyle.CN, userName)
+        .build();
+    long now = System.currentTimeMillis();
+    Date notBefore = new Date(now);
+    Date notAfter = new Date(now + TimeUnit.DAYS.toMillis(VALIDITY_DAYS));
+    BigInteger serialNumber = new BigInteger(64, random);
+    X509CertificateHolder certificateHolder;
+    try {
+      certificateHolder = new JcaX509v3CertificateBuilder(name, serialNumber, notBefore, notAfter,
+          name, keyPair.getPublic())
+          .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+    Certificate certificate = new JcaX509CertificateConverter().getCertificate(certificateHolder);
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD,
+        new Certificate[] { certificate });
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(keyStoreFile));
+    try {
+      keyStore.store(out, PASSWORD);
+    } finally {
+      out.close();
+    }
+  }
+
+  private KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  int getPooledKeyPairCount() {
+    return pooledKeyPairCount.get();
+  }
+
+  /**
+   * Adds the generator figures to the /buildserver/vars output.
+   */
+  void addVariables(Map<String, String> variables) {
+    variables.put("keystores-from-pool", pooledKeyPairCount.get() + "");
+    variables.put("keystores-generated-inline", inlineKeyPairCount.get() + "");
+    variables.put("keystore-key-pairs-ready", (keyPairs == null ? 0 : keyPairs.size()) + "");
+  }
+}
@@ -5,6 +5,7 @@
 // http://www.apache.org/licenses/LICENSE-2.0
 package com.google.appinventor.buildserver;
 
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,7 +19,7 @@ import java.util.logging.Logger;
  *
  * @author lizlooney@google.com (Liz Looney)
  */
-final class NonQueuingExecutor implements Executor {
+final class NonQueuingExecutor implements BuildExecutor {
   // The maximum number of active tasks. O means unlimited.
   private final int maxActiveTasks;
 
@@ -64,15 +65,33 @@ final class NonQueuingExecutor implements Executor {
     }
   }
 
+  @Override
+  public void execute(Runnable runnable, String userName, Priority priority) {
+    // Without a queue there is nothing to order, so the user and priority are ignored.
+    execute(runnable);
+  }
+
+  @Override
+  public boolean hasCapacity(String userName) {
+    return maxActiveTasks == 0 || activeTaskCount.get() < maxActiveTasks;
+  }
+
+  @Override
   public int getMaxActiveTasks() {
     return maxActiveTasks;
   }
 
+  @Override
   public int getActiveTaskCount() {
     return activeTaskCount.get();
   }
 
+  @Override
   public int getCompletedTaskCount() {
     return completedTaskCount.get();
   }
+
+  @Override
+  public void addVariables(Map<String, String> variables) {
+  }
 }
@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Checks the directories of the caches whose files end up in the builds, such
+ * as the tools in the {@link ResourceCache} and the class files in the
+ * {@link ClassCache}, so that other users can't plant files in them.
+ */
+final class PrivateDirectories {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(PrivateDirectories.class.getName());
+
+  private static final Set<PosixFilePermission> OWNER_ONLY =
+      PosixFilePermissions.fromString("rwx------");
+
+  private PrivateDirectories() {
+  }
+
+  /**
+   * Creates the given directory if necessary. On file systems with POSIX
+   * permissions, checks that the directory belongs to this user and makes it
+   * accessible to this user only.
+   *
+   * @param dir the directory
+   * @param description what the directory holds, for the messages
+   * @throws IOException if the directory couldn't be created, or is owned by
+   *     another user
+   */
+  static void check(File dir, String description) throws IOException {
+    Path path = dir.toPath();
+    boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    if (!posix) {
+      Files.createDirectories(path);
+      return;
+    }
+    Path parent = path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    try {
+      Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    } catch (FileAlreadyExistsException e) {
+      // The existing directory is checked below.
+    }
+    if (!Files.isDirectory(path)) {
+      throw new IOException(description + " " + dir + " is not a directory");
+    }
+
+    // A file this process creates is owned by this user, whoever owns the directory.
+    Path probe = Files.createTempFile(path, "owner-", ".tmp");
+    UserPrincipal user;
+    try {
+      user = Files.getOwner(probe);
+    } finally {
+      Files.delete(probe);
+    }
+    UserPrincipal owner = Files.getOwner(path);
+    if (!owner.equals(user)) {
+      throw new IOException(description + " directory " + dir + " is owned by " + owner.getName()
+          + " instead of " + user.getName());
+    }
+    if (!Files.getPosixFilePermissions(path).equals(OWNER_ONLY)) {
+      LOG.info("Making " + description.toLowerCase() + " directory " + dir
+          + " accessible to its owner only");
+      Files.setPosixFilePermissions(path, OWNER_ONLY);
+    }
+  }
+}
@@ -15,6 +15,7 @@ import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
@@ -23,23 +24,35 @@ import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
 
@@ -54,6 +67,9 @@ public final class ProjectBuilder {
   private File outputKeystore;
   private boolean saveKeystore;
 
+  // Generates keystores in this process. If null, keytool is run for every new keystore.
+  private static volatile KeyStoreGenerator keyStoreGenerator;
+
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
 
@@ -78,6 +94,31 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  // Generates the yail of the forms of a build at the same time. The YailGenerator processes take
+  // the same permits as the Kawa and DX processes (see Compiler.acquireChildProcessPermit), so
+  // the number of them that run at once is bounded by the budget of the machine, shared by all
+  // builds, rather than by the size of this pool.
+  private static final ExecutorService YAIL_GENERATION_EXECUTOR =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "YailGenerator");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Sets the generator of new keystores, or null to run keytool for every new keystore.
+   */
+  static void setKeyStoreGenerator(KeyStoreGenerator generator) {
+    keyStoreGenerator = generator;
+  }
+
+  static KeyStoreGenerator getKeyStoreGenerator() {
+    return keyStoreGenerator;
+  }
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -120,21 +161,88 @@ public final class ProjectBuilder {
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
                int childProcessRam, String dexCachePath) {
+    File projectRoot;
     try {
-      // Download project files into a temporary directory
-      File projectRoot = createNewTempDir();
-      LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
-      try {
-        List<String> sourceFiles;
+      projectRoot = extractProject(inputZip);
+    } catch (IOException e) {
+      LOG.severe("unexpected problem extracting project file from zip");
+      return Result.createFailingResult("", "Problems processing zip file.");
+    }
+    return build(userName, projectRoot, outputDir, isForCompanion, childProcessRam, dexCachePath);
+  }
+
+  /**
+   * Extracts the project files from the given zip stream into a new temporary project root, in a
+   * single pass. This lets the build server extract the project straight from the request body,
+   * without writing the zip file to disk first.
+   *
+   * @param inputZip  the zip stream of the project, which is read but not closed
+   * @return the project root, which is deleted by
+   *     {@link #build(String, File, File, boolean, int, String)}
+   * @throws IOException if the zip stream could not be read or extracted
+   */
+  File extractProject(InputStream inputZip) throws IOException {
+    long start = System.currentTimeMillis();
+    File projectRoot = createNewTempDir();
+    LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
+    try {
+      ZipInputStream zipInputStream = new ZipInputStream(inputZip);
+      ZipEntry zipEntry;
+      while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+        File extractedFile = projectFile(projectRoot, zipEntry.getName());
+        if (zipEntry.isDirectory()) {
+          extractedFile.mkdirs();
+          continue;
+        }
+        LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
+        Files.createParentDirs(extractedFile);
+        OutputStream extractedOutputStream =
+            new BufferedOutputStream(new FileOutputStream(extractedFile));
         try {
-          sourceFiles = extractProjectFiles(inputZip, projectRoot);
-        } catch (IOException e) {
-          LOG.severe("unexpected problem extracting project file from zip");
-          return Result.createFailingResult("", "Problems processing zip file.");
+          ByteStreams.copy(zipInputStream, extractedOutputStream);
+        } finally {
+          extractedOutputStream.close();
         }
+      }
+    } catch (IOException e) {
+      deleteProjectRoot(projectRoot);
+      throw e;
+    }
+    BuildMetrics.recordStage(BuildMetrics.Stage.EXTRACT, start);
+    return projectRoot;
+  }
+
+  private File extractProject(ZipFile inputZip) throws IOException {
+    long start = System.currentTimeMillis();
+    File projectRoot = createNewTempDir();
+    LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
+    try {
+      extractProjectFiles(inputZip, projectRoot);
+    } catch (IOException e) {
+      deleteProjectRoot(projectRoot);
+      throw e;
+    }
+    BuildMetrics.recordStage(BuildMetrics.Stage.EXTRACT, start);
+    return projectRoot;
+  }
+
+  /**
+   * Builds the project that has been extracted into the given project root, and deletes the
+   * project root afterwards.
+   *
+   * <p>On success, the APK (and the keystore, if it was generated) is moved rather than copied
+   * into the output directory, so that the build server can stream it into the result zip.</p>
+   */
+  Result build(String userName, File projectRoot, File outputDir, boolean isForCompanion,
+               int childProcessRam, String dexCachePath) {
+    try {
+      try {
+        List<String> sourceFiles = listProjectFiles(projectRoot);
 
         try {
+          long startYailGeneration = System.currentTimeMillis();
           genYailFilesIfNecessary(sourceFiles);
+          BuildMetrics.recordStage(BuildMetrics.Stage.YAIL_GENERATION, startYailGeneration);
         } catch (YailGenerationException e) {
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
@@ -185,22 +293,19 @@ public final class ProjectBuilder {
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
+            // The project root and the output directory are both temporary directories, so
+            // these moves are normally just renames.
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            Files.move(outputFile, outputApk);
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
-              Files.copy(keyStoreFile, outputKeystore);
+              Files.move(keyStoreFile, outputKeystore);
             }
           }
         }
         return new Result(success, messages, errors.toString(PathUtil.DEFAULT_CHARSET));
       } finally {
-        // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
-        // canonical path here so that Files.deleteRecursively will work.
-
-        // Note (ralph):  deleteRecursively has been removed from the guava-11.0.1 lib
-        // Replacing with deleteDirectory, which is supposed to delete the entire directory.
-        FileUtils.deleteDirectory(new File(projectRoot.getCanonicalPath()));
+        deleteProjectRoot(projectRoot);
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -208,6 +313,15 @@ public final class ProjectBuilder {
     }
   }
 
+  private static void deleteProjectRoot(File projectRoot) throws IOException {
+    // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
+    // canonical path here so that Files.deleteRecursively will work.
+
+    // Note (ralph):  deleteRecursively has been removed from the guava-11.0.1 lib
+    // Replacing with deleteDirectory, which is supposed to delete the entire directory.
+    FileUtils.deleteDirectory(new File(projectRoot.getCanonicalPath()));
+  }
+
   private void genYailFilesIfNecessary(List<String> sourceFiles)
       throws IOException, YailGenerationException {
     // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
@@ -219,18 +333,60 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    Set<String> sourceFileSet = Sets.newHashSet(sourceFiles);
+    List<String> rootPaths = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
                                                   - FORM_PROPERTIES_EXTENSION.length());
         String yailFilePath = rootPath + YAIL_EXTENSION;
-        // Note: Famous last words: The following contains() makes this method O(n**2) but n should
-        // be pretty small.
-        if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+        if (!sourceFileSet.contains(yailFilePath)) {
+          rootPaths.add(rootPath);
         }
       }
     }
+    if (rootPaths.size() == 1) {
+      generateYail(rootPaths.get(0));
+      return;
+    }
+
+    // Generate the yail for all of the forms at the same time.
+    List<Future<File>> results = Lists.newArrayList();
+    for (final String rootPath : rootPaths) {
+      results.add(YAIL_GENERATION_EXECUTOR.submit(new Callable<File>() {
+        @Override
+        public File call() throws IOException, YailGenerationException {
+          return generateYail(rootPath);
+        }
+      }));
+    }
+    try {
+      // Report the failures in the order of the forms, as if they were generated one by one.
+      for (Future<File> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof YailGenerationException) {
+            throw (YailGenerationException) cause;
+          } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else {
+            throw new RuntimeException(cause);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    } finally {
+      // Don't start the forms that are still waiting once one has failed.
+      for (Future<File> result : results) {
+        result.cancel(false);
+      }
+    }
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -243,14 +399,41 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
-      throws IOException {
-    ArrayList<String> projectFileNames = Lists.newArrayList();
+  /**
+   * Returns the paths of all files under the project root, sorted. The directory listing order
+   * depends on the file system, while sorting puts the files in the order App Inventor writes them
+   * to the project zip, so that forms are always processed, and their errors reported, in the same
+   * order.
+   */
+  static List<String> listProjectFiles(File projectRoot) {
+    List<String> files = Lists.newArrayList();
+    for (File file : FileUtils.listFiles(projectRoot, null, true)) {
+      files.add(file.getPath());
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /*
+   * Returns the file that a zip entry is extracted to. The entry must name a
+   * file under the project root, so that a zip with entries such as
+   * "../file" cannot write anywhere else.
+   */
+  private static File projectFile(File projectRoot, String entryName) throws IOException {
+    File file = new File(projectRoot, entryName);
+    String rootPath = projectRoot.getCanonicalPath() + File.separator;
+    if (!file.getCanonicalPath().startsWith(rootPath)) {
+      throw new IOException("Zip entry " + entryName + " is outside of the project");
+    }
+    return file;
+  }
+
+  private void extractProjectFiles(ZipFile inputZip, File projectRoot) throws IOException {
     Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
     while (inputZipEnumeration.hasMoreElements()) {
       ZipEntry zipEntry = inputZipEnumeration.nextElement();
       final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
-      File extractedFile = new File(projectRoot, zipEntry.getName());
+      File extractedFile = projectFile(projectRoot, zipEntry.getName());
       LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
       Files.createParentDirs(extractedFile); // Do I need this?
       Files.copy(
@@ -260,9 +443,7 @@ public final class ProjectBuilder {
             }
           },
           extractedFile);
-      projectFileNames.add(extractedFile.getPath());
     }
-    return projectFileNames;
   }
 
   private static Set<String> getComponentTypes(List<String> files, File assetsDir)
@@ -340,6 +521,17 @@ public final class ProjectBuilder {
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
 
+    KeyStoreGenerator generator = keyStoreGenerator;
+    if (generator != null) {
+      try {
+        generator.generate(userName, keyStoreFile);
+        return keyStoreFile.getAbsolutePath();
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to generate keystore, running keytool instead", e);
+        keyStoreFile.delete();
+      }
+    }
+
     /* Note: must expire after October 22, 2033, to be in the Android
     * marketplace.  Android docs recommend "10000" as the expiration # of
     * days.
@@ -493,7 +685,19 @@ public final class ProjectBuilder {
     };
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    Semaphore permits;
+    try {
+      permits = Compiler.acquireChildProcessPermit();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    int exitValue;
+    try {
+      exitValue = Execution.execute(null, commandLine, out, err);
+    } finally {
+      permits.release();
+    }
     if (exitValue == 0) {
       String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
@@ -0,0 +1,271 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BuildExecutor} that runs a limited number of simultaneous tasks and
+ * holds additional tasks in a bounded queue.
+ *
+ * <p>Queued tasks are taken by priority class first. Within a priority class,
+ * users are served round-robin so that one user submitting many builds cannot
+ * starve everybody else. Each user may only have a limited number of tasks
+ * waiting in the queue. Tasks are rejected only when the queue (or the user's
+ * share of it) is full.</p>
+ */
+final class QueuingExecutor implements BuildExecutor {
+  // The maximum number of active tasks. Must be greater than 0.
+  private final int maxActiveTasks;
+
+  // The maximum number of tasks waiting in the queue.
+  private final int maxQueuedTasks;
+
+  // The maximum number of tasks a single user may have waiting in the queue.
+  private final int maxQueuedTasksPerUser;
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingExecutor.class.getName());
+
+  // All of the fields below are guarded by lock.
+  private final Object lock = new Object();
+
+  private int activeTaskCount = 0;
+  private int queuedTaskCount = 0;
+  private int maximumQueuedTaskCount = 0;
+
+  // Per priority class, the queued tasks of each user. The iteration order of the inner map is
+  // the round-robin order in which the users are served.
+  private final Map<Priority, LinkedHashMap<String, Deque<QueuedTask>>> queues =
+      new EnumMap<Priority, LinkedHashMap<String, Deque<QueuedTask>>>(Priority.class);
+
+  private final Map<String, Integer> queuedTasksPerUser = new LinkedHashMap<String, Integer>();
+
+  // Queue wait statistics, in milliseconds.
+  private long dequeuedTaskCount = 0;
+  private long totalQueueWaitMillis = 0;
+  private long maximumQueueWaitMillis = 0;
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks
+   * @param maxQueuedTasks the maximum number of tasks waiting to become active
+   * @param maxQueuedTasksPerUser the maximum number of waiting tasks for a single user
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks, int maxQueuedTasksPerUser) {
+    if (maxActiveTasks <= 0) {
+      throw new IllegalArgumentException("maxActiveTasks must be greater than 0");
+    }
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.maxQueuedTasksPerUser = maxQueuedTasksPerUser;
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new LinkedHashMap<String, Deque<QueuedTask>>());
+    }
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    execute(runnable, "", Priority.NORMAL);
+  }
+
+  @Override
+  public void execute(Runnable runnable, String userName, Priority priority) {
+    String user = (userName == null) ? "" : userName;
+    synchronized (lock) {
+      if (activeTaskCount < maxActiveTasks) {
+        activeTaskCount++;
+        startWorker(runnable);
+        return;
+      }
+
+      int userQueuedCount = getUserQueuedTaskCount(user);
+      if (!canQueue(userQueuedCount)) {
+        // If the queue (or this user's share of the queue) is full, reject the task.
+        throw new RejectedExecutionException();
+      }
+
+      LinkedHashMap<String, Deque<QueuedTask>> userQueues = queues.get(priority);
+      Deque<QueuedTask> userQueue = userQueues.get(user);
+      if (userQueue == null) {
+        userQueue = new ArrayDeque<QueuedTask>();
+        userQueues.put(user, userQueue);
+      }
+      userQueue.addLast(new QueuedTask(runnable));
+      queuedTasksPerUser.put(user, userQueuedCount + 1);
+      queuedTaskCount++;
+      maximumQueuedTaskCount = Math.max(maximumQueuedTaskCount, queuedTaskCount);
+      LOG.info("Build queued for priority " + priority + ", queue depth is " + queuedTaskCount);
+    }
+  }
+
+  /*
+   * Starts a new thread that runs the given task and then keeps taking tasks from the queue until
+   * the queue is empty. Must be called with lock held, after activeTaskCount has been incremented.
+   */
+  private void startWorker(final Runnable firstTask) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Runnable task = firstTask;
+        while (task != null) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            // Keep the worker alive so that the queued tasks still get run.
+            LOG.log(Level.SEVERE, "Build task failed", e);
+          }
+          completedTaskCount.incrementAndGet();
+          task = takeNextTask();
+        }
+      }
+    });
+    thread.start();
+  }
+
+  /*
+   * Returns the next task to run, or null if the queue is empty. In the latter case the calling
+   * worker is no longer counted as active.
+   */
+  private Runnable takeNextTask() {
+    synchronized (lock) {
+      for (Priority priority : Priority.values()) {
+        LinkedHashMap<String, Deque<QueuedTask>> userQueues = queues.get(priority);
+        Iterator<Map.Entry<String, Deque<QueuedTask>>> it = userQueues.entrySet().iterator();
+        if (!it.hasNext()) {
+          continue;
+        }
+        Map.Entry<String, Deque<QueuedTask>> entry = it.next();
+        String user = entry.getKey();
+        Deque<QueuedTask> userQueue = entry.getValue();
+        QueuedTask queuedTask = userQueue.removeFirst();
+        // Move this user to the back of the round-robin order (or drop it if it has nothing left).
+        it.remove();
+        if (!userQueue.isEmpty()) {
+          userQueues.put(user, userQueue);
+        }
+
+        int userQueuedCount = queuedTasksPerUser.get(user) - 1;
+        if (userQueuedCount == 0) {
+          queuedTasksPerUser.remove(user);
+        } else {
+          queuedTasksPerUser.put(user, userQueuedCount);
+        }
+        queuedTaskCount--;
+
+        long waitMillis = System.currentTimeMillis() - queuedTask.enqueueTime;
+        dequeuedTaskCount++;
+        totalQueueWaitMillis += waitMillis;
+        maximumQueueWaitMillis = Math.max(maximumQueueWaitMillis, waitMillis);
+        return queuedTask.runnable;
+      }
+      activeTaskCount--;
+      return null;
+    }
+  }
+
+  @Override
+  public boolean hasCapacity(String userName) {
+    String user = (userName == null) ? "" : userName;
+    synchronized (lock) {
+      return activeTaskCount < maxActiveTasks || canQueue(getUserQueuedTaskCount(user));
+    }
+  }
+
+  /*
+   * Returns the number of tasks the given user has waiting in the queue. Must be called with lock
+   * held.
+   */
+  private int getUserQueuedTaskCount(String user) {
+    Integer userQueued = queuedTasksPerUser.get(user);
+    return (userQueued == null) ? 0 : userQueued;
+  }
+
+  /*
+   * Returns whether a task of a user with the given number of queued tasks fits in the queue. Must
+   * be called with lock held.
+   */
+  private boolean canQueue(int userQueuedCount) {
+    return queuedTaskCount < maxQueuedTasks && userQueuedCount < maxQueuedTasksPerUser;
+  }
+
+  @Override
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  @Override
+  public int getActiveTaskCount() {
+    synchronized (lock) {
+      return activeTaskCount;
+    }
+  }
+
+  @Override
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return queuedTaskCount;
+    }
+  }
+
+  public int getQueuedTaskCount(Priority priority) {
+    synchronized (lock) {
+      int count = 0;
+      for (Deque<QueuedTask> userQueue : queues.get(priority).values()) {
+        count += userQueue.size();
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public void addVariables(Map<String, String> variables) {
+    synchronized (lock) {
+      variables.put("maximum-queued-build-tasks-allowed", maxQueuedTasks + "");
+      variables.put("maximum-queued-build-tasks-per-user-allowed", maxQueuedTasksPerUser + "");
+      variables.put("queued-build-tasks", queuedTaskCount + "");
+      for (Priority priority : Priority.values()) {
+        variables.put("queued-build-tasks-" + priority.name().toLowerCase(),
+            getQueuedTaskCount(priority) + "");
+      }
+      variables.put("maximum-queued-build-tasks-occurred", maximumQueuedTaskCount + "");
+      variables.put("dequeued-build-tasks", dequeuedTaskCount + "");
+      long averageWait = (dequeuedTaskCount == 0) ? 0 : totalQueueWaitMillis / dequeuedTaskCount;
+      variables.put("average-queue-wait-in-ms", averageWait + "");
+      variables.put("maximum-queue-wait-in-ms", maximumQueueWaitMillis + "");
+    }
+  }
+
+  private static class QueuedTask {
+    private final Runnable runnable;
+    private final long enqueueTime;
+
+    QueuedTask(Runnable runnable) {
+      this.runnable = runnable;
+      this.enqueueTime = System.currentTimeMillis();
+    }
+  }
+}
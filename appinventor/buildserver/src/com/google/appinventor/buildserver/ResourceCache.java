@@ -0,0 +1,174 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk cache of the resources bundled with the build server (such as
+ * android.jar, kawa.jar, dx.jar and aapt) that have to be files for the
+ * tools to use them.
+ *
+ * <p>Each resource is written once to a file whose name holds the SHA-256
+ * of its content, so the files can be shared by the build server processes
+ * of a user and reused after a restart, while a new version of a resource
+ * gets a new file. A file that is found in the cache is checked against the
+ * SHA-256 of the resource the first time a process uses it, and replaced if
+ * it doesn't match. Files are written to a temporary file that is then
+ * renamed, so no process ever sees a partially written file.</p>
+ *
+ * <p>Builds run the tools in the cache, so on file systems with POSIX
+ * permissions the cache directory is made accessible to its owner only, and
+ * a directory owned by another user is refused.</p>
+ *
+ * <p>Once a resource has been found, looking it up again doesn't take any
+ * lock.</p>
+ */
+final class ResourceCache {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceCache.class.getName());
+
+  // The version of the layout of the cache directory.
+  private static final String CACHE_VERSION = "v2";
+
+  private final File baseDir;
+  private final File cacheDir;
+
+  // Whether the cache directories have been created and checked, guarded by this.
+  private boolean cacheDirChecked;
+
+  // The files of the resources that have been looked up by this process.
+  private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+
+  // One lock per resource, so that a resource is only written once by this process, without
+  // holding up the lookups of other resources.
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Creates a ResourceCache. The directory is created and checked when the
+   * first resource is looked up.
+   *
+   * @param cacheDir the directory that holds the cached resources
+   */
+  ResourceCache(File cacheDir) {
+    this.baseDir = cacheDir;
+    this.cacheDir = new File(cacheDir, CACHE_VERSION);
+  }
+
+  /**
+   * Returns the file holding the given resource, writing it to the cache if necessary.
+   *
+   * @param resourcePath the path of the resource
+   * @throws IOException if the resource doesn't exist or couldn't be written, or if the cache
+   *     directory is owned by another user
+   */
+  File get(String resourcePath) throws IOException {
+    File file = files.get(resourcePath);
+    if (file != null) {
+      return file;
+    }
+    Object lock = locks.get(resourcePath);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = locks.putIfAbsent(resourcePath, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    synchronized (lock) {
+      file = files.get(resourcePath);
+      if (file == null) {
+        checkCacheDir();
+        file = find(resourcePath);
+        files.put(resourcePath, file);
+      }
+      return file;
+    }
+  }
+
+  private File find(String resourcePath) throws IOException {
+    URL url = ResourceCache.class.getResource(resourcePath);
+    if (url == null) {
+      throw new FileNotFoundException("No resource " + resourcePath);
+    }
+    HashCode hash = hash(url.openStream());
+
+    String basename = PathUtil.basename(resourcePath);
+    File file = new File(cacheDir, hash + "-" + basename);
+    if (file.isFile() && hash(new FileInputStream(file)).equals(hash)) {
+      return file;
+    }
+
+    LOG.info("Writing resource " + resourcePath + " to " + file);
+    File tempFile = File.createTempFile("tmp-", "-" + basename, cacheDir);
+    try {
+      InputStream in = url.openStream();
+      try {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+          ByteStreams.copy(in, out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (!hash(new FileInputStream(tempFile)).equals(hash)) {
+        throw new IOException("Resource " + resourcePath + " changed while it was written");
+      }
+      // Tools such as aapt and zipalign are run from the cache.
+      tempFile.setExecutable(true);
+      // Another process may have written the same file in the meantime; its content is the same.
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tempFile.delete();
+    }
+    return file;
+  }
+
+  private synchronized void checkCacheDir() throws IOException {
+    if (!cacheDirChecked) {
+      PrivateDirectories.check(baseDir, "Resource cache");
+      PrivateDirectories.check(cacheDir, "Resource cache");
+      cacheDirChecked = true;
+    }
+  }
+
+  /*
+   * Returns the SHA-256 of the content of the given stream, and closes it.
+   */
+  private static HashCode hash(InputStream in) throws IOException {
+    try {
+      Hasher hasher = Hashing.sha256().newHasher();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        hasher.putBytes(buffer, 0, count);
+      }
+      return hasher.hash();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -28,8 +28,12 @@
 ;;; inside a phone, so components are not defined
 (define *testing* #f)
 
-(define (android-log message)
-  (when *debug* (android.util.Log:i "YAIL" message)))
+;;; This is a macro so that the message, which is often built with format,
+;;; is only computed when debugging is on.
+(define-syntax android-log
+  (syntax-rules ()
+    ((_ message)
+     (when *debug* (android.util.Log:i "YAIL" message)))))
 
 ;;;; add-component
 (define-constant simple-component-package-name "com.google.appinventor.components.runtime")
@@ -205,7 +209,7 @@
     (if (not (instance? component com.google.appinventor.components.runtime.Component))
         (signal-runtime-error
          (string-append "Cannot find the component: "
-                        (get-display-representation possible-component))
+                        (get-bounded-display-representation possible-component))
          "Problem with application")
         component)))
 
@@ -255,7 +259,7 @@
     ((_ var-name)
      (if (instance? var-name <java.lang.Package>)
          (signal-runtime-error
-          (string-append "The variable " (get-display-representation `var-name)
+          (string-append "The variable " (get-bounded-display-representation `var-name)
                          " is not bound in the current context")
           "Unbound Variable")
          var-name))))
@@ -317,7 +321,9 @@
          (gnu.mapping.Environment:make (symbol->string 'form-name)))
 
        (define (add-to-form-environment name :: gnu.mapping.Symbol object)
-         (android-log-form (format #f "Adding ~A to env ~A with value ~A" name form-environment object))
+         (when *debug-form*
+           (android-log-form (format #f "Adding ~A to env ~A with value ~A"
+                                     name form-environment (get-bounded-display-representation object))))
          (gnu.mapping.Environment:put form-environment name object))
 
        (define (lookup-in-form-environment name :: gnu.mapping.Symbol #!optional (default-value #f))
@@ -335,7 +341,9 @@
                                         "-global-vars")))
 
        (define (add-to-global-var-environment name :: gnu.mapping.Symbol object)
-         (android-log-form (format #f "Adding ~A to env ~A with value ~A" name global-var-environment object))
+         (when *debug-form*
+           (android-log-form (format #f "Adding ~A to env ~A with value ~A"
+                                     name global-var-environment (get-bounded-display-representation object))))
          (gnu.mapping.Environment:put global-var-environment name object))
 
        ;; Simple wants there to be a variable named the same as the class.  It will
@@ -706,7 +714,10 @@
 (define (lookup-in-current-form-environment name :: gnu.mapping.Symbol #!optional (default-value #f))
                     ;  (android-log (format #f "Looking up ~A in env ~A" name
                     ;                                     (if (not (eq? *this-form* #!null)) (*:.form-environment *this-form*) 'null)))
-  (let ((env (if (not (eq? *this-form* #!null))
+  ;; env is typed so that Kawa resolves isBound and get when it compiles this,
+  ;; rather than on each lookup.
+  (let ((env :: gnu.mapping.Environment
+             (if (not (eq? *this-form* #!null))
                  (*:.form-environment *this-form*)
                  ;; The following is just for testing. In normal situations *this-form* should be non-null
                  *test-environment*)))
@@ -739,7 +750,8 @@
     *the-null-value*))
 
 (define (lookup-global-var-in-current-form-environment name :: gnu.mapping.Symbol #!optional (default-value #f))
-  (let ((env (if (not (eq? *this-form* #!null))
+  (let ((env :: gnu.mapping.Environment
+             (if (not (eq? *this-form* #!null))
                  (*:.global-var-environment *this-form*)
                  ;; The following is just for testing. In normal situations *this-form* should be non-null
                  *test-global-var-environment*)))
@@ -805,6 +817,8 @@
 (define-alias Short <java.lang.Short>)
 (define-alias String <java.lang.String>)
 (define-alias Pattern <java.util.regex.Pattern>)
+(define-alias YailDictionary <com.google.appinventor.components.runtime.util.YailDictionary>)
+(define-alias YailEquality <com.google.appinventor.components.runtime.util.YailEquality>)
 (define-alias YailList <com.google.appinventor.components.runtime.util.YailList>)
 (define-alias YailNumberToString <com.google.appinventor.components.runtime.util.YailNumberToString>)
 (define-alias YailRuntimeError <com.google.appinventor.components.runtime.errors.YailRuntimeError>)
@@ -875,10 +889,9 @@
   (let ((coerced-args (coerce-args method-name arglist typelist)))
     (let ((result
            (if (all-coercible? coerced-args)
-               (apply invoke
-                      `(,(lookup-in-current-form-environment component-name)
-                        ,method-name
-                        ,@coerced-args))
+               (invoke-component-method (lookup-in-current-form-environment component-name)
+                                        method-name
+                                        coerced-args)
                (generate-runtime-type-error method-name arglist))))
       ;; TODO(markf): this should probably be generalized but for now this is OK, I think
       (sanitize-component-data result))))
@@ -900,17 +913,45 @@
         (component-value (coerce-to-component-of-type possible-component component-type)))
     (if (not (instance? component-value com.google.appinventor.components.runtime.Component))
         (generate-runtime-type-error method-name
-                                     (list (get-display-representation possible-component)))
+                                     (list (get-bounded-display-representation possible-component)))
         (let ((result
                (if (all-coercible? coerced-args)
-                   (apply invoke
-                          `(,component-value
-                            ,method-name
-                            ,@coerced-args))
+                   (invoke-component-method component-value method-name coerced-args)
                    (generate-runtime-type-error method-name arglist))))
           ;; TODO(markf): this should probably be generalized but for now this is OK, I think
           (sanitize-component-data result)))))
 
+;;; INVOKE-COMPONENT-METHOD
+;;; Call the named method of the component with the given list of (coerced) args.
+;;; This does what (apply invoke component method-name args) does, except that
+;;; Kawa's lookup of the methods with that name, which is most of the cost of
+;;; invoke, is done only the first time the method is called on a component class.
+
+(define *component-methods* (java.util.HashMap))
+
+(define (invoke-component-method component method-name args)
+  ;; The casts let Kawa resolve the Java methods called here when it compiles
+  ;; this, rather than on each call.
+  (let* ((component-class (*:getClass (as java.lang.Object component)))
+         (methods (let ((methods (*:get (as java.util.Map *component-methods*) component-class)))
+                    (if (eq? methods #!null)
+                        (let ((new-methods (java.util.HashMap)))
+                          (*:put (as java.util.Map *component-methods*) component-class new-methods)
+                          new-methods)
+                        methods)))
+         (method (let ((method (*:get (as java.util.Map methods) method-name)))
+                   (if (eq? method #!null)
+                       (let ((new-method
+                              (gnu.kawa.reflect.ClassMethods:apply
+                               (as gnu.bytecode.ObjectType (gnu.bytecode.Type:make component-class))
+                               (gnu.expr.Compilation:mangleName (symbol->string method-name))
+                               #\*
+                               (kawa.standard.Scheme:getInstance))))
+                         (*:put (as java.util.Map methods) method-name new-method)
+                         new-method)
+                       method))))
+    (apply (as gnu.mapping.Procedure method) component args)))
+
 
 ;;; CALL-USER-PROCEDURE
 
@@ -1073,9 +1114,11 @@
 ;;; Call a component's property setter method with argument coercion
 ;;; Ex: (%set-and-coerce-property! Button3 'FontSize 14 'number)
 (define (%set-and-coerce-property! comp prop-name property-value property-type)
-  (android-log (format #f "coercing for setting property ~A -- value ~A to type ~A" prop-name property-value property-type))
+  (android-log (format #f "coercing for setting property ~A -- value ~A to type ~A"
+                       prop-name (get-bounded-display-representation property-value) property-type))
   (let ((coerced-arg (coerce-arg property-value property-type)))
-    (android-log (format #f "coerced property value was: ~A " coerced-arg))
+    (android-log (format #f "coerced property value was: ~A "
+                         (get-bounded-display-representation coerced-arg)))
     (if (all-coercible? (list coerced-arg))
         (invoke comp prop-name coerced-arg)
         (generate-runtime-type-error prop-name (list property-value)))))
@@ -1095,7 +1138,7 @@
   (invoke layout prop-name value))
 
 (define (generate-runtime-type-error proc-name arglist)
-  (android-log (format #f "arglist is: ~A " arglist))
+  (android-log (format #f "arglist is: ~A " (get-bounded-display-representation arglist)))
   (let ((string-name (coerce-to-string proc-name)))
     (signal-runtime-error
      (string-append "The operation "
@@ -1107,7 +1150,7 @@
 ;;; show a string that is the elements in arglist, with the individual
 ;;; elements delimited by brackets to make error messages more readable
 (define (show-arglist-no-parens args)
-  (let* ((elements (map get-display-representation args))
+  (let* ((elements (map get-bounded-display-representation args))
          (bracketed (map (lambda (s) (string-append "[" s "]")) elements)))
     (let loop ((result "") (rest-elements bracketed))
       (if (null? rest-elements)
@@ -1132,8 +1175,8 @@
         ((not (= (length arglist) (length typelist)))
          (signal-runtime-error
           (string-append "The arguments " (show-arglist-no-parens arglist)
-                         " are the wrong number of arguments for " (get-display-representation procedure-name))
-          (string-append "Wrong number of arguments for" (get-display-representation procedure-name))))
+                         " are the wrong number of arguments for " (get-bounded-display-representation procedure-name))
+          (string-append "Wrong number of arguments for" (get-bounded-display-representation procedure-name))))
         (else (map coerce-arg arglist typelist))))
 
 (define (coerce-arg arg type)
@@ -1272,15 +1315,46 @@
             (else (call-with-output-string (lambda (port) (display arg port))))))))
 
 (define (join-strings strings separator)
-   (cond ((null? strings) "")
-         ((null? (cdr strings)) (car strings))
-         (else ;; have at least two strings
-           (apply string-append
-                  (cons (car strings)
-                        (let recur ((strs (cdr strings)))
-                          (if (null? strs)
-                              '()
-                              (cons separator (cons (car strs) (recur (cdr strs)))))))))))
+  (let ((result :: java.lang.StringBuilder (java.lang.StringBuilder)))
+    (let loop ((strs strings))
+      (unless (null? strs)
+        (unless (eq? strs strings)
+          (result:append (as java.lang.CharSequence separator)))
+        (result:append (as java.lang.CharSequence (car strs)))
+        (loop (cdr strs))))
+    (result:toString)))
+
+;;; The longest representation of a value that error messages and log messages
+;;; show.  Longer representations are cut off and end with "...".
+(define *max-display-representation-length* 1000)
+
+;;; This is get-display-representation for error messages and log messages.
+;;; It writes lists item by item and stops once the representation is longer
+;;; than *max-display-representation-length*, so that an error about a long
+;;; list doesn't build the display of the whole list only to show it.
+(define (get-bounded-display-representation arg)
+  (let ((result :: java.lang.StringBuilder (java.lang.StringBuilder))
+        (json? (use-json-format)))
+    (define (render arg)
+      (cond ((yail-list? arg) (render-items (yail-list-contents arg)))
+            ((list? arg) (render-items arg))
+            (json? (result:append (as java.lang.CharSequence (get-json-display-representation arg))))
+            (else (result:append (as java.lang.CharSequence (get-original-display-representation arg))))))
+    (define (render-items items)
+      (result:append (if json? "[" "("))
+      (let loop ((rest items))
+        (unless (or (null? rest)
+                    (> (result:length) *max-display-representation-length*))
+          (unless (eq? rest items)
+            (result:append (if json? ", " " ")))
+          (render (car rest))
+          (loop (cdr rest))))
+      (result:append (if json? "]" ")")))
+    (render arg)
+    (when (> (result:length) *max-display-representation-length*)
+      (result:setLength *max-display-representation-length*)
+      (result:append "..."))
+    (result:toString)))
 
 ;;;!!! end of replacement
 
@@ -1364,41 +1438,20 @@
 ;;; yail-equal? method
 ;;; Notice that this procedure works on the yail-list type
 ;;; because a yail-list is implemented as an ordinary list, with a tag
+;;; The comparison is done by YailEquality, which reads strings as numbers
+;;; through a cache and compares integers and doubles directly.
 (define (yail-equal? x1 x2)
-  (cond ((and (null? x1) (null? x2)) #t)
-        ((or (null? x1) (null? x2)) #f)
-        ((and (not (pair? x1)) (not (pair? x2)))
-         (yail-atomic-equal? x1 x2))
-        ((or (not (pair? x1)) (not (pair? x2)))
-         #f)
-        (else (and (yail-equal? (car x1) (car x2))
-         (yail-equal? (cdr x1) (cdr x2))))))
-
+  (YailEquality:equal x1 x2))
+
+;;; x1 and x2 are equal if they are equal?, which covers equal objects and
+;;; equal strings, or else if both convert to numbers that are =.
+;;; Note that equal? is not sufficient for numbers because in Scheme
+;;; (= 1 1.0) is true while (equal? 1 1.0) is false.
+;;; This implementation says that "0" is equal to "00" since both convert
+;;; to 0. Requiring strings to be string=? instead would make equality not
+;;; transitive, since "0" and "00" are both equal to 0.
 (define (yail-atomic-equal? x1 x2)
-  (cond
-   ;; equal? covers the case where x1 and x2 are equal objects or equal strings.
-   ((equal? x1 x2) #t)
-   ;; This implementation says that "0" is equal to "00" since
-   ;; both convert to 0.
-
-   ;; We could change this to require that
-   ;; two strings are string=, but then equality would not be transitive
-   ;; since "0" and "00" are both equal to 0, but would not be equal to
-   ;; each other
-   ;; Uncomment these two lines to use string=? on strings
-   ;; ((and (string? x1) (string? x2))
-   ;;  (equal? x1 x2))
-
-   ;; If the x1 and x2 are not equal?, try comparing coverting x1 and x2 to numbers
-   ;; and comparing them numerically
-   ;; Note that equal? is not sufficient for numbers
-   ;; because in Scheme (= 1 1.0) is true while
-   ;; (equal? 1 1.0) is false.
-   (else
-    (let ((nx1 (as-number x1)))
-      (and nx1
-           (let ((nx2 (as-number x2)))
-             (and nx2 (= nx1 nx2))))))))
+  (YailEquality:atomicEqual x1 x2))
 
 ;;; Return the number, converting from a string if necessary
 ;;; Return #f if not a number
@@ -1425,7 +1478,7 @@
               (and coerced-conjunct (and-proc (cdr delayed-args)))
               (signal-runtime-error
                (string-append "The AND operation cannot accept the argument "
-                    (get-display-representation conjunct)
+                    (get-bounded-display-representation conjunct)
                     " because it is neither true nor false")
                (string-append "Bad argument to AND"))))))
   (and-proc delayed-args))
@@ -1440,7 +1493,7 @@
               (or coerced-disjunct (or-proc (cdr delayed-args)))
               (signal-runtime-error
                (string-append "The OR operation cannot accept the argument "
-                    (get-display-representation disjunct)
+                    (get-bounded-display-representation disjunct)
                     " because it is neither true nor false")
                (string-append "Bad argument to OR"))))))
   (or-proc delayed-args))
@@ -1617,7 +1670,7 @@
           (signal-runtime-error
            (string-append
             "format-as-decimal was called with "
-            (get-display-representation places)
+            (get-bounded-display-representation places)
             " as the number of decimal places.  This number must be a non-negative integer.")
            (string-append "Bad number of decimal places for format as decimal")))))
 
@@ -1652,7 +1705,7 @@
     (string-to-upper-case (number->string (string->number x) 16))
     (signal-runtime-error
       (format #f "Convert base 10 to hex: '~A' is not a positive integer"
-       (get-display-representation x)
+       (get-bounded-display-representation x)
       )
       "Argument is not a positive integer"
     )
@@ -1664,7 +1717,7 @@
     (string->number (string-to-upper-case x) 16)
     (signal-runtime-error
       (format #f "Convert hex to base 10: '~A' is not a hexadecimal number"
-       (get-display-representation x)
+       (get-bounded-display-representation x)
       )
       "Invalid hexadecimal number"
     )
@@ -1676,7 +1729,7 @@
     (string->number x 2)
     (signal-runtime-error
       (format #f "Convert binary to base 10: '~A' is not a  binary number"
-       (get-display-representation x)
+       (get-bounded-display-representation x)
       )
       "Invalid binary number"
     )
@@ -1688,7 +1741,7 @@
     (patched-number->string-binary (string->number x))
     (signal-runtime-error
       (format #f "Convert base 10 to binary: '~A' is not a positive integer"
-       (get-display-representation x)
+       (get-bounded-display-representation x)
       )
       "Argument is not a positive integer"
     )
@@ -1753,9 +1806,22 @@ Block name               Kawa implementation
 - position in list       (yail-list-index item list)
 - for each                (foreach variable bodyform yail-list) [macro] [in control drawer]
 - pick random item        (yail-list-pick-random yail-list)
+- sort list               (yail-list-sort yail-list)
+- sort list with          (yail-list-sort-comparator yail-list less-than?)
+- map list                (yail-list-map proc yail-list)
+- filter list             (yail-list-filter pred yail-list)
+- reduce list             (yail-list-reduce initial-answer combiner yail-list)
+- slice list              (yail-list-slice yail-list index1 index2)
 - is list?                (yail-list? object)
 - is empty?               (yail-list-empty? yail-list)
 - lookup in pairs         (yail-alist-lookup key yail-list-of-pairs default)
+- make dictionary         (make-yail-dictionary yail-list-of-pairs)
+- lookup in dictionary    (yail-dictionary-lookup key yail-dictionary default)
+- set dictionary pair     (yail-dictionary-set-pair! yail-dictionary key value)
+- delete dictionary pair  (yail-dictionary-delete-pair! yail-dictionary key)
+- is key in dictionary?   (yail-dictionary-contains-key? yail-dictionary key)
+- size of dictionary      (yail-dictionary-length yail-dictionary)
+- dictionary to pairs     (yail-dictionary->alist yail-dictionary)
 
 Lists in App Inventor are implemented as "Yail lists".  A Yail list is
 a Java pair whose car is a distinguished token
@@ -1840,7 +1906,7 @@ list, use the make-yail-list constructor with no arguments.
 (define (yail-list-to-csv-table yl)
   (if (not (yail-list? yl))
     (signal-runtime-error "Argument value to \"list to csv table\" must be a list" "Expecting list")
-    (CsvUtil:toCsvTable (apply make-yail-list (map convert-to-strings-for-csv (yail-list-contents yl))))))
+    (CsvUtil:toCsvTable (yail-list-map convert-to-strings-for-csv yl))))
 
 ;;; converts a yail list to a CSV-formatted row and returns the text.
 ;;; yl should be a YailList
@@ -1855,7 +1921,7 @@ list, use the make-yail-list constructor with no arguments.
 (define (convert-to-strings-for-csv yl)
   (cond ((yail-list-empty? yl) yl)
     ((not (yail-list? yl)) (make-yail-list yl))
-    (else (apply make-yail-list (map coerce-to-string (yail-list-contents yl))))))
+    (else (yail-list-map coerce-to-string yl))))
 
 ;;; converts a CSV-formatted table text to a yail list of lists
 (define (yail-list-from-csv-table str)
@@ -1886,8 +1952,9 @@ list, use the make-yail-list constructor with no arguments.
 
 
 ;; Implements the Blocks length operation
+;; YailList keeps an index of its items, so this doesn't walk the list.
 (define (yail-list-length yail-list)
-  (length (yail-list-contents yail-list)))
+  (*:size (as YailList yail-list)))
 
 ;; These are removed, to simplify the API to lists
 ;; ;; Implements the Blocks first operation
@@ -1911,10 +1978,7 @@ list, use the make-yail-list constructor with no arguments.
 ;; returns the 1-based index of the object in the list
 ;; returns 0 if object not in list
 (define (yail-list-index object yail-list)
-  (let loop ((i 1) (list (yail-list-contents yail-list)))
-    (cond ((null? list) 0)
-          ((yail-equal? object (car list)) i)
-          (else (loop (+ i 1) (cdr list))))))
+  (YailEquality:indexOf object (yail-list-contents yail-list)))
 
 ;; Implements the Blocks get list item operation
 (define (yail-list-get-item yail-list index)
@@ -1922,7 +1986,7 @@ list, use the make-yail-list constructor with no arguments.
       (signal-runtime-error
        (format #f "Select list item: Attempt to get item number ~A, of the list ~A.  The minimum valid item number is 1."
                index
-               (get-display-representation yail-list))
+               (get-bounded-display-representation yail-list))
        "List index smaller than 1"))
   (let ((len (yail-list-length yail-list)))
     (if (> index len)
@@ -1930,9 +1994,9 @@ list, use the make-yail-list constructor with no arguments.
          (format #f "Select list item: Attempt to get item number ~A of a list of length ~A: ~A"
                  index
                  len
-                 (get-display-representation yail-list))
+                 (get-bounded-display-representation yail-list))
          "Select list item: List index too large")
-    (list-ref (yail-list-contents yail-list) (- index 1)))))
+    (*:getObject (as YailList yail-list) (- index 1)))))
 
 
 ;; Implements the Blocks set list item operation
@@ -1941,7 +2005,7 @@ list, use the make-yail-list constructor with no arguments.
       (signal-runtime-error
        (format #f "Replace list item: Attempt to replace item number ~A of the list ~A.  The minimum valid item number is 1."
                index
-               (get-display-representation yail-list))
+               (get-bounded-display-representation yail-list))
        "List index smaller than 1"))
   (let ((len (yail-list-length yail-list)))
     (if (> index len)
@@ -1949,9 +2013,9 @@ list, use the make-yail-list constructor with no arguments.
          (format #f "Replace list item: Attempt to replace item number ~A of a list of length ~A: ~A"
                  index
                  len
-                 (get-display-representation yail-list))
+                 (get-bounded-display-representation yail-list))
          "List index too large")))
-  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value))
+  (*:setObject (as YailList yail-list) (- index 1) value))
 
 
 
@@ -1961,18 +2025,18 @@ list, use the make-yail-list constructor with no arguments.
   (let ((index2 (coerce-to-number index)))
     (if (eq? index2 *non-coercible-value*)
         (signal-runtime-error
-         (format #f "Remove list item: index -- ~A -- is not a number" (get-display-representation index))
+         (format #f "Remove list item: index -- ~A -- is not a number" (get-bounded-display-representation index))
          "Bad list index"))
     (if (yail-list-empty? yail-list)
         (signal-runtime-error
-         (format #f "Remove list item: Attempt to remove item ~A of an empty list"  (get-display-representation index))
+         (format #f "Remove list item: Attempt to remove item ~A of an empty list"  (get-bounded-display-representation index))
          "Invalid list operation"))
     (if (< index2 1)
         (signal-runtime-error
          (format #f
                  "Remove list item: Attempt to remove item ~A of the list ~A.  The minimum valid item number is 1."
                  index2
-                 (get-display-representation yail-list))
+                 (get-bounded-display-representation yail-list))
          "List index smaller than 1"))
     (let ((len (yail-list-length yail-list)))
       (if (> index2 len)
@@ -1980,10 +2044,9 @@ list, use the make-yail-list constructor with no arguments.
            (format #f "Remove list item: Attempt to remove item ~A of a list of length ~A: ~A"
                    index2
                    len
-                   (get-display-representation yail-list))
+                   (get-bounded-display-representation yail-list))
            "List index too large"))
-      (let ((pair-pointing-to-deletion (list-tail yail-list (- index2 1))))
-        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))))))
+      (*:removeObject (as YailList yail-list) (- index2 1)))))
 
 
 ;; Implements the Blocks insert list item operation
@@ -1994,14 +2057,14 @@ list, use the make-yail-list constructor with no arguments.
   (let ((index2 (coerce-to-number index)))
     (if (eq? index2 *non-coercible-value*)
         (signal-runtime-error
-         (format #f "Insert list item: index (~A) is not a number" (get-display-representation index))
+         (format #f "Insert list item: index (~A) is not a number" (get-bounded-display-representation index))
          "Bad list index"))
     (if (< index2 1)
         (signal-runtime-error
          (format #f
                  "Insert list item: Attempt to insert item ~A into the list ~A.  The minimum valid item number is 1."
                  index2
-                 (get-display-representation yail-list))
+                 (get-bounded-display-representation yail-list))
          "List index smaller than 1"))
     (let ((len+1 (+ (yail-list-length yail-list) 1)))
       (if (> index2 len+1)
@@ -2009,38 +2072,27 @@ list, use the make-yail-list constructor with no arguments.
            (format #f
                    "Insert list item: Attempt to insert item ~A into the list ~A.  The maximum valid item number is ~A."
                    index2
-                   (get-display-representation yail-list)
+                   (get-bounded-display-representation yail-list)
                    len+1)
            "List index too large"))
-      (let ((contents (yail-list-contents yail-list)))
-        (if (= index2 1)
-            (set-yail-list-contents! yail-list (cons item contents))
-            (let ((at-item (list-tail contents (- index2 2))))
-              (set-cdr! at-item (cons item (cdr at-item)))))))))
+      (*:insertObject (as YailList yail-list) (- index2 1) item))))
 
 ;; Extends list A by appending the elements of list B to it
 ;; Modifies list A
 ;; Implements blocks append operation
+;; Unlike Scheme, we copy the items so there's no shared tail
+;; between the augmented list and the source of the added elements.
+;; But like Python, we do a shallow copy, so that substructure is
+;; shared.  YailList appends at its end without walking the list.
 (define (yail-list-append! yail-list-A yail-list-B)
-  ;; Unlike Scheme, we copy the tail so there's no shared tail
-  ;; between the augmented list and the source of the added elements.
-  ;; But like Python, we do a shallow copy, so that substructure is
-  ;; shared.
-  (define (list-copy l)
-    (if (null? l)
-    '()
-    (cons (car l) (list-copy (cdr l)))))
-  ;; We have to operate on the yail-list itself, not the contents, because
-  ;; the contents might be empty
-  (set-cdr! (list-tail yail-list-A (length (yail-list-contents yail-list-A)))
-        (list-copy (yail-list-contents yail-list-B))))
+  (*:addObjects (as YailList yail-list-A) (as YailList yail-list-B)))
 
 
 ;; Extend list A by appending the items to it
 ;; Modifies list A
 ;; Implements blocks add to list operation
 (define (yail-list-add-to-list! yail-list . items)
-  (yail-list-append! yail-list (apply make-yail-list items)))
+  (for-each (lambda (item) (*:addObject (as YailList yail-list) item)) items))
 
 ;;;TODO(halabelson): BUG!  We need to recognize that "1" is
 ;;; a member of (1 2 3)
@@ -2048,8 +2100,7 @@ list, use the make-yail-list constructor with no arguments.
 ;; Implements the blocks member? operation
 ;; This returns true or false (unlike Scheme's member primitive)
 (define (yail-list-member? object yail-list)
-  (let ((result (member object (yail-list-contents yail-list) yail-equal?)))
-    (if result #t #f)))
+  (> (YailEquality:indexOf object (yail-list-contents yail-list)) 0))
 
 
 ;; Returns an element chosen at random from the list
@@ -2061,6 +2112,77 @@ list, use the make-yail-list constructor with no arguments.
   (yail-list-get-item yail-list
               (random-integer 1  (yail-list-length yail-list))))
 
+;;; The sort, map, filter, reduce and slice operations return new lists
+;;; and visit each item of the list once, rather than through the indexed
+;;; list operations.
+
+;; Implements the Blocks sort operation
+;; Numbers come first, then text, then booleans, then lists, in the
+;; order that YailEquality:compare describes
+(define (yail-list-sort yail-list)
+  (*:sorted (as YailList yail-list) YailEquality:COMPARATOR))
+
+;; Implements the Blocks sort with comparator operation
+;; less-than? returns true if its first argument should come before its second
+;; YailList:sorted only asks whether the comparison is negative, so
+;; less-than? is called once per comparison, and it does not have to be
+;; consistent.
+(define (yail-list-sort-comparator yail-list less-than?)
+  (let ((less-than? :: procedure less-than?))
+    (*:sorted (as YailList yail-list)
+              (object (java.util.Comparator)
+                ((compare (x :: java.lang.Object) (y :: java.lang.Object)) :: int
+                 (if (less-than?:apply2 x y) -1 0))))))
+
+;; Implements the Blocks map operation
+(define (yail-list-map proc yail-list)
+  (let ((proc :: procedure proc)
+        (result :: YailList (make YailList)))
+    (for-each (lambda (item) (result:addObject (proc:apply1 item)))
+              (yail-list-contents yail-list))
+    result))
+
+;; Implements the Blocks filter operation
+(define (yail-list-filter pred yail-list)
+  (let ((pred :: procedure pred)
+        (result :: YailList (make YailList)))
+    (for-each (lambda (item) (when (pred:apply1 item) (result:addObject item)))
+              (yail-list-contents yail-list))
+    result))
+
+;; Implements the Blocks reduce operation
+;; combiner is called with the answer so far and the next item
+(define (yail-list-reduce initial-answer combiner yail-list)
+  (let ((combiner :: procedure combiner))
+    (let loop ((answer initial-answer) (items (yail-list-contents yail-list)))
+      (if (null? items)
+          answer
+          (loop (combiner:apply2 answer (car items)) (cdr items))))))
+
+;; Implements the Blocks slice operation
+;; returns the items from index1 up to, but not including, index2
+(define (yail-list-slice yail-list index1 index2)
+  (let ((len (yail-list-length yail-list)))
+    (cond ((< index1 1)
+           (signal-runtime-error
+            (format #f "Slice list: Attempt to slice list ~A at index ~A. The minimum valid index number is 1."
+                    (get-bounded-display-representation yail-list)
+                    index1)
+            "List index smaller than 1"))
+          ((> index2 (+ len 1))
+           (signal-runtime-error
+            (format #f "Slice list: Attempt to slice list ~A at index ~A.  The maximum valid index number is ~A."
+                    (get-bounded-display-representation yail-list)
+                    index2
+                    (+ len 1))
+            "List index too large"))
+          ((> index1 index2)
+           (signal-runtime-error
+            (format #f "Slice list: The first index ~A is larger than the second index ~A"
+                    index1 index2)
+            "Bad list indices")))
+    (*:slice (as YailList yail-list) (- index1 1) (- index2 1))))
+
 
 ;; Implements Blocks foreach, which takes a Yail-list as argument
 ;; This is called by Yail foreach, defined in macros.scm
@@ -2071,7 +2193,7 @@ list, use the make-yail-list constructor with no arguments.
         (signal-runtime-error
          (format #f
                  "The second argument to foreach is not a list.  The second argument is: ~A"
-                 (get-display-representation yail-list))
+                 (get-bounded-display-representation yail-list))
          "Bad list argument to foreach")
         (begin
           (for-each proc (yail-list-contents verified-list))
@@ -2085,15 +2207,15 @@ list, use the make-yail-list constructor with no arguments.
         (nstep (coerce-to-number step)))
     (if (eq? nstart *non-coercible-value*)
         (signal-runtime-error
-         (format #f "For range: the start value -- ~A -- is not a number" (get-display-representation start))
+         (format #f "For range: the start value -- ~A -- is not a number" (get-bounded-display-representation start))
          "Bad start value"))
     (if (eq? nend *non-coercible-value*)
         (signal-runtime-error
-         (format #f "For range: the end value -- ~A -- is not a number" (get-display-representation end))
+         (format #f "For range: the end value -- ~A -- is not a number" (get-bounded-display-representation end))
          "Bad end value"))
     (if (eq? nstep *non-coercible-value*)
         (signal-runtime-error
-         (format #f "For range: the step value -- ~A -- is not a number" (get-display-representation step))
+         (format #f "For range: the step value -- ~A -- is not a number" (get-bounded-display-representation step))
          "Bad step value"))
     (yail-for-range-with-numeric-checked-args proc nstart nend nstep)))
 
@@ -2116,6 +2238,15 @@ list, use the make-yail-list constructor with no arguments.
          ;;  "Bad inputs to FOR RANGE")
          *the-null-value*
          )
+        ((and (int-value? start) (int-value? end) (int-value? step))
+         ;; Count with a primitive long, which cannot overflow since the
+         ;; bounds fit in an int, rather than with generic arithmetic.
+         (let ((proc :: procedure proc)
+               (end :: long end)
+               (step :: long step))
+           (do ((i :: long start (+ i step)))
+               ((if (< step 0) (< i end) (> i end)) *the-null-value*)
+             (proc:apply1 (gnu.math.IntNum:make i)))))
         (else
          (let ((stop-comparison
                 (if (< step 0) < >)))
@@ -2125,16 +2256,22 @@ list, use the make-yail-list constructor with no arguments.
                  (begin (proc i)
                         (loop (+ i step)))))))))
 
+;;; Return whether n is an exact integer that fits in a Java int.
+(define (int-value? n)
+  (and (instance? n gnu.math.IntNum)
+       (<= java.lang.Integer:MIN_VALUE n java.lang.Integer:MAX_VALUE)))
+
 ;;; return the yail list of integers in the range [low, high]
 ;;; This definition is different from range in Python, where
 ;;; the interval is (low, high)
 (define (yail-number-range low high)
-  (define (loop a b)
-    (if (> a b)
-        '()
-        (cons a (loop (+ a 1) b))))
-  (kawa-list->yail-list (loop (inexact->exact (ceiling low))
-                              (inexact->exact (floor high)))))
+  (let ((high (inexact->exact (floor high)))
+        (result :: YailList (make YailList)))
+    (let loop ((i (inexact->exact (ceiling low))))
+      (unless (> i high)
+        (result:addObject i)
+        (loop (+ i 1))))
+    result))
 
 
 ;;; For now, we'll represent tables as lists of pairs.
@@ -2148,29 +2285,60 @@ list, use the make-yail-list constructor with no arguments.
 ;;; dealing with Yail lists.  We also need to ccompare with yail-equal?
 ;;; rather than equal? to  allow for yail's implicit conversion between strings and numbers
 
-;;; TODO(hal):  Implement dictionaries and
-;;; integrate these with get JSON from web services.  Probably need to
-;;; make new DICTIONARY data type analogous to YailList.  Think about
-;;; any component operations that need to create dictionaries and whether we
-;;; we need a Java class similar to the YailList Java class.  Also think about
-;;; how to convert dictionaries to strings and how this interacts with printing
-;;; JSON objects and whether jsonutils.decode.
+;;; A dictionary made with make-yail-dictionary can be used in place of
+;;; the list of pairs, in which case the lookup takes constant time.
 
 (define (yail-alist-lookup key yail-list-of-pairs default)
-  (android-log
-   (format #f "List alist lookup key is  ~A and table is ~A" key yail-list-of-pairs))
-  (let loop ((pairs-to-check (yail-list-contents yail-list-of-pairs)))
-    (cond ((null? pairs-to-check) default)
-          ((not (pair-ok? (car pairs-to-check)))
-           (signal-runtime-error
-            (format #f "Lookup in pairs: the list ~A is not a well-formed list of pairs"
-                    (get-display-representation yail-list-of-pairs))
-            "Invalid list of pairs"))
-          ((yail-equal? key (car (yail-list-contents (car pairs-to-check))))
-           (cadr (yail-list-contents (car pairs-to-check))))
-          (else (loop (cdr pairs-to-check))))))
+  (if (yail-dictionary? yail-list-of-pairs)
+      (yail-dictionary-lookup key yail-list-of-pairs default)
+      (let loop ((pairs-to-check (yail-list-contents yail-list-of-pairs)))
+        (cond ((null? pairs-to-check) default)
+              ((not (pair-ok? (car pairs-to-check)))
+               (signal-runtime-error
+                (format #f "Lookup in pairs: the list ~A is not a well-formed list of pairs"
+                        (get-bounded-display-representation yail-list-of-pairs))
+                "Invalid list of pairs"))
+              ((yail-equal? key (car (yail-list-contents (car pairs-to-check))))
+               (cadr (yail-list-contents (car pairs-to-check))))
+              (else (loop (cdr pairs-to-check)))))))
+
+
+;;; Dictionaries are YailDictionary objects, hashed tables whose keys
+;;; are compared the way yail-equal? compares atoms, so that "1" and 1
+;;; are the same key.  Lookup and insertion take constant time.
+;;; Dictionaries convert to and from lists of pairs, and JSON objects
+;;; decode to dictionaries with JsonUtil:getDictionaryFromJsonObject.
+
+(define (yail-dictionary? x)
+  (instance? x YailDictionary))
+
+;;; Makes a dictionary from a list of pairs.  The first pair with a
+;;; key wins, and later pairs with the same key are ignored.
+(define (make-yail-dictionary yail-list-of-pairs)
+  (if (yail-list? yail-list-of-pairs)
+      (YailDictionary:makeDictionary yail-list-of-pairs)
+      (signal-runtime-error
+       (format #f "Make dictionary: ~A is not a list of pairs"
+               (get-bounded-display-representation yail-list-of-pairs))
+       "Invalid list of pairs")))
+
+(define (yail-dictionary-lookup key yail-dictionary default)
+  (*:get (as YailDictionary yail-dictionary) key default))
+
+(define (yail-dictionary-set-pair! yail-dictionary key value)
+  (*:put (as YailDictionary yail-dictionary) key value))
+
+(define (yail-dictionary-delete-pair! yail-dictionary key)
+  (*:remove (as YailDictionary yail-dictionary) key))
+
+(define (yail-dictionary-contains-key? yail-dictionary key)
+  (*:containsKey (as YailDictionary yail-dictionary) key))
 
+(define (yail-dictionary-length yail-dictionary)
+  (*:size (as YailDictionary yail-dictionary)))
 
+(define (yail-dictionary->alist yail-dictionary)
+  (*:toYailList (as YailDictionary yail-dictionary)))
 
 (define (pair-ok? candidate-pair)
   (and (yail-list? candidate-pair)
@@ -0,0 +1,88 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gnu.mapping.Environment;
+import gnu.mapping.Procedure;
+import kawa.standard.Scheme;
+
+/**
+ * The code that the *Benchmark mains in this package share: reading their
+ * arguments, loading the YAIL runtime into Kawa the way YailEvalTest does,
+ * and timing a task. Run a benchmark with
+ * {@code ant Benchmark -Dbenchmark=<class> -Dbenchmark.args=<args>}.
+ */
+final class BenchmarkHarness {
+
+  /**
+   * Something to time.
+   */
+  interface Task {
+    void run() throws Throwable;
+  }
+
+  private BenchmarkHarness() {
+  }
+
+  /**
+   * Returns the argument at the given index, or the default if there are
+   * fewer arguments.
+   */
+  static String arg(String[] args, int index, String defaultValue) {
+    return (args.length > index) ? args[index] : defaultValue;
+  }
+
+  static int intArg(String[] args, int index, int defaultValue) {
+    return (args.length > index) ? Integer.parseInt(args[index]) : defaultValue;
+  }
+
+  /**
+   * Returns the comma separated numbers of the argument at the given index,
+   * or of the default if there are fewer arguments.
+   */
+  static List<Integer> intListArg(String[] args, int index, String defaultValue) {
+    List<Integer> numbers = new ArrayList<Integer>();
+    for (String number : arg(args, index, defaultValue).split(",")) {
+      numbers.add(Integer.parseInt(number.trim()));
+    }
+    return numbers;
+  }
+
+  /**
+   * Returns a Kawa interpreter with runtime.scm loaded. Procedures made by it
+   * can be called from Java, outside of eval, and values are shown as the
+   * tests show them, without a Form to ask.
+   */
+  static Scheme loadRuntime() throws Throwable {
+    Scheme scheme = new Scheme();
+    Environment.setCurrent(scheme.getEnvironment());
+    scheme.eval("(load \"" + Compiler.getResource(Compiler.YAIL_RUNTIME) + "\")");
+    scheme.eval("(set! *testing* #t)");
+    return scheme;
+  }
+
+  static Procedure procedure(Scheme scheme, String expression) throws Throwable {
+    return (Procedure) scheme.eval(expression);
+  }
+
+  /**
+   * Runs the task once to warm up, and returns the best time in nanoseconds
+   * of the given number of runs after that.
+   */
+  static long bestNanos(Task task, int repetitions) throws Throwable {
+    task.run();
+    long best = Long.MAX_VALUE;
+    for (int repetition = 0; repetition < repetitions; repetition++) {
+      long start = System.nanoTime();
+      task.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+}
@@ -0,0 +1,41 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildMetrics class.
+ */
+public class BuildMetricsTest extends TestCase {
+
+  public void testWriteMetrics() throws Exception {
+    long now = System.currentTimeMillis();
+    BuildMetrics.recordStage(BuildMetrics.Stage.ZIPALIGN, now - 300);
+    BuildMetrics.recordStage(BuildMetrics.Stage.ZIPALIGN, now - 3000);
+    BuildMetrics.recordStage(BuildMetrics.Stage.ZIPALIGN, now - 1000000);
+
+    StringBuilder text = new StringBuilder();
+    BuildMetrics.writeMetrics(text);
+    String metrics = text.toString();
+    assertTrue(metrics.contains(
+        "# TYPE buildserver_stage_duration_seconds histogram\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"zipalign\",le=\"0.25\"} 0\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"zipalign\",le=\"0.5\"} 1\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"zipalign\",le=\"5.0\"} 2\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"zipalign\",le=\"500.0\"} 2\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"zipalign\",le=\"+Inf\"} 3\n"));
+    assertTrue(metrics.contains(
+        "buildserver_stage_duration_seconds_count{stage=\"zipalign\"} 3\n"));
+    assertTrue(metrics.contains("buildserver_queue_wait_seconds_count "));
+    assertTrue(metrics.contains("buildserver_build_duration_seconds_count "));
+  }
+}
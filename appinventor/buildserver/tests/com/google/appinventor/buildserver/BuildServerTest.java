@@ -0,0 +1,119 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.core.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the build-all-from-zip-async request of the BuildServer class.
+ */
+public class BuildServerTest extends TestCase {
+  private static final String CALLBACK =
+      "http://localhost:8888/ode2/receivebuild/abc/build/Android";
+
+  private RecordingExecutor executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = new RecordingExecutor();
+    BuildServer.setBuildExecutor(executor);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildServer.setBuildExecutor(null);
+  }
+
+  public void testBuildWithoutPriorityIsNormal() throws Exception {
+    Response response = new BuildServer().buildAllFromZipFileAsync("user@example.com", CALLBACK,
+        null, null, projectZip());
+    assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+    assertEquals(1, executor.priorities.size());
+    assertEquals(BuildExecutor.Priority.NORMAL, executor.priorities.get(0));
+    assertEquals("user@example.com", executor.userNames.get(0));
+  }
+
+  public void testHighPriorityBuild() throws Exception {
+    new BuildServer().buildAllFromZipFileAsync("user@example.com", CALLBACK, null, "high",
+        projectZip());
+    assertEquals(1, executor.priorities.size());
+    assertEquals(BuildExecutor.Priority.HIGH, executor.priorities.get(0));
+  }
+
+  public void testUnknownPriorityIsRejected() throws Exception {
+    Response response = new BuildServer().buildAllFromZipFileAsync("user@example.com", CALLBACK,
+        null, "urgent", projectZip());
+    assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    assertTrue(executor.priorities.isEmpty());
+  }
+
+  private static InputStream projectZip() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(zip);
+    zipOutputStream.putNextEntry(new ZipEntry("youngandroidproject/project.properties"));
+    zipOutputStream.write("main=p.Screen1".getBytes("UTF-8"));
+    zipOutputStream.close();
+    return new ByteArrayInputStream(zip.toByteArray());
+  }
+
+  /*
+   * Records the user and priority class of each build task and then rejects it, so that the build
+   * server deletes the extracted project instead of building it.
+   */
+  private static class RecordingExecutor implements BuildExecutor {
+    final List<String> userNames = new ArrayList<String>();
+    final List<Priority> priorities = new ArrayList<Priority>();
+
+    @Override
+    public void execute(Runnable runnable) {
+      execute(runnable, "", Priority.NORMAL);
+    }
+
+    @Override
+    public void execute(Runnable runnable, String userName, Priority priority) {
+      userNames.add(userName);
+      priorities.add(priority);
+      throw new RejectedExecutionException();
+    }
+
+    @Override
+    public boolean hasCapacity(String userName) {
+      return true;
+    }
+
+    @Override
+    public int getMaxActiveTasks() {
+      return 1;
+    }
+
+    @Override
+    public int getActiveTaskCount() {
+      return 0;
+    }
+
+    @Override
+    public int getCompletedTaskCount() {
+      return 0;
+    }
+
+    @Override
+    public void addVariables(Map<String, String> variables) {
+    }
+  }
+}
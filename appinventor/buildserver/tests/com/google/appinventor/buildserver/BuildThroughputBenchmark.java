@@ -0,0 +1,134 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures build throughput of the {@link ProjectBuilder} when several builds
+ * run at the same time.
+ *
+ * <p>Every project zip in the corpus directory is built once for each
+ * concurrency level. At each level, the number of simultaneous Kawa or DX
+ * processes is set to the number of build threads, so the results can be
+ * compared against the serialized case (one build thread). This is not a unit
+ * test and is not run by the test suite; run it with
+ * {@code ant Benchmark -Dbenchmark=BuildThroughputBenchmark -Dbenchmark.args=corpusDir}.</p>
+ *
+ * <p>Usage: BuildThroughputBenchmark corpusDir [threadCounts] [childProcessRamMb]
+ * [dexCacheDir], where threadCounts is a comma separated list such as
+ * {@code 1,2,4}.</p>
+ */
+public final class BuildThroughputBenchmark {
+
+  private BuildThroughputBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: BuildThroughputBenchmark corpusDir [threadCounts] "
+          + "[childProcessRamMb] [dexCacheDir]");
+      System.exit(1);
+    }
+    File corpusDir = new File(args[0]);
+    List<Integer> threadCounts = BenchmarkHarness.intListArg(args, 1, "1,2,4");
+    int childProcessRamMb = BenchmarkHarness.intArg(args, 2, 2048);
+    // The Benchmark target passes the dex cache of the build.
+    String dexCacheDir = BenchmarkHarness.arg(args, 3, System.getProperty("dexCacheDir"));
+
+    File[] projects = corpusDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".aia") || name.endsWith(".zip");
+      }
+    });
+    if (projects == null || projects.length == 0) {
+      System.err.println("No project zips found in " + corpusDir);
+      System.exit(1);
+    }
+    Arrays.sort(projects);
+
+    // Warm up the resource and dex caches so that the first measured run is not penalized.
+    runBuilds(projects, 1, childProcessRamMb, dexCacheDir);
+
+    System.out.println("threads\tbuilds\tfailures\tseconds\tbuilds-per-minute");
+    for (int threads : threadCounts) {
+      long start = System.currentTimeMillis();
+      int failures = runBuilds(projects, threads, childProcessRamMb, dexCacheDir);
+      double seconds = (System.currentTimeMillis() - start) / 1000.0;
+      System.out.println(threads + "\t" + projects.length + "\t" + failures + "\t" + seconds
+          + "\t" + String.format("%.2f", projects.length * 60 / seconds));
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Builds all of the given projects with the given number of threads and returns the number of
+   * failed builds.
+   */
+  private static int runBuilds(File[] projects, int threads, final int childProcessRamMb,
+      final String dexCacheDir) throws Exception {
+    Compiler.setMaxSimultaneousCompiles(threads);
+    final AtomicInteger failures = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final File project : projects) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            if (!build(project, childProcessRamMb, dexCacheDir)) {
+              failures.incrementAndGet();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    return failures.get();
+  }
+
+  private static boolean build(File project, int childProcessRamMb, String dexCacheDir)
+      throws IOException {
+    File outputDir = File.createTempFile("benchmark", "");
+    outputDir.delete();
+    outputDir.mkdir();
+    ZipFile zip = new ZipFile(project);
+    try {
+      Result result = new ProjectBuilder().build("benchmark", zip, outputDir, false,
+          childProcessRamMb, dexCacheDir);
+      if (result.getResult() != Result.SUCCESS) {
+        System.err.println(project.getName() + ": " + result.getError());
+        return false;
+      }
+      return true;
+    } finally {
+      zip.close();
+      for (File file : outputDir.listFiles()) {
+        file.delete();
+      }
+      outputDir.delete();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ClassCache class.
+ */
+public class ClassCacheTest extends TestCase {
+  private File tempDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    cacheDir = new File(tempDir, "cache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir.getCanonicalFile());
+  }
+
+  public void testStoreAndFetch() throws Exception {
+    ClassCache cache = new ClassCache(cacheDir, 10);
+    File classesDir = new File(tempDir, "classes1");
+    File screen = write(classesDir, "p/Screen1.class", "screen");
+    File frame = write(classesDir, "p/Screen1$frame.class", "frame");
+    assertFalse(cache.fetch("key", classesDir));
+    cache.store("key", classesDir, Arrays.asList(screen, frame));
+
+    File otherClassesDir = new File(tempDir, "classes2");
+    assertTrue(cache.fetch("key", otherClassesDir));
+    assertEquals("screen", read(otherClassesDir, "p/Screen1.class"));
+    assertEquals("frame", read(otherClassesDir, "p/Screen1$frame.class"));
+
+    Map<String, String> variables = new HashMap<String, String>();
+    cache.addVariables(variables);
+    assertEquals("1", variables.get("class-cache-hits"));
+    assertEquals("1", variables.get("class-cache-misses"));
+  }
+
+  public void testStoreKeepsExistingEntry() throws Exception {
+    ClassCache cache = new ClassCache(cacheDir, 10);
+    File classesDir = new File(tempDir, "classes1");
+    cache.store("key", classesDir,
+        Arrays.asList(write(classesDir, "p/Screen1.class", "first")));
+    cache.store("key", classesDir,
+        Arrays.asList(write(classesDir, "p/Screen1.class", "second")));
+
+    File otherClassesDir = new File(tempDir, "classes2");
+    assertTrue(cache.fetch("key", otherClassesDir));
+    assertEquals("first", read(otherClassesDir, "p/Screen1.class"));
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    ClassCache cache = new ClassCache(cacheDir, 2);
+    File classesDir = new File(tempDir, "classes1");
+    File screen = write(classesDir, "p/Screen1.class", "screen");
+    cache.store("a", classesDir, Arrays.asList(screen));
+    new File(cacheDir, "a").setLastModified(1000);
+    cache.store("b", classesDir, Arrays.asList(screen));
+    new File(cacheDir, "b").setLastModified(2000);
+    cache.store("c", classesDir, Arrays.asList(screen));
+
+    File otherClassesDir = new File(tempDir, "classes2");
+    assertFalse(cache.fetch("a", otherClassesDir));
+    assertTrue(cache.fetch("b", otherClassesDir));
+    assertTrue(cache.fetch("c", otherClassesDir));
+  }
+
+  public void testTamperedEntryIsRemoved() throws Exception {
+    ClassCache cache = new ClassCache(cacheDir, 10);
+    File classesDir = new File(tempDir, "classes1");
+    cache.store("key", classesDir,
+        Arrays.asList(write(classesDir, "p/Screen1.class", "screen")));
+    write(new File(cacheDir, "key"), "p/Screen1.class", "planted");
+
+    File otherClassesDir = new File(tempDir, "classes2");
+    assertFalse(cache.fetch("key", otherClassesDir));
+    assertFalse(new File(otherClassesDir, "p/Screen1.class").exists());
+    assertFalse(new File(cacheDir, "key").exists());
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testEntryWithoutManifestIsRemoved() throws Exception {
+    ClassCache cache = new ClassCache(cacheDir, 10);
+    write(new File(cacheDir, "key"), "p/Screen1.class", "planted");
+
+    File classesDir = new File(tempDir, "classes1");
+    assertFalse(cache.fetch("key", classesDir));
+    assertFalse(new File(classesDir, "p/Screen1.class").exists());
+    assertFalse(new File(cacheDir, "key").exists());
+  }
+
+  public void testCacheDirIsOwnerOnly() throws Exception {
+    if (!tempDir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return;
+    }
+    cacheDir.mkdir();
+    java.nio.file.Files.setPosixFilePermissions(cacheDir.toPath(),
+        PosixFilePermissions.fromString("rwxrwxrwx"));
+    new ClassCache(cacheDir, 10);
+    assertEquals("rwx------", PosixFilePermissions.toString(
+        java.nio.file.Files.getPosixFilePermissions(cacheDir.toPath())));
+  }
+
+  private static File write(File dir, String path, String content) throws IOException {
+    File file = new File(dir, path);
+    Files.createParentDirs(file);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static String read(File dir, String path) throws IOException {
+    return Files.toString(new File(dir, path), Charsets.UTF_8);
+  }
+}
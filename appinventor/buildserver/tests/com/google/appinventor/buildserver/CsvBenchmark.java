@@ -0,0 +1,111 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.components.runtime.util.CsvUtil;
+import com.google.appinventor.components.runtime.util.YailList;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures reading and writing a large CSV table file, both through text
+ * held in memory, as the list from csv table and list to csv table blocks
+ * do, and by streaming the table through CsvUtil's Reader and Writer
+ * methods.
+ *
+ * <p>For each way, the best time and the memory allocated by the fastest
+ * run are reported; the memory is only reported on JVMs that count it. This
+ * is not a unit test and is not run by the test suite; run it with
+ * {@code ant Benchmark -Dbenchmark=CsvBenchmark}.</p>
+ *
+ * <p>Usage: CsvBenchmark [rows] [repetitions]</p>
+ */
+public final class CsvBenchmark {
+
+  private static final String[] WAYS = { "write-text", "write-stream", "read-text", "read-stream" };
+
+  private CsvBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rows = BenchmarkHarness.intArg(args, 0, 50000);
+    int repetitions = BenchmarkHarness.intArg(args, 1, 5);
+
+    YailList table = new YailList();
+    for (int i = 0; i < rows; i++) {
+      table.addObject(YailList.makeList(new Object[] {
+          "row " + i, "the \"name\" of row " + i, Integer.toString(i * 7), "2017-01-01", "" }));
+    }
+    File file = File.createTempFile("table", ".csv");
+    file.deleteOnExit();
+
+    System.out.println("way\tms\tallocated-mb");
+    for (String way : WAYS) {
+      // Warm up, then keep the best time.
+      run(way, table, file);
+      long best = Long.MAX_VALUE;
+      long allocated = -1;
+      for (int repetition = 0; repetition < repetitions; repetition++) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        run(way, table, file);
+        long time = System.nanoTime() - start;
+        if (time < best) {
+          best = time;
+          allocated = allocatedBytes() - allocatedBefore;
+        }
+      }
+      System.out.println(way + "\t" + (best / 1000000) + "\t"
+          + (allocated < 0 ? "?" : Long.toString(allocated / (1024 * 1024))));
+    }
+    System.out.println("file-mb\t" + file.length() / (1024 * 1024));
+    System.exit(0);
+  }
+
+  private static void run(String way, YailList table, File file) throws Exception {
+    if (way.equals("write-text")) {
+      Files.write(CsvUtil.toCsvTable(table), file, Charsets.UTF_8);
+    } else if (way.equals("write-stream")) {
+      Writer out = Files.newWriter(file, Charsets.UTF_8);
+      try {
+        CsvUtil.toCsvTable(table, out);
+      } finally {
+        out.close();
+      }
+    } else if (way.equals("read-text")) {
+      check(CsvUtil.fromCsvTable(Files.toString(file, Charsets.UTF_8)), table);
+    } else {
+      Reader in = Files.newReader(file, Charsets.UTF_8);
+      try {
+        check(CsvUtil.fromCsvTable(in), table);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static void check(YailList readTable, YailList table) {
+    if (readTable.size() != table.size()) {
+      throw new IllegalStateException("Read " + readTable.size() + " rows of " + table.size());
+    }
+  }
+
+  // Returns the bytes allocated by this thread so far, or -1 if the JVM doesn't count them.
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KawaCompilerPool class.
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  // A small stand-in for the YAIL runtime, with a macro that the sources use.
+  private static final String RUNTIME =
+      "(define-syntax def (syntax-rules () ((_ n v) (define n v))))\n" +
+      "(module-name com.example.testruntime)\n" +
+      "(module-static #t)\n" +
+      "(define (twice x) (* 2 x))\n";
+
+  private static final String SOURCE =
+      "(require <com.example.testruntime>)\n" +
+      "(def answer (twice 21))\n";
+
+  private File tempDir;
+  private String classpath;
+  private String runtime;
+  private KawaCompilerPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    classpath = new File(Class.forName("kawa.repl").getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getAbsolutePath();
+    runtime = write("runtime.scm", RUNTIME);
+    pool = new KawaCompilerPool(1, 10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.shutdown();
+    FileUtils.deleteDirectory(tempDir.getCanonicalFile());
+  }
+
+  public void testDaemonIsReused() throws Exception {
+    String source = write("Screen1.scm", SOURCE);
+    assertTrue(compile(source, "out1"));
+    assertTrue(compile(source, "out2"));
+    for (String dir : Arrays.asList("out1", "out2")) {
+      assertTrue(new File(tempDir, dir + "/p/Screen1.class").isFile());
+      assertTrue(new File(tempDir, dir + "/com/example/testruntime.class").isFile());
+    }
+
+    Map<String, String> variables = new HashMap<String, String>();
+    pool.addVariables(variables);
+    assertEquals("1", variables.get("kawa-daemons-started"));
+    assertEquals("1", variables.get("kawa-compiles-cold"));
+    assertEquals("1", variables.get("kawa-compiles-warm"));
+    assertEquals("1", variables.get("kawa-daemons-idle"));
+  }
+
+  public void testDaemonIsReplacedAfterError() throws Exception {
+    String bad = write("Bad.scm", "(require <com.example.testruntime>)\n(def answer (twice 21)\n");
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    assertFalse(pool.compile(classpath, runtime, Collections.<String>emptyList(),
+        kawaArgs(bad, "out1"), System.out, new PrintStream(errors)));
+    assertTrue(errors.toString().contains("Bad.scm"));
+    assertEquals(0, pool.getIdleDaemonCount());
+
+    String source = write("Screen1.scm", SOURCE);
+    assertTrue(compile(source, "out2"));
+    assertTrue(new File(tempDir, "out2/p/Screen1.class").isFile());
+  }
+
+  private boolean compile(String source, String outputDir) throws IOException {
+    return pool.compile(classpath, runtime, Collections.<String>emptyList(),
+        kawaArgs(source, outputDir), System.out, System.err);
+  }
+
+  private List<String> kawaArgs(String source, String outputDir) {
+    return Arrays.asList("-d", new File(tempDir, outputDir).getAbsolutePath(), "-P", "p.", "-C",
+        source, runtime);
+  }
+
+  private String write(String name, String content) throws IOException {
+    File file = new File(tempDir, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file.getAbsolutePath();
+  }
+}
@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeyStoreGenerator class.
+ */
+public class KeyStoreGeneratorTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir.getCanonicalFile());
+  }
+
+  public void testGenerate() throws Exception {
+    File keyStoreFile = new File(tempDir, "android.keystore");
+    new KeyStoreGenerator(0).generate("Jane \"JD\" Doe, Esq.", keyStoreFile);
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, "android".toCharArray());
+    } finally {
+      in.close();
+    }
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+    assertEquals(certificate.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+    assertEquals("CN=\"Jane \\\"JD\\\" Doe, Esq.\", O=AppInventor for Android, C=US",
+        certificate.getSubjectX500Principal().toString());
+    assertEquals(2048, ((RSAPublicKey) certificate.getPublicKey()).getModulus().bitLength());
+    certificate.verify(certificate.getPublicKey());
+    assertTrue(certificate.getNotAfter().after(
+        new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(9999))));
+
+    // The key can sign the way jarsigner does.
+    PrivateKey key = (PrivateKey) keyStore.getKey("AndroidKey", "android".toCharArray());
+    Signature signature = Signature.getInstance("MD5withRSA");
+    signature.initSign(key);
+    signature.update(new byte[] { 1, 2, 3 });
+    byte[] signed = signature.sign();
+    signature.initVerify(certificate);
+    signature.update(new byte[] { 1, 2, 3 });
+    assertTrue(signature.verify(signed));
+  }
+
+  public void testKeyPairsComeFromPool() throws Exception {
+    KeyStoreGenerator generator = new KeyStoreGenerator(1);
+    // Give the pool time to fill.
+    for (int i = 0; i < 100 && generator.getPooledKeyPairCount() == 0; i++) {
+      Thread.sleep(100);
+      generator.generate("user", new File(tempDir, "android.keystore"));
+    }
+    assertTrue(generator.getPooledKeyPairCount() > 0);
+  }
+}
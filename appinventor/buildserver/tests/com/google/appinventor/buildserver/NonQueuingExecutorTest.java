@@ -23,11 +23,13 @@ public class NonQueuingExecutorTest extends TestCase {
     // Execute the maximum number of tasks, which will all wait until I notify them via the signal.
     final Object signal = new Object();
     for (int i = 0; i < maxCapacity; i++) {
+      assertTrue(executor.hasCapacity("user"));
       executor.execute(new TaskThatWaitsForSignal(signal));
     }
 
     // Now the executor should be at maximum capacity.
     assertEquals(maxCapacity, executor.getActiveTaskCount());
+    assertFalse(executor.hasCapacity("user"));
 
     // Try to execute another task. We expect it to be rejected.
     try {
@@ -0,0 +1,96 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ProjectBuilder class.
+ */
+public class ProjectBuilderTest extends TestCase {
+
+  public void testExtractProject() throws Exception {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(zip);
+    zipOutputStream.putNextEntry(new ZipEntry("youngandroidproject/"));
+    putEntry(zipOutputStream, "youngandroidproject/project.properties", "main=p.Screen1");
+    putEntry(zipOutputStream, "src/p/Screen1.scm", "form");
+    zipOutputStream.close();
+
+    File projectRoot = new ProjectBuilder().extractProject(
+        new ByteArrayInputStream(zip.toByteArray()));
+    try {
+      assertEquals("main=p.Screen1", Files.toString(
+          new File(projectRoot, "youngandroidproject/project.properties"), Charsets.UTF_8));
+      assertEquals("form", Files.toString(
+          new File(projectRoot, "src/p/Screen1.scm"), Charsets.UTF_8));
+    } finally {
+      FileUtils.deleteDirectory(projectRoot);
+    }
+  }
+
+  public void testEntriesOutsideOfProjectAreRejected() throws Exception {
+    String escapedName = "escaped-" + System.nanoTime() + ".txt";
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(zip);
+    putEntry(zipOutputStream, "src/p/Screen1.scm", "form");
+    putEntry(zipOutputStream, "../" + escapedName, "escaped");
+    zipOutputStream.close();
+
+    try {
+      new ProjectBuilder().extractProject(new ByteArrayInputStream(zip.toByteArray()));
+      fail("Extracted an entry outside of the project");
+    } catch (IOException expected) {
+      // The project root is deleted and nothing is written outside of it
+    }
+    assertFalse(new File(System.getProperty("java.io.tmpdir"), escapedName).exists());
+  }
+
+  public void testListProjectFilesIsSorted() throws Exception {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(zip);
+    putEntry(zipOutputStream, "src/p/Screen3.scm", "form");
+    putEntry(zipOutputStream, "youngandroidproject/project.properties", "main=p.Screen1");
+    putEntry(zipOutputStream, "src/p/Screen1.scm", "form");
+    putEntry(zipOutputStream, "src/p/Screen2.bky", "blocks");
+    putEntry(zipOutputStream, "assets/kitty.png", "image");
+    zipOutputStream.close();
+
+    File projectRoot = new ProjectBuilder().extractProject(
+        new ByteArrayInputStream(zip.toByteArray()));
+    try {
+      String root = projectRoot.getPath() + File.separator;
+      assertEquals(Arrays.asList(
+          root + "assets" + File.separator + "kitty.png",
+          root + "src" + File.separator + "p" + File.separator + "Screen1.scm",
+          root + "src" + File.separator + "p" + File.separator + "Screen2.bky",
+          root + "src" + File.separator + "p" + File.separator + "Screen3.scm",
+          root + "youngandroidproject" + File.separator + "project.properties"),
+          ProjectBuilder.listProjectFiles(projectRoot));
+    } finally {
+      FileUtils.deleteDirectory(projectRoot);
+    }
+  }
+
+  private static void putEntry(ZipOutputStream zipOutputStream, String name, String content)
+      throws IOException {
+    zipOutputStream.putNextEntry(new ZipEntry(name));
+    zipOutputStream.write(content.getBytes(Charsets.UTF_8));
+  }
+}
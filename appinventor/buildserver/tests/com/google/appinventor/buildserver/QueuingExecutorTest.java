@@ -0,0 +1,169 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testAdditionalTaskIsQueued() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 5, 5);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+
+    CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new TaskThatCountsDown(done), "b", BuildExecutor.Priority.NORMAL);
+    assertEquals(1, executor.getActiveTaskCount());
+    assertEquals(1, executor.getQueuedTaskCount());
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testTaskIsRejectedWhenQueueIsFull() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 2, 5);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatWaitsForSignal(signal), "b", BuildExecutor.Priority.NORMAL);
+    assertTrue(executor.hasCapacity("c"));
+    executor.execute(new TaskThatWaitsForSignal(signal), "c", BuildExecutor.Priority.NORMAL);
+    assertFalse(executor.hasCapacity("d"));
+    try {
+      executor.execute(new TaskThatWaitsForSignal(signal), "d", BuildExecutor.Priority.NORMAL);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    signal.countDown();
+  }
+
+  public void testTaskIsRejectedWhenUserShareIsFull() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 1);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+    assertFalse(executor.hasCapacity("a"));
+    assertTrue(executor.hasCapacity("b"));
+    try {
+      executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    // Other users still get a place in the queue.
+    executor.execute(new TaskThatWaitsForSignal(signal), "b", BuildExecutor.Priority.NORMAL);
+    assertEquals(2, executor.getQueuedTaskCount());
+    signal.countDown();
+  }
+
+  public void testQueuedTasksRunByPriorityThenRoundRobin() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 10);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal), "x", BuildExecutor.Priority.NORMAL);
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(6);
+    executor.execute(new TaskThatRecords(order, "a1", done), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatRecords(order, "a2", done), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatRecords(order, "a3", done), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatRecords(order, "b1", done), "b", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatRecords(order, "c1", done), "c", BuildExecutor.Priority.HIGH);
+    executor.execute(new TaskThatRecords(order, "b2", done), "b", BuildExecutor.Priority.NORMAL);
+    assertEquals(1, executor.getQueuedTaskCount(BuildExecutor.Priority.HIGH));
+    assertEquals(5, executor.getQueuedTaskCount(BuildExecutor.Priority.NORMAL));
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals("[c1, a1, b1, a2, b2, a3]", order.toString());
+  }
+
+  public void testPriorityFromParameter() throws Exception {
+    assertEquals(BuildExecutor.Priority.NORMAL, BuildExecutor.Priority.fromParameter(null));
+    assertEquals(BuildExecutor.Priority.NORMAL, BuildExecutor.Priority.fromParameter(""));
+    assertEquals(BuildExecutor.Priority.NORMAL, BuildExecutor.Priority.fromParameter("normal"));
+    assertEquals(BuildExecutor.Priority.HIGH, BuildExecutor.Priority.fromParameter("high"));
+    try {
+      BuildExecutor.Priority.fromParameter("urgent");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testVariables() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 3, 2);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+    executor.execute(new TaskThatWaitsForSignal(signal), "a", BuildExecutor.Priority.NORMAL);
+
+    Map<String, String> variables = new HashMap<String, String>();
+    executor.addVariables(variables);
+    assertEquals("3", variables.get("maximum-queued-build-tasks-allowed"));
+    assertEquals("1", variables.get("queued-build-tasks"));
+    assertEquals("1", variables.get("queued-build-tasks-normal"));
+    assertEquals("0", variables.get("queued-build-tasks-high"));
+    assertEquals("1", variables.get("maximum-queued-build-tasks-occurred"));
+    signal.countDown();
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch signal;
+    private TaskThatWaitsForSignal(CountDownLatch signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Wait for the signal.
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatCountsDown implements Runnable {
+    private final CountDownLatch done;
+    private TaskThatCountsDown(CountDownLatch done) {
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      done.countDown();
+    }
+  }
+
+  private static class TaskThatRecords implements Runnable {
+    private final List<String> order;
+    private final String name;
+    private final CountDownLatch done;
+    private TaskThatRecords(List<String> order, String name, CountDownLatch done) {
+      this.order = order;
+      this.name = name;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResourceCache class.
+ */
+public class ResourceCacheTest extends TestCase {
+  private static final String RESOURCE = Compiler.RUNTIME_FILES_DIR + "runtime.scm";
+
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(cacheDir.getCanonicalFile());
+  }
+
+  private boolean isPosix() {
+    return cacheDir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix");
+  }
+
+  public void testFileIsReusedAcrossCaches() throws Exception {
+    File file = new ResourceCache(cacheDir).get(RESOURCE);
+    assertEquals(Resources.toString(ResourceCacheTest.class.getResource(RESOURCE), Charsets.UTF_8),
+        Files.toString(file, Charsets.UTF_8));
+    file.setLastModified(1000);
+
+    // A second process using the same directory finds the file.
+    ResourceCache cache = new ResourceCache(cacheDir);
+    assertEquals(file, cache.get(RESOURCE));
+    assertEquals(1000, file.lastModified());
+    assertSame(cache.get(RESOURCE), cache.get(RESOURCE));
+  }
+
+  public void testFileIsNamedAfterSha256() throws Exception {
+    File file = new ResourceCache(cacheDir).get(RESOURCE);
+    String sha256 = Files.hash(file, Hashing.sha256()).toString();
+    assertEquals(sha256 + "-runtime.scm", file.getName());
+  }
+
+  public void testCacheDirIsOwnerOnly() throws Exception {
+    if (!isPosix()) {
+      return;
+    }
+    java.nio.file.Files.setPosixFilePermissions(cacheDir.toPath(),
+        PosixFilePermissions.fromString("rwxrwxrwx"));
+    File file = new ResourceCache(cacheDir).get(RESOURCE);
+    assertEquals("rwx------", PosixFilePermissions.toString(
+        java.nio.file.Files.getPosixFilePermissions(cacheDir.toPath())));
+    assertEquals("rwx------", PosixFilePermissions.toString(
+        java.nio.file.Files.getPosixFilePermissions(file.getParentFile().toPath())));
+  }
+
+  public void testCacheDirOfAnotherUserIsRefused() throws Exception {
+    if (!isPosix()) {
+      return;
+    }
+    Path dir = cacheDir.toPath();
+    try {
+      UserPrincipal nobody = dir.getFileSystem().getUserPrincipalLookupService()
+          .lookupPrincipalByName("nobody");
+      java.nio.file.Files.setOwner(dir, nobody);
+    } catch (IOException e) {
+      // Only the super-user can give the directory away; nothing to test otherwise.
+      return;
+    }
+    try {
+      new ResourceCache(cacheDir).get(RESOURCE);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testCorruptFileIsReplaced() throws Exception {
+    File file = new ResourceCache(cacheDir).get(RESOURCE);
+    String content = Files.toString(file, Charsets.UTF_8);
+    Files.write(content.replace('(', '['), file, Charsets.UTF_8);
+
+    assertEquals(file, new ResourceCache(cacheDir).get(RESOURCE));
+    assertEquals(content, Files.toString(file, Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,58 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import gnu.mapping.Procedure;
+import kawa.standard.Scheme;
+
+/**
+ * Measures how many event handlers per second the runtime runs, for a
+ * handler made of the component method calls and primitive calls that the
+ * blocks generate, so that the cost of coercing arguments and invoking
+ * component methods can be compared across changes to runtime.scm.
+ *
+ * <p>A StringBuilder stands in for the component, since the component
+ * classes need Android. This is not a unit test and is not run by the test
+ * suite; run it with {@code ant Benchmark -Dbenchmark=YailCallBenchmark}.</p>
+ *
+ * <p>Usage: YailCallBenchmark [handlerCalls] [repetitions]</p>
+ */
+public final class YailCallBenchmark {
+
+  // The body of the event handler, as the blocks would generate it.
+  private static final String HANDLER = "(lambda ()"
+      + " (call-component-method 'Builder 'setLength (*list-for-runtime* 0) '(number))"
+      + " (call-component-method 'Builder 'append"
+      + "  (*list-for-runtime* (call-yail-primitive + (*list-for-runtime* 1 \"2\")"
+      + "   '(number number) \"+\")) '(text))"
+      + " (call-component-method 'Builder 'insert (*list-for-runtime* 0 \"x\")"
+      + "  '(number text))"
+      + " (call-yail-primitive string-append (*list-for-runtime* \"a\" 1) '(text text) \"join\")"
+      + " (call-yail-primitive yail-equal? (*list-for-runtime* 1 \"1\") '(any any) \"=\"))";
+
+  private YailCallBenchmark() {
+  }
+
+  public static void main(String[] args) throws Throwable {
+    final int handlerCalls = BenchmarkHarness.intArg(args, 0, 100000);
+    int repetitions = BenchmarkHarness.intArg(args, 1, 5);
+
+    Scheme scheme = BenchmarkHarness.loadRuntime();
+    scheme.eval("(add-to-current-form-environment 'Builder (java.lang.StringBuilder))");
+    final Procedure handler = BenchmarkHarness.procedure(scheme, HANDLER);
+
+    long best = BenchmarkHarness.bestNanos(new BenchmarkHarness.Task() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < handlerCalls; i++) {
+          handler.apply0();
+        }
+      }
+    }, repetitions);
+    System.out.println("handlers-per-second\t" + (long) (handlerCalls * 1e9 / best));
+    System.exit(0);
+  }
+}
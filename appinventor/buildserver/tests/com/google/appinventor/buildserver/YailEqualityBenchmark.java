@@ -0,0 +1,73 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import gnu.mapping.Procedure;
+import gnu.math.IntNum;
+import kawa.standard.Scheme;
+
+/**
+ * Measures the time the runtime takes to compare values with yail-equal?,
+ * as the is in list? and index in list blocks do, for lists of numbers, of
+ * strings that read as numbers and of other strings.
+ *
+ * <p>Each search looks for a value equal to the last item of the list, so it
+ * compares the value with every item. This is not a unit test and is not run
+ * by the test suite; run it with {@code ant Benchmark -Dbenchmark=YailEqualityBenchmark}.</p>
+ *
+ * <p>Usage: YailEqualityBenchmark [size] [searches] [repetitions]</p>
+ */
+public final class YailEqualityBenchmark {
+
+  // Each of these makes the item of a list for the given number.
+  private static final String[] ITEMS = {
+    "numbers", "(lambda (i) i)",
+    "number-strings", "(lambda (i) (number->string i))",
+    "text", "(lambda (i) (string-append \"item \" (number->string i)))",
+  };
+
+  // Each of these is called with a list and the value to search it for.
+  private static final String[] OPERATIONS = {
+    "index-of", "(lambda (l x) (yail-list-index x l))",
+    "is-in-list", "(lambda (l x) (yail-list-member? x l))",
+    "index-of-text", "(lambda (l x) (yail-list-index (coerce-to-string x) l))",
+  };
+
+  private YailEqualityBenchmark() {
+  }
+
+  public static void main(String[] args) throws Throwable {
+    int size = BenchmarkHarness.intArg(args, 0, 1000);
+    final int searches = BenchmarkHarness.intArg(args, 1, 1000);
+    int repetitions = BenchmarkHarness.intArg(args, 2, 5);
+
+    Scheme scheme = BenchmarkHarness.loadRuntime();
+    Procedure makeList = BenchmarkHarness.procedure(scheme, "(lambda (n item)"
+        + " (let loop ((i n) (items '()))"
+        + "  (if (= i 0) (kawa-list->yail-list items) (loop (- i 1) (cons (item i) items)))))");
+    Procedure lastItem = BenchmarkHarness.procedure(scheme,
+        "(lambda (l) (yail-list-get-item l (yail-list-length l)))");
+
+    System.out.println("items\toperation\tns-per-item");
+    for (int i = 0; i < ITEMS.length; i += 2) {
+      final Object list = makeList.apply2(IntNum.make(size), scheme.eval(ITEMS[i + 1]));
+      final Object value = lastItem.apply1(list);
+      for (int j = 0; j < OPERATIONS.length; j += 2) {
+        final Procedure operation = BenchmarkHarness.procedure(scheme, OPERATIONS[j + 1]);
+        long best = BenchmarkHarness.bestNanos(new BenchmarkHarness.Task() {
+          @Override
+          public void run() throws Throwable {
+            for (int search = 0; search < searches; search++) {
+              operation.apply2(list, value);
+            }
+          }
+        }, repetitions);
+        System.out.println(ITEMS[i] + "\t" + OPERATIONS[j] + "\t" + (best / searches / size));
+      }
+    }
+    System.exit(0);
+  }
+}
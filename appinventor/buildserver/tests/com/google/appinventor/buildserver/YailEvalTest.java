@@ -141,6 +141,29 @@ public class YailEvalTest extends TestCase {
     assertEquals("[1]23", scheme.eval(schemeString).toString());
   }
 
+  public void testCallComponentMethodCoercions() throws Throwable {
+    // Any object in the form environment can stand in for a component here.
+    scheme.eval("(add-to-current-form-environment 'Builder (java.lang.StringBuilder))");
+    String schemeString = "(begin " +
+        "(do ((i 1 (+ i 1))) ((> i 3))" +
+        " (call-component-method 'Builder 'append (*list-for-runtime* i) '(text)))" +
+        "(call-component-method 'Builder 'insert (*list-for-runtime* \"0\" \"x\") " +
+        "  '(number text))" +
+        "(call-component-method 'Builder 'toString (*list-for-runtime*) '()))";
+    assertEquals("x123", scheme.eval(schemeString).toString());
+
+    schemeString = "(try-catch " +
+        "(call-component-method 'Builder 'append (*list-for-runtime* \"x\") '(boolean)) " +
+        "(exception com.google.appinventor.components.runtime.errors.YailRuntimeError " +
+        " \"runtime-error\"))";
+    assertEquals("runtime-error", scheme.eval(thunkify(schemeString)).toString());
+    schemeString = "(try-catch " +
+        "(call-yail-primitive + (*list-for-runtime* 1 2) '(number) \"+\") " +
+        "(exception com.google.appinventor.components.runtime.errors.YailRuntimeError " +
+        " \"runtime-error\"))";
+    assertEquals("runtime-error", scheme.eval(thunkify(schemeString)).toString());
+  }
+
   public void testDecimalReaderRoundoff() throws Throwable {
     assertTrue((Boolean) scheme.eval(
     "(call-yail-primitive yail-equal? (*list-for-runtime* 1.00000 \"1\") '(any any) \"=\")"));
@@ -248,6 +271,16 @@ public class YailEvalTest extends TestCase {
     "(yail-list-member? 1 '(3 2 \"1\"))"));
   }
 
+  public void testYailListIndexComparesAsYailEqual() throws Throwable {
+    String schemeInputString = "(begin " +
+        "(define list1 (make-yail-list \"a\" 2 \" 3.0\" (make-yail-list \"4\") 2))" +
+        "(list (yail-list-index \"2.0\" list1) (yail-list-index 3 list1)" +
+        " (yail-list-index (make-yail-list 4) list1) (yail-list-index \"A\" list1)" +
+        " (yail-list-member? 1/2 (make-yail-list \".5\")))" +
+        ")";
+    assertEquals("(2 3 4 0 true)", scheme.eval(schemeInputString).toString());
+  }
+
 
   public void testYailWhile() throws Throwable {
     String schemeString = "(define theList (list)) (define foo 5) (while (< foo 10) " +
@@ -542,6 +575,89 @@ public class YailEvalTest extends TestCase {
 
   }
 
+  public void testLongListAppend() throws Throwable {
+    // Adding to a list used to walk the whole list, which took minutes at this size.
+    String schemeInputString = "(begin " +
+        "(define list1 (make-yail-list))" +
+        "(do ((i 1 (+ i 1))) ((> i 100000)) (yail-list-add-to-list! list1 i))" +
+        "(define list2 (make-yail-list))" +
+        "(do ((i 1 (+ i 1))) ((> i 1000)) (yail-list-append! list2 (make-yail-list i)))" +
+        "(yail-list-append! list2 list1)" +
+        "(yail-list-append! list1 list1)" +
+        "(list (yail-list-length list1) (yail-list-get-item list1 200000)" +
+        " (yail-list-length list2) (yail-list-get-item list2 1001)" +
+        " (yail-list-get-item list2 101000))" +
+        ")";
+    assertEquals("(200000 100000 101000 1 100000)",
+        scheme.eval(schemeInputString).toString());
+  }
+
+  public void testListSortMapFilterReduceSlice() throws Throwable {
+    String list1 = "(make-yail-list 3 \"b\" \"10\" #t 2.5 \"a\" (make-yail-list 1) -1)";
+    assertEquals("[-1, 2.5, 3, \"10\", \"a\", \"b\", true, [1]]", scheme.eval(
+        "(get-display-representation " +
+        " (call-yail-primitive yail-list-sort (*list-for-runtime* " + list1 + ") '(list) \"sort\"))")
+        .toString());
+    assertEquals("[3, \"2\", 1]", scheme.eval(
+        "(get-display-representation (call-yail-primitive yail-list-sort-comparator" +
+        " (*list-for-runtime* (make-yail-list \"2\" 3 1) (lambda (x y) (yail-equal? x 3)))" +
+        " '(list any) \"sort with\"))").toString());
+    assertEquals("[4, 6, 8]", scheme.eval(
+        "(get-display-representation (call-yail-primitive yail-list-map" +
+        " (*list-for-runtime* (lambda (x) (* (coerce-to-number x) 2)) (make-yail-list 2 \"3\" 4))" +
+        " '(any list) \"map\"))").toString());
+    assertEquals("[3, \"10\", 2.5]", scheme.eval(
+        "(get-display-representation (call-yail-primitive yail-list-filter" +
+        " (*list-for-runtime* (lambda (x) (and (number? (coerce-to-number x)) (> (coerce-to-number x) 2)))" +
+        "  " + list1 + ") '(any list) \"filter\"))").toString());
+    assertEquals("321", scheme.eval(
+        "(call-yail-primitive yail-list-reduce" +
+        " (*list-for-runtime* \"\" (lambda (answer x) (string-append (coerce-to-string x) answer))" +
+        "  (make-yail-list 1 2 3)) '(any any list) \"reduce\")").toString());
+    assertEquals("[\"b\", \"10\"]", scheme.eval(
+        "(get-display-representation (call-yail-primitive yail-list-slice" +
+        " (*list-for-runtime* " + list1 + " \"2\" 4) '(list number number) \"slice\"))").toString());
+    assertEquals("[]", scheme.eval(
+        "(get-display-representation (yail-list-slice " + list1 + " 9 9))").toString());
+    try {
+      scheme.eval("(yail-list-slice " + list1 + " 1 10)");
+      fail();
+    } catch (YailRuntimeError e) {
+      // expected
+    }
+  }
+
+  public void testListSortWithInconsistentComparator() throws Throwable {
+    // A predicate that is true both ways still gives a sorted list of all the items.
+    String schemeInputString = "(begin " +
+        "(define list1 (make-yail-list))" +
+        "(do ((i 1 (+ i 1))) ((> i 100)) (yail-list-add-to-list! list1 (modulo (* i 37) 101)))" +
+        "(yail-list-length (call-yail-primitive yail-list-sort-comparator" +
+        " (*list-for-runtime* list1 (lambda (x y) #t)) '(list any) \"sort with\"))" +
+        ")";
+    assertEquals("100", scheme.eval(schemeInputString).toString());
+  }
+
+  public void testErrorMessageForLongList() throws Throwable {
+    String schemeInputString = "(begin " +
+        "(define list1 (make-yail-list))" +
+        "(do ((i 1 (+ i 1))) ((> i 100000)) (yail-list-add-to-list! list1 i))" +
+        "(yail-list-get-item list1 200000)" +
+        ")";
+    try {
+      scheme.eval(schemeInputString);
+      fail();
+    } catch (YailRuntimeError e) {
+      // The list is cut off after the first thousand characters.
+      assertTrue(e.getMessage().contains("[1, 2, 3, 4, 5, "));
+      assertTrue(e.getMessage().endsWith(", 220, 221, 22..."));
+      assertTrue(e.getMessage().length() < 1200);
+    }
+    assertEquals("[\"a\", [1, \"\"], 3]", scheme.eval(
+        "(get-bounded-display-representation (make-yail-list \"a\" (make-yail-list 1 \"\") 3))")
+        .toString());
+  }
+
 
 
   /* foreach */
@@ -645,6 +761,21 @@ public class YailEvalTest extends TestCase {
     assertEquals(schemeResultString, scheme.eval(schemeInputString).toString());
   }
 
+  public void testLargeRanges() throws Throwable {
+    // Building a range used to recurse once per item, which overflowed the stack at this size.
+    String schemeInputString = "(begin " +
+        "(define list1 (yail-number-range 1 1000000))" +
+        "(define x 0)" +
+        "(forrange i (set! x (+ x i)) 1 1000000 1)" +
+        "(define y 0)" +
+        "(forrange i (set! y (+ y i)) 1000000 1.5 -2)" +
+        "(list (yail-list-length list1) (yail-list-get-item list1 1000000) x y" +
+        " (yail-number-range 1.5 4.2) (yail-number-range 3 1))" +
+        ")";
+    assertEquals("(1000000 1000000 500000500000 250000500000 (2 3 4) ())",
+        scheme.eval(schemeInputString).toString());
+  }
+
 
   public void testForRangeConversion() throws Throwable {
     /* test that we do runtime type checking on the range bounds */
@@ -825,6 +956,23 @@ public class YailEvalTest extends TestCase {
     assertEquals("bad pair", scheme.eval(thunkify(schemeInputString)).toString());
   }
 
+  public void testDictionary() throws Throwable {
+    String schemeInputString = "(begin " +
+      "(define dict (make-yail-dictionary (make-yail-list (make-yail-list 1 \"one\") " +
+      "  (make-yail-list \"two\" 2)))) " +
+      "(yail-dictionary-set-pair! dict 3 \"three\") " +
+      "(yail-dictionary-delete-pair! dict \"two\") " +
+      "(list (yail-dictionary-lookup \"1\" dict \"nothing\") " +
+      " (yail-alist-lookup 3.0 dict \"nothing\") " +
+      " (yail-dictionary-lookup \"two\" dict \"nothing\") " +
+      " (yail-dictionary-contains-key? dict 1) " +
+      " (yail-dictionary-length dict) " +
+      " (yail-dictionary->alist dict)) " +
+      ")";
+    assertEquals("(one three nothing true 2 ((1 one) (3 three)))",
+        scheme.eval(schemeInputString).toString());
+  }
+
   public void testListInsertionMiddle() throws Throwable {
     /* test list insertion in middle */
     String schemeInputString = "(begin " +
@@ -1190,6 +1338,15 @@ public class YailEvalTest extends TestCase {
      assertEquals(schemeExpectedResultString, schemeActualResult);
    }
 
+   public void testCsvTableRoundTrip() throws Throwable {
+     String schemeInputString = "(yail-list-to-csv-table (make-yail-list (make-yail-list 1 \"a\\\"b\") 2.5))";
+     String csvTable = "\"1\",\"a\"\"b\"\r\n\"2.5\"\r\n";
+     assertEquals(csvTable, scheme.eval(schemeInputString).toString());
+     assertEquals("((1 a\"b) (2.5))",
+         scheme.eval("(yail-list-from-csv-table \"" + csvTable.replace("\"", "\\\"") + "\")")
+         .toString());
+   }
+
   private void testMakeColorCase(int color, String red, String green, String blue, String alpha)
       throws Throwable {
     assertEquals(color,
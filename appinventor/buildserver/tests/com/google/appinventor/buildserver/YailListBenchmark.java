@@ -0,0 +1,75 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.List;
+
+import gnu.mapping.Procedure;
+import gnu.math.IntNum;
+import kawa.standard.Scheme;
+
+/**
+ * Measures the YAIL list primitives of the runtime as the blocks use them,
+ * by loading runtime.scm into Kawa and running loops over lists of several
+ * sizes.
+ *
+ * <p>Each loop visits every item of the list once, so the time per item
+ * stays flat as the lists get longer if the primitive takes constant time,
+ * and grows with the length of the list if it walks the list. This is not a
+ * unit test and is not run by the test suite; run it with
+ * {@code ant Benchmark -Dbenchmark=YailListBenchmark}.</p>
+ *
+ * <p>Usage: YailListBenchmark [sizes] [repetitions], where sizes is a comma
+ * separated list such as {@code 500,1000,2000,4000}.</p>
+ */
+public final class YailListBenchmark {
+
+  // Each of these is called with a list and its length, and does length operations on the list.
+  private static final String[] OPERATIONS = {
+    "length",
+    "(lambda (l n) (do ((i 1 (+ i 1))) ((> i n)) (yail-list-length l)))",
+    "get-item",
+    "(lambda (l n) (do ((i 1 (+ i 1))) ((> i n)) (yail-list-get-item l i)))",
+    "set-item",
+    "(lambda (l n) (do ((i 1 (+ i 1))) ((> i n)) (yail-list-set-item! l i i)))",
+    "insert-remove",
+    "(lambda (l n) (do ((i 1 (+ i 1))) ((> i n))"
+        + " (yail-list-insert-item! l i i) (yail-list-remove-item! l i)))",
+    "add-to-list",
+    "(lambda (l n) (let ((m (make-yail-list))) (do ((i 1 (+ i 1))) ((> i n))"
+        + " (yail-list-add-to-list! m i))))",
+  };
+
+  private YailListBenchmark() {
+  }
+
+  public static void main(String[] args) throws Throwable {
+    List<Integer> sizes = BenchmarkHarness.intListArg(args, 0, "500,1000,2000,4000");
+    int repetitions = BenchmarkHarness.intArg(args, 1, 5);
+
+    Scheme scheme = BenchmarkHarness.loadRuntime();
+    Procedure makeList = BenchmarkHarness.procedure(scheme, "(lambda (n)"
+        + " (let loop ((i n) (items '()))"
+        + "  (if (= i 0) (kawa-list->yail-list items) (loop (- i 1) (cons i items)))))");
+
+    System.out.println("operation\tsize\tns-per-item");
+    for (int i = 0; i < OPERATIONS.length; i += 2) {
+      final Procedure operation = BenchmarkHarness.procedure(scheme, OPERATIONS[i + 1]);
+      for (int size : sizes) {
+        final IntNum n = IntNum.make(size);
+        final Object list = makeList.apply1(n);
+        long best = BenchmarkHarness.bestNanos(new BenchmarkHarness.Task() {
+          @Override
+          public void run() throws Throwable {
+            operation.apply2(list, n);
+          }
+        }, repetitions);
+        System.out.println(OPERATIONS[i] + "\t" + size + "\t" + (best / size));
+      }
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import gnu.mapping.Procedure;
+import kawa.standard.Scheme;
+
+/**
+ * Measures the time per call of the runtime operations that blocks code
+ * uses most: list items, appending, looking up pairs, splitting and joining
+ * text, formatting numbers, coercing arguments and showing values. The
+ * runtime is loaded into Kawa the way YailEvalTest loads it, so the numbers
+ * from before and after a change to runtime.scm can be compared.
+ *
+ * <p>Each benchmark is run in batches that take at least
+ * {@link #MIN_BATCH_NANOS}, first to warm up and then to measure, and the
+ * best batch is reported. This is not a unit test and is not run by the
+ * test suite; run it with {@code ant Benchmark -Dbenchmark=YailRuntimeBenchmark}.</p>
+ *
+ * <p>Usage: YailRuntimeBenchmark [names] [repetitions], where names is a
+ * comma separated list of parts of benchmark names, such as
+ * {@code list,number}, or {@code all}.</p>
+ */
+public final class YailRuntimeBenchmark {
+
+  private static final long MIN_BATCH_NANOS = 20 * 1000 * 1000;
+
+  // Data the benchmarks share. Each is bound around the benchmarks with let.
+  private static final String DATA = "((list1000"
+      + "   (let loop ((i 1000) (items '()))"
+      + "    (if (= i 0) (kawa-list->yail-list items) (loop (- i 1) (cons i items)))))"
+      + "  (pairs1000"
+      + "   (let loop ((i 1000) (items '()))"
+      + "    (if (= i 0) (kawa-list->yail-list items)"
+      + "     (loop (- i 1) (cons (make-yail-list (string-append \"key\" (number->string i)) i)"
+      + "      items)))))"
+      + "  (strings100"
+      + "   (let loop ((i 100) (items '()))"
+      + "    (if (= i 0) items (loop (- i 1) (cons (string-append \"item\" (number->string i)) items)))))"
+      + "  (nested (make-yail-list \"a\" 1.5 (make-yail-list #t \"\" (make-yail-list 3 4)) \"b\")))";
+
+  // Each of these is a procedure of no arguments that does one operation.
+  private static final String[] BENCHMARKS = {
+    "list-get-item", "(lambda () (yail-list-get-item list1000 500))",
+    "list-set-item", "(lambda () (yail-list-set-item! list1000 500 500))",
+    "list-add-item", "(lambda () (yail-list-add-to-list! (make-yail-list 1 2) 3))",
+    "list-append-1000", "(lambda () (yail-list-append! (make-yail-list) list1000))",
+    "alist-lookup-1000", "(lambda () (yail-alist-lookup \"key500\" pairs1000 #f))",
+    "string-split-100",
+    "(let ((text (join-strings strings100 \",\"))) (lambda () (string-split text \",\")))",
+    "string-join-100", "(lambda () (join-strings strings100 \", \"))",
+    "number->string-integer", "(lambda () (appinventor-number->string 12345))",
+    "number->string-decimal", "(lambda () (appinventor-number->string 3.14159))",
+    "number-to-string-format",
+    "(lambda () (com.google.appinventor.components.runtime.util.YailNumberToString:format 3.14159))",
+    "coerce-to-number", "(lambda () (coerce-to-number \" 3.5 \"))",
+    "coerce-to-string", "(lambda () (coerce-to-string 2.5))",
+    "call-yail-primitive",
+    "(lambda () (call-yail-primitive + (*list-for-runtime* \"1\" 2) '(number number) \"+\"))",
+    "json-display-nested", "(lambda () (get-json-display-representation nested))",
+    "json-display-1000", "(lambda () (get-json-display-representation list1000))",
+  };
+
+  private YailRuntimeBenchmark() {
+  }
+
+  public static void main(String[] args) throws Throwable {
+    String[] names = BenchmarkHarness.arg(args, 0, "all").split(",");
+    int repetitions = BenchmarkHarness.intArg(args, 1, 5);
+
+    Scheme scheme = BenchmarkHarness.loadRuntime();
+
+    System.out.println("benchmark\tns-per-op");
+    for (int i = 0; i < BENCHMARKS.length; i += 2) {
+      if (!isSelected(BENCHMARKS[i], names)) {
+        continue;
+      }
+      final Procedure benchmark = BenchmarkHarness.procedure(scheme,
+          "(let " + DATA + " " + BENCHMARKS[i + 1] + ")");
+      int size = 1;
+      while (timeBatch(benchmark, size) < MIN_BATCH_NANOS) {
+        size *= 2;
+      }
+      final int batchSize = size;
+      long best = BenchmarkHarness.bestNanos(new BenchmarkHarness.Task() {
+        @Override
+        public void run() throws Throwable {
+          timeBatch(benchmark, batchSize);
+        }
+      }, repetitions);
+      System.out.println(BENCHMARKS[i] + "\t" + (best / batchSize));
+    }
+    System.exit(0);
+  }
+
+  private static boolean isSelected(String benchmark, String[] names) {
+    for (String name : names) {
+      if (name.equals("all") || benchmark.contains(name.trim())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long timeBatch(Procedure benchmark, int batchSize) throws Throwable {
+    long start = System.nanoTime();
+    for (int i = 0; i < batchSize; i++) {
+      benchmark.apply0();
+    }
+    return System.nanoTime() - start;
+  }
+}
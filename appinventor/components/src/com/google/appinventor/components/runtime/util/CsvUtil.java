@@ -11,6 +11,7 @@ import com.google.appinventor.components.runtime.collect.Lists;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -19,6 +20,9 @@ import java.util.regex.Pattern;
 /**
  * Static methods to convert between CSV-formatted strings and YailLists.
  *
+ * Tables can also be read from a Reader and written to a Writer, so that a
+ * large table doesn't have to be held in memory as text as well as a list.
+ *
  * @author sharon@google.com (Sharon Perl)
  */
 public final class CsvUtil {
@@ -27,13 +31,21 @@ public final class CsvUtil {
   }
 
   public static YailList fromCsvTable(String csvString) throws Exception {
-    CsvParser csvParser = new CsvParser(new StringReader(csvString));
-    ArrayList<YailList> csvList = new ArrayList<YailList>();
+    return fromCsvTable(new StringReader(csvString));
+  }
+
+  /**
+   * Reads a CSV-formatted table from the given reader, one row at a time.
+   * The reader is not closed.
+   */
+  public static YailList fromCsvTable(Reader in) throws Exception {
+    CsvParser csvParser = new CsvParser(in);
+    YailList csvList = new YailList();
     while (csvParser.hasNext()) {
-      csvList.add(YailList.makeList(csvParser.next()));
+      csvList.addObject(YailList.makeList(csvParser.next()));
     }
     csvParser.throwAnyProblem();
-    return YailList.makeList(csvList);
+    return csvList;
   }
 
   public static YailList fromCsvRow(String csvString) throws Exception {
@@ -53,7 +65,12 @@ public final class CsvUtil {
   // Requires: elements of csvRow are strings
   public static String toCsvRow(YailList csvRow) {
     StringBuilder csvStringBuilder = new StringBuilder();
-    makeCsvRow(csvRow, csvStringBuilder);
+    try {
+      makeCsvRow(csvRow, csvStringBuilder);
+    } catch (IOException e) {
+      // A StringBuilder doesn't throw IOException.
+      throw new AssertionError(e);
+    }
     return csvStringBuilder.toString();
   }
 
@@ -62,23 +79,50 @@ public final class CsvUtil {
   // all rows have same number of elements?
   public static String toCsvTable(YailList csvList) {
     StringBuilder csvStringBuilder = new StringBuilder();
-    for (Object rowObj : csvList.toArray()) {
-      makeCsvRow((YailList) rowObj, csvStringBuilder);
+    try {
+      makeCsvTable(csvList, csvStringBuilder);
+    } catch (IOException e) {
+      // A StringBuilder doesn't throw IOException.
+      throw new AssertionError(e);
+    }
+    return csvStringBuilder.toString();
+  }
+
+  /**
+   * Writes the given YailList of rows to the given writer as a CSV-formatted
+   * table, one row at a time. The elements of the rows must be strings. The
+   * writer is not closed.
+   */
+  public static void toCsvTable(YailList csvList, Writer out) throws IOException {
+    makeCsvTable(csvList, out);
+  }
+
+  private static void makeCsvTable(YailList csvList, Appendable out) throws IOException {
+    int rows = csvList.size();
+    for (int i = 0; i < rows; i++) {
+      makeCsvRow((YailList) csvList.getObject(i), out);
       // http://tools.ietf.org/html/rfc4180 suggests that CSV lines should be
       // terminated
       // by CRLF, hence the \r\n.
-      csvStringBuilder.append("\r\n");
+      out.append("\r\n");
     }
-    return csvStringBuilder.toString();
   }
 
-  private static void makeCsvRow(YailList row, StringBuilder csvStringBuilder) {
-    String fieldDelim = "";
-    for (Object fieldObj : row.toArray()) {
-      String field = fieldObj.toString();
-      field = field.replaceAll("\"", "\"\"");
-      csvStringBuilder.append(fieldDelim).append("\"").append(field).append("\"");
-      fieldDelim = ",";
+  private static void makeCsvRow(YailList row, Appendable out) throws IOException {
+    int fields = row.size();
+    for (int i = 0; i < fields; i++) {
+      if (i > 0) {
+        out.append(',');
+      }
+      String field = row.getObject(i).toString();
+      out.append('"');
+      // Double the quotes in the field without making a copy of it.
+      int start = 0;
+      for (int quote = field.indexOf('"'); quote != -1; quote = field.indexOf('"', quote + 1)) {
+        out.append(field, start, quote + 1).append('"');
+        start = quote + 1;
+      }
+      out.append(field, start, field.length()).append('"');
     }
   }
 
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.components.runtime.util;
 
+import gnu.kawa.functions.Arithmetic;
 import gnu.lists.FString;
 import gnu.math.IntFraction;
 
@@ -83,8 +84,8 @@ public class JsonUtil {
    * @throws JSONException if an element in jObject cannot be
    * converted properly.
    */
-  // TODO(hal): If we implement dictionaries, we'll need to decode Json
-  // objects to dictionaires instead.
+  // Use getDictionaryFromJsonObject to decode Json objects to
+  // dictionaries instead.
   public static List<Object> getListFromJsonObject(JSONObject jObject) throws JSONException {
     List<Object> returnList = new ArrayList<Object>();
     Iterator<String> keys = jObject.keys();
@@ -105,6 +106,48 @@ public class JsonUtil {
     return returnList;
   }
 
+  /**
+   * Returns a YailDictionary with one entry per key in jObject.
+   * Values are converted like convertJsonItem() does, except that
+   * JSON objects at any depth become YailDictionaries, JSON arrays
+   * become YailLists and numbers become Kawa numbers, so that the
+   * values can be used by the blocks as they are.
+   *
+   * @param jObject The JSONObject to convert.
+   * @return A YailDictionary of the keys and values of jObject.
+   * @throws JSONException if an element in jObject cannot be
+   * converted properly.
+   */
+  public static YailDictionary getDictionaryFromJsonObject(JSONObject jObject)
+      throws JSONException {
+    YailDictionary dictionary = new YailDictionary();
+    Iterator<String> keys = jObject.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      dictionary.put(key, convertJsonItemForDictionary(jObject.get(key)));
+    }
+    return dictionary;
+  }
+
+  private static Object convertJsonItemForDictionary(Object o) throws JSONException {
+    if (o instanceof JSONObject) {
+      return getDictionaryFromJsonObject((JSONObject) o);
+    }
+    if (o instanceof JSONArray) {
+      JSONArray jArray = (JSONArray) o;
+      List<Object> items = new ArrayList<Object>();
+      for (int i = 0; i < jArray.length(); i++) {
+        items.add(convertJsonItemForDictionary(jArray.get(i)));
+      }
+      return YailList.makeList(items);
+    }
+    Object item = convertJsonItem(o);
+    if (item instanceof Number) {
+      return Arithmetic.asNumeric(item);
+    }
+    return item;
+  }
+
   /**
    * Returns a Java object representation of objects that are
    * encountered inside of JSON created using the org.json package.
@@ -161,6 +204,9 @@ public class JsonUtil {
     if (value instanceof YailList) {
       return ((YailList) value).toJSONString();
     }
+    if (value instanceof YailDictionary) {
+      return ((YailDictionary) value).toJSONString();
+    }
     // The Json tokener used in getObjectFromJson cannot handle
     // fractions.  So we Json encode fractions by first converting
     // them to doubles. This is an example of value with Kawa type any
@@ -0,0 +1,225 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import com.google.appinventor.components.runtime.errors.YailRuntimeError;
+
+import gnu.kawa.functions.Arithmetic;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+import gnu.math.Numeric;
+import gnu.math.RatNum;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The YailDictionary is a table of keys and values with constant-time
+ * lookup, for the blocks that treat a list of pairs as a table.
+ *
+ * Keys are compared the way YAIL compares atoms with yail-equal?: a
+ * number and a string that reads as the same number are the same key,
+ * so "1", 1 and 1.0 all find the same entry. Other keys are compared
+ * with equals(). The dictionary remembers the key each entry was first
+ * put with, and keeps its entries in the order they were first put.
+ *
+ */
+public class YailDictionary {
+
+  // The longest display of a bad item in an error message.
+  private static final int MAX_DESCRIPTION_LENGTH = 100;
+
+  // Maps each normalized key to its entry.
+  private final Map<Object, Entry> entries = new LinkedHashMap<Object, Entry>();
+
+  private static final class Entry {
+    final Object key;
+    Object value;
+
+    Entry(Object key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Create an empty YailDictionary.
+   */
+  public YailDictionary() {
+  }
+
+  /**
+   * Create a YailDictionary from a YailList of pairs, each of which is a
+   * YailList of a key and a value. Like lookup in pairs, the first pair
+   * with a key wins and later pairs with the same key are ignored.
+   */
+  public static YailDictionary makeDictionary(YailList pairs) {
+    YailDictionary dictionary = new YailDictionary();
+    int count = pairs.size();
+    for (int i = 0; i < count; i++) {
+      Object pair = pairs.getObject(i);
+      if (!(pair instanceof YailList) || ((YailList) pair).size() != 2) {
+        throw new YailRuntimeError("Item " + (i + 1) + " of the list, " + describeItem(pair)
+            + ", is not a pair of a key and a value", "Invalid list of pairs");
+      }
+      Object key = ((YailList) pair).getObject(0);
+      if (!dictionary.containsKey(key)) {
+        dictionary.put(key, ((YailList) pair).getObject(1));
+      }
+    }
+    return dictionary;
+  }
+
+  /*
+   * Returns a short description of an item of a list of pairs for an error
+   * message, without building the display of a long list.
+   */
+  private static String describeItem(Object item) {
+    if (item instanceof YailList) {
+      return "a list of " + ((YailList) item).size() + " items";
+    }
+    String display = String.valueOf(item);
+    return display.length() > MAX_DESCRIPTION_LENGTH
+        ? display.substring(0, MAX_DESCRIPTION_LENGTH) + "..."
+        : display;
+  }
+
+  /**
+   * Return the value for the given key, or the given default value if
+   * there is no entry for the key.
+   */
+  public Object get(Object key, Object defaultValue) {
+    Entry entry = entries.get(normalizeKey(key));
+    return entry == null ? defaultValue : entry.value;
+  }
+
+  /**
+   * Set the value for the given key.
+   */
+  public void put(Object key, Object value) {
+    Object normalizedKey = normalizeKey(key);
+    Entry entry = entries.get(normalizedKey);
+    if (entry == null) {
+      entries.put(normalizedKey, new Entry(key, value));
+    } else {
+      entry.value = value;
+    }
+  }
+
+  /**
+   * Return whether there is an entry for the given key.
+   */
+  public boolean containsKey(Object key) {
+    return entries.containsKey(normalizeKey(key));
+  }
+
+  /**
+   * Remove the entry for the given key, if there is one.
+   */
+  public void remove(Object key) {
+    entries.remove(normalizeKey(key));
+  }
+
+  /**
+   * Return the number of entries of this YailDictionary.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Return the entries of this YailDictionary as a YailList of pairs.
+   */
+  public YailList toYailList() {
+    List<Object> pairs = new ArrayList<Object>(entries.size());
+    for (Entry entry : entries.values()) {
+      pairs.add(YailList.makeList(new Object[] { entry.key, entry.value }));
+    }
+    return YailList.makeList(pairs);
+  }
+
+  /**
+   * Return a JSON object string of this YailDictionary.
+   */
+  public String toJSONString() {
+    try {
+      StringBuilder json = new StringBuilder("{");
+      String separator = "";
+      for (Entry entry : entries.values()) {
+        json.append(separator)
+            .append(JSONObject.quote(entry.key.toString()))
+            .append(':')
+            .append(JsonUtil.getJsonRepresentation(entry.value));
+        separator = ",";
+      }
+      return json.append('}').toString();
+    } catch (JSONException e) {
+      throw new YailRuntimeError("Dictionary failed to convert to JSON.", "JSON Creation Error.");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toJSONString();
+  }
+
+  /*
+   * Returns the key under which the entry for the given key is kept. Numbers,
+   * and strings that read as numbers, become exact Kawa numbers, because
+   * YAIL compares those with =, under which 1 and 1.0 are the same.
+   */
+  private static Object normalizeKey(Object key) {
+    if (key instanceof CharSequence) {
+      Object number = YailEquality.asNumber(key);
+      return number != null ? normalizeNumber((Numeric) number) : key.toString();
+    }
+    if (key instanceof Number) {
+      return normalizeNumber(Arithmetic.asNumeric(key));
+    }
+    return key;
+  }
+
+  private static Object normalizeNumber(Numeric number) {
+    if (number instanceof DFloNum) {
+      double value = number.doubleValue();
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return number;
+      }
+    }
+    Numeric exact = number.toExact();
+    if (exact instanceof IntNum) {
+      return exact;
+    }
+    if (exact instanceof RatNum) {
+      // IntFraction doesn't define hashCode.
+      return new FractionKey((RatNum) exact);
+    }
+    return number;
+  }
+
+  private static final class FractionKey {
+    private final RatNum fraction;
+
+    FractionKey(RatNum fraction) {
+      this.fraction = fraction;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof FractionKey && RatNum.equals(fraction, ((FractionKey) other).fraction);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * fraction.numerator().hashCode() + fraction.denominator().hashCode();
+    }
+  }
+}
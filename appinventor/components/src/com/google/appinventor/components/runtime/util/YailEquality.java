@@ -0,0 +1,289 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.kawa.functions.Arithmetic;
+import gnu.kawa.functions.IsEqual;
+import gnu.kawa.functions.NumberCompare;
+import gnu.kawa.lispexpr.LispReader;
+import gnu.lists.LList;
+import gnu.lists.Pair;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+import gnu.math.Numeric;
+import gnu.math.RatNum;
+import gnu.math.RealNum;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Implements the equality that the blocks use, yail-equal? in runtime.scm,
+ * for the runtime primitives that compare many values, such as is in list?
+ * and index in list.
+ *
+ * Two atoms are equal if they are equal? in Kawa, or if both are numbers,
+ * or strings that read as numbers, and they are = as numbers. So "1", 1 and
+ * 1.0 are all equal. Lists are equal if their items are equal.
+ *
+ * Strings are read as numbers through a small cache, because the same
+ * strings tend to be compared again and again, for example when a list of
+ * strings is searched repeatedly.
+ *
+ * The class also orders values for sorting, in an order that agrees with
+ * equality.
+ *
+ */
+public final class YailEquality {
+
+  // The cache holds strings up to this length. Longer strings are rarely numbers.
+  private static final int MAX_CACHED_STRING_LENGTH = 40;
+  private static final int MAX_CACHED_STRINGS = 1000;
+
+  // Stands for strings that don't read as numbers in the cache.
+  private static final Object NOT_A_NUMBER = new Object();
+
+  // Maps each recently read string to its number, or to NOT_A_NUMBER.
+  private static final Map<String, Object> numbersOfStrings =
+      new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+          return size() > MAX_CACHED_STRINGS;
+        }
+      };
+
+  // The kinds of values, in the order that compare sorts them.
+  private static final int NUMBER = 0;
+  private static final int TEXT = 1;
+  private static final int BOOLEAN = 2;
+  private static final int LIST = 3;
+  private static final int OTHER = 4;
+
+  /**
+   * Orders values with {@link #compare}.
+   */
+  public static final Comparator<Object> COMPARATOR = new Comparator<Object>() {
+    @Override
+    public int compare(Object x1, Object x2) {
+      return YailEquality.compare(x1, x2);
+    }
+  };
+
+  private YailEquality() {
+  }
+
+  /**
+   * Return whether x1 and x2 are equal in the sense of yail-equal?.
+   */
+  public static boolean equal(Object x1, Object x2) {
+    while (true) {
+      if (x1 == LList.Empty || x2 == LList.Empty) {
+        return x1 == x2;
+      }
+      boolean isPair1 = x1 instanceof Pair;
+      boolean isPair2 = x2 instanceof Pair;
+      if (!isPair1 && !isPair2) {
+        return atomicEqual(x1, x2);
+      }
+      if (!isPair1 || !isPair2) {
+        return false;
+      }
+      if (!equal(((Pair) x1).getCar(), ((Pair) x2).getCar())) {
+        return false;
+      }
+      x1 = ((Pair) x1).getCdr();
+      x2 = ((Pair) x2).getCdr();
+    }
+  }
+
+  /**
+   * Return whether the atoms x1 and x2 are equal in the sense of
+   * yail-atomic-equal?.
+   */
+  public static boolean atomicEqual(Object x1, Object x2) {
+    if (IsEqual.apply(x1, x2)) {
+      return true;
+    }
+    Object number1 = asNumber(x1);
+    if (number1 == null) {
+      return false;
+    }
+    Object number2 = asNumber(x2);
+    return number2 != null && numberEqual(number1, number2);
+  }
+
+  /**
+   * Return the 1-based index of the first of the items that is equal to the
+   * object, or 0 if there is none. The items are a Kawa list, such as the
+   * contents of a YailList.
+   */
+  public static int indexOf(Object object, Object items) {
+    // The object is read as a number only once, rather than once per item.
+    boolean isAtom = !(object instanceof Pair) && object != LList.Empty;
+    Object number = isAtom ? asNumber(object) : null;
+    int index = 1;
+    for (Object rest = items; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      Object item = ((Pair) rest).getCar();
+      if (!isAtom || item instanceof Pair || item == LList.Empty) {
+        if (equal(object, item)) {
+          return index;
+        }
+      } else if (IsEqual.apply(object, item)) {
+        return index;
+      } else if (number != null) {
+        Object itemNumber = asNumber(item);
+        if (itemNumber != null && numberEqual(number, itemNumber)) {
+          return index;
+        }
+      }
+      index++;
+    }
+    return 0;
+  }
+
+  /**
+   * Compare x1 and x2 for sorting. Numbers, and strings that read as
+   * numbers, come first in numeric order. Then come other strings in
+   * alphabetical order, then false and true, then lists, compared item by
+   * item, and then any other values in the order of their printed forms.
+   * Values that are equal compare as 0.
+   */
+  public static int compare(Object x1, Object x2) {
+    int kind1 = kindOf(x1);
+    int kind2 = kindOf(x2);
+    if (kind1 != kind2) {
+      return kind1 < kind2 ? -1 : 1;
+    }
+    switch (kind1) {
+      case NUMBER:
+        return compareNumbers(Arithmetic.asNumeric(asNumber(x1)),
+            Arithmetic.asNumeric(asNumber(x2)));
+      case TEXT:
+      case OTHER:
+        return x1.toString().compareTo(x2.toString());
+      case BOOLEAN:
+        return ((Boolean) x1).compareTo((Boolean) x2);
+      default:
+        return compareLists(x1, x2);
+    }
+  }
+
+  /**
+   * Return x if it is a number, the number that x reads as if it is a
+   * string, and null otherwise. This is coerce-to-number in runtime.scm,
+   * with null for *non-coercible-value*.
+   */
+  public static Object asNumber(Object x) {
+    if (x instanceof Number) {
+      return x;
+    }
+    if (!(x instanceof CharSequence)) {
+      return null;
+    }
+    String string = x.toString();
+    if (string.length() > MAX_CACHED_STRING_LENGTH) {
+      return readNumber(string);
+    }
+    synchronized (numbersOfStrings) {
+      Object number = numbersOfStrings.get(string);
+      if (number == null) {
+        number = readNumber(string);
+        numbersOfStrings.put(string, number == null ? NOT_A_NUMBER : number);
+      }
+      return number == NOT_A_NUMBER ? null : number;
+    }
+  }
+
+  private static int kindOf(Object x) {
+    if (x instanceof LList) {
+      return LIST;
+    }
+    if (x instanceof Boolean) {
+      return BOOLEAN;
+    }
+    Object number = asNumber(x);
+    if (number != null) {
+      // Complex numbers have no order, so they are sorted by their printed forms.
+      return Arithmetic.asNumeric(number) instanceof RealNum ? NUMBER : OTHER;
+    }
+    return x instanceof CharSequence ? TEXT : OTHER;
+  }
+
+  /*
+   * Compares the numbers exactly, as = does, so that an integer and a double
+   * that are not = never compare as 0.
+   */
+  private static int compareNumbers(Numeric number1, Numeric number2) {
+    if (number1 instanceof IntNum && number2 instanceof IntNum) {
+      return IntNum.compare((IntNum) number1, (IntNum) number2);
+    }
+    if (number1 instanceof DFloNum && number2 instanceof DFloNum) {
+      double double1 = number1.doubleValue();
+      double double2 = number2.doubleValue();
+      // Unlike Double.compare, this keeps -0.0 and 0.0 the same, as they are =.
+      return double1 == double2 ? 0 : Double.compare(double1, double2);
+    }
+    RatNum exact1 = toExact(number1);
+    RatNum exact2 = toExact(number2);
+    if (exact1 != null && exact2 != null) {
+      return RatNum.compare(exact1, exact2);
+    }
+    // An infinity or NaN is compared with 0 in place of an exact number, which
+    // orders it the same way. Double.compare puts NaN after every other number,
+    // which keeps the order total.
+    return Double.compare(exact1 == null ? number1.doubleValue() : 0,
+        exact2 == null ? number2.doubleValue() : 0);
+  }
+
+  /*
+   * Returns the exact value of the number, or null if it is infinite or NaN.
+   */
+  private static RatNum toExact(Numeric number) {
+    if (number instanceof RatNum) {
+      return (RatNum) number;
+    }
+    double value = number.doubleValue();
+    return Double.isNaN(value) || Double.isInfinite(value) ? null : DFloNum.toExact(value);
+  }
+
+  private static int compareLists(Object list1, Object list2) {
+    Object rest1 = list1 instanceof YailList ? ((YailList) list1).getCdr() : list1;
+    Object rest2 = list2 instanceof YailList ? ((YailList) list2).getCdr() : list2;
+    while (rest1 instanceof Pair && rest2 instanceof Pair) {
+      int comparison = compare(((Pair) rest1).getCar(), ((Pair) rest2).getCar());
+      if (comparison != 0) {
+        return comparison;
+      }
+      rest1 = ((Pair) rest1).getCdr();
+      rest2 = ((Pair) rest2).getCdr();
+    }
+    // The shorter list comes first.
+    return (rest1 instanceof Pair ? 1 : 0) - (rest2 instanceof Pair ? 1 : 0);
+  }
+
+  /*
+   * Returns whether the numbers are =, comparing integers and doubles directly.
+   */
+  private static boolean numberEqual(Object number1, Object number2) {
+    if (number1 instanceof IntNum && number2 instanceof IntNum) {
+      return IntNum.equals((IntNum) number1, (IntNum) number2);
+    }
+    if (number1 instanceof DFloNum && number2 instanceof DFloNum) {
+      return ((DFloNum) number1).doubleValue() == ((DFloNum) number2).doubleValue();
+    }
+    return NumberCompare.$Eq(number1, number2);
+  }
+
+  /*
+   * Returns the number that the string reads as, or null. This is
+   * padded-string->number in runtime.scm.
+   */
+  private static Object readNumber(String string) {
+    Object number = LispReader.parseNumber(string.trim(), 10);
+    return number instanceof Numeric ? number : null;
+  }
+}
@@ -14,6 +14,7 @@ import gnu.lists.Pair;
 import org.json.JSONException;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 
 import android.util.Log;
@@ -23,11 +24,29 @@ import android.util.Log;
  * by the Kawa framework. YailList is the main list primitive used
  * by App Inventor components.
  *
+ * The contents of a YailList are an ordinary Kawa list, so that Kawa list
+ * primitives keep working on them. In addition, a YailList keeps an array
+ * of the pairs of its contents, so that the length of the list, getting and
+ * setting an item by index, and adding an item at the end don't have to
+ * walk the list. The array is built when it is first needed and is kept up
+ * to date by the methods of this class. The pairs that a YailList creates
+ * drop the array of their list when their cdr is changed in some other way,
+ * such as a set-cdr! in Scheme, so that it is built again. The array is not
+ * kept for contents that contain pairs that were not created by the list,
+ * because changes to those pairs can't be noticed.
+ *
  */
 public class YailList extends Pair {
 
   private static final String LOG_TAG = "YailList";
 
+  // The pairs of the contents of this list, in order. Null if it has to be built.
+  // Only kept if all of the pairs are Cells of this list.
+  private transient Pair[] pairs;
+
+  // The number of items in this list, if pairs is not null.
+  private transient int size;
+
   // Component writers take note!
   // If you want to pass back a list to the blocks language, the
   // straightforward way to do this is simply to pass
@@ -60,24 +79,26 @@ public class YailList extends Pair {
    * Create a YailList from an array.
    */
   public static YailList makeList(Object[] objects) {
-    LList newCdr = Pair.makeList(objects, 0);
-    return new YailList(newCdr);
+    YailList list = new YailList();
+    list.pairs = new Pair[Math.max(objects.length, 4)];
+    for (Object object : objects) {
+      list.addObject(object);
+    }
+    return list;
   }
 
   /**
    * Create a YailList from a List.
    */
   public static YailList makeList(List vals) {
-    LList newCdr = Pair.makeList(vals);
-    return new YailList(newCdr);
+    return makeList(vals.toArray());
   }
 
   /**
    * Create a YailList from a Collection.
    */
   public static YailList makeList(Collection vals) {
-    LList newCdr = Pair.makeList(vals.toArray(), 0);
-    return new YailList(newCdr);
+    return makeList(vals.toArray());
   }
 
   /**
@@ -156,7 +177,8 @@ public class YailList extends Pair {
    */
   @Override
   public int size() {
-    return super.size() - 1;
+    getPairs();
+    return size;
   }
 
   /**
@@ -184,6 +206,247 @@ public class YailList extends Pair {
    * Return the Object at the given index.
    */
   public Object getObject(int index) {
-    return get(index + 1);
+    return getPair(index).getCar();
+  }
+
+  /**
+   * Return the element at the given position, where position 0 is the
+   * list header and position 1 is the first item.
+   */
+  @Override
+  public Object get(int index) {
+    return index == 0 ? car : getObject(index - 1);
+  }
+
+  /**
+   * Replace the Object at the given index.
+   */
+  public void setObject(int index, Object value) {
+    getPair(index).setCar(value);
+  }
+
+  /**
+   * Add the given Object at the end of this YailList.
+   */
+  public void addObject(Object value) {
+    insertObject(size(), value);
+  }
+
+  /**
+   * Add the items of the given YailList at the end of this YailList. The
+   * given list may be this YailList.
+   */
+  public void addObjects(YailList list) {
+    int count = list.size();
+    for (int i = 0; i < count; i++) {
+      addObject(list.getObject(i));
+    }
+  }
+
+  /**
+   * Insert the given Object at the given index, moving the items at and
+   * after the index up by one. The index may be the size of this YailList.
+   */
+  public void insertObject(int index, Object value) {
+    Pair[] pairs = getPairs();
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    if (size == pairs.length) {
+      Pair[] newPairs = new Pair[size * 2];
+      System.arraycopy(pairs, 0, newPairs, 0, size);
+      if (this.pairs == pairs) {
+        this.pairs = newPairs;
+      }
+      pairs = newPairs;
+    }
+    Pair pair = new Cell(this, value, index == size ? LList.Empty : pairs[index]);
+    if (index == 0) {
+      cdr = pair;
+    } else {
+      link(pairs[index - 1], pair);
+    }
+    System.arraycopy(pairs, index, pairs, index + 1, size - index);
+    pairs[index] = pair;
+    size++;
+  }
+
+  /**
+   * Remove the Object at the given index, moving the items after the index
+   * down by one.
+   */
+  public void removeObject(int index) {
+    Pair[] pairs = getPairs();
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    Pair pair = pairs[index];
+    if (index == 0) {
+      cdr = pair.getCdr();
+    } else {
+      link(pairs[index - 1], pair.getCdr());
+    }
+    System.arraycopy(pairs, index + 1, pairs, index, size - index - 1);
+    pairs[--size] = null;
+  }
+
+  /**
+   * Return a new YailList of the items of this YailList from fromIndex, inclusive,
+   * to toIndex, exclusive.
+   */
+  public YailList slice(int fromIndex, int toIndex) {
+    Pair[] pairs = getPairs();
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("From index: " + fromIndex + ", To index: " + toIndex
+          + ", Size: " + size);
+    }
+    YailList list = new YailList();
+    list.pairs = new Pair[Math.max(toIndex - fromIndex, 4)];
+    for (int i = fromIndex; i < toIndex; i++) {
+      list.addObject(pairs[i].getCar());
+    }
+    return list;
+  }
+
+  /**
+   * Return a new YailList of the items of this YailList, sorted with the given
+   * comparator. Items that compare as equal keep their order.
+   *
+   * The sort is a merge sort that only asks whether compare(x, y) is
+   * negative, that is, whether x has to come before y. So the comparator can
+   * be a user's less-than predicate, and the sort still finishes with some
+   * order of the items if the predicate is not consistent.
+   */
+  public YailList sorted(Comparator<Object> comparator) {
+    Object[] items = toArray();
+    mergeSort(items, items.clone(), 0, items.length, comparator);
+    return makeList(items);
+  }
+
+  /*
+   * Sorts items from index from, inclusive, to index to, exclusive, using
+   * the same range of buffer.
+   */
+  private static void mergeSort(Object[] items, Object[] buffer, int from, int to,
+      Comparator<Object> comparator) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    mergeSort(items, buffer, from, middle, comparator);
+    mergeSort(items, buffer, middle, to, comparator);
+    if (comparator.compare(items[middle], items[middle - 1]) >= 0) {
+      // The halves are already in order.
+      return;
+    }
+    System.arraycopy(items, from, buffer, from, to - from);
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+      // An item of the right half only goes first if it has to come before.
+      if (right == to
+          || (left < middle && comparator.compare(buffer[right], buffer[left]) >= 0)) {
+        items[i] = buffer[left++];
+      } else {
+        items[i] = buffer[right++];
+      }
+    }
+  }
+
+  @Override
+  public void setCdr(Object cdr) {
+    super.setCdr(cdr);
+    pairs = null;
+  }
+
+  @Override
+  public void setCdrBackdoor(Object cdr) {
+    super.setCdrBackdoor(cdr);
+    pairs = null;
+  }
+
+  private Pair getPair(int index) {
+    Pair[] pairs = getPairs();
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return pairs[index];
+  }
+
+  /*
+   * Sets the cdr of the given pair of this list without dropping the pairs
+   * array, which the caller keeps up to date.
+   */
+  private void link(Pair pair, Object next) {
+    if (pair instanceof Cell && ((Cell) pair).owner == this) {
+      ((Cell) pair).setCdrQuietly(next);
+    } else {
+      pair.setCdr(next);
+    }
+  }
+
+  /*
+   * Returns the pairs of the contents of this list, building them if they
+   * are missing. The pairs built for contents that contain other pairs than
+   * the Cells of this list are returned but not kept.
+   */
+  private Pair[] getPairs() {
+    if (pairs != null) {
+      return pairs;
+    }
+    int count = 0;
+    for (Object rest = cdr; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      count++;
+    }
+    Pair[] pairs = new Pair[Math.max(count, 4)];
+    boolean owned = true;
+    size = 0;
+    for (Object rest = cdr; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      Pair pair = (Pair) rest;
+      owned &= pair instanceof Cell && ((Cell) pair).owner == this;
+      pairs[size++] = pair;
+    }
+    if (owned) {
+      this.pairs = pairs;
+    }
+    return pairs;
+  }
+
+  /**
+   * A pair of the contents of a YailList, which drops the pairs array of
+   * the list when its cdr is changed.
+   */
+  private static class Cell extends Pair {
+    private transient YailList owner;
+
+    public Cell() {
+    }
+
+    Cell(YailList owner, Object car, Object cdr) {
+      super(car, cdr);
+      this.owner = owner;
+    }
+
+    @Override
+    public void setCdr(Object cdr) {
+      super.setCdr(cdr);
+      invalidate();
+    }
+
+    @Override
+    public void setCdrBackdoor(Object cdr) {
+      super.setCdrBackdoor(cdr);
+      invalidate();
+    }
+
+    private void setCdrQuietly(Object cdr) {
+      this.cdr = cdr;
+    }
+
+    private void invalidate() {
+      if (owner != null) {
+        owner.pairs = null;
+      }
+    }
   }
 }
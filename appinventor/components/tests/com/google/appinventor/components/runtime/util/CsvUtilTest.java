@@ -10,6 +10,8 @@ import com.google.appinventor.components.runtime.util.YailList;
 
 import junit.framework.TestCase;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 
 /**
@@ -171,4 +173,20 @@ public class CsvUtilTest extends TestCase {
     String expectedCSVString = "\"field0\",\"field1\",\"field2\"";
     assertEquals(expectedCSVString, CsvUtil.toCsvRow(YailList.makeList(row)));
   }
+
+  public void testCSVTableThroughReaderAndWriter() throws Exception {
+    // Larger than the parser's buffer, so that the table is read in several pieces.
+    YailList table = new YailList();
+    for (int i = 0; i < 2000; ++i) {
+      table.addObject(YailList.makeList(new Object[] { "row" + i, "say \"" + i + "\"", "" }));
+    }
+    StringWriter writer = new StringWriter();
+    CsvUtil.toCsvTable(table, writer);
+    assertEquals(CsvUtil.toCsvTable(table), writer.toString());
+    assertTrue(writer.toString().startsWith("\"row0\",\"say \"\"0\"\"\",\"\"\r\n"));
+
+    YailList readTable = CsvUtil.fromCsvTable(new StringReader(writer.toString()));
+    assertEquals(2000, readTable.size());
+    assertEquals(table.toString(), readTable.toString());
+  }
 }
@@ -6,6 +6,8 @@
 
 package com.google.appinventor.components.runtime.util;
 
+import gnu.math.IntNum;
+
 import junit.framework.TestCase;
 
 import org.json.JSONArray;
@@ -130,4 +132,15 @@ public class JsonUtilTest extends TestCase {
     Object shouldBeEmpty = JsonUtil.getObjectFromJson("");
     assertEquals("", JsonUtil.getObjectFromJson(""));
   }
+
+  public void testGetDictionaryFromJsonObject() throws JSONException {
+    YailDictionary dictionary = JsonUtil.getDictionaryFromJsonObject(
+        new JSONObject("{\"1\": [2, {\"c\": true}], \"b\": {\"x\": \"y\"}}"));
+    assertEquals(2, dictionary.size());
+    YailList list = (YailList) dictionary.get(1, null);
+    assertEquals(IntNum.make(2), list.getObject(0));
+    assertEquals(true, ((YailDictionary) list.getObject(1)).get("c", null));
+    assertEquals("y", ((YailDictionary) dictionary.get("b", null)).get("x", null));
+    assertEquals("{\"x\":\"y\"}", JsonUtil.getJsonRepresentation(dictionary.get("b", null)));
+  }
 }
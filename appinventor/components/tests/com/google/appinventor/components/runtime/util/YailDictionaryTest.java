@@ -0,0 +1,91 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import com.google.appinventor.components.runtime.errors.YailRuntimeError;
+
+import gnu.lists.FString;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+import gnu.math.RatNum;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests YailDictionary class.
+ *
+ */
+public class YailDictionaryTest extends TestCase {
+
+  public void testNumbersAndStringsAreTheSameKey() {
+    YailDictionary dictionary = new YailDictionary();
+    dictionary.put(IntNum.make(1), "one");
+    assertEquals("one", dictionary.get("1", null));
+    assertEquals("one", dictionary.get(" 1 ", null));
+    assertEquals("one", dictionary.get(new FString("1.0"), null));
+    assertEquals("one", dictionary.get(1, null));
+    assertEquals("one", dictionary.get(1.0, null));
+
+    dictionary.put(DFloNum.make(0.5), "half");
+    assertEquals("half", dictionary.get(RatNum.make(IntNum.make(1), IntNum.make(2)), null));
+    assertEquals("half", dictionary.get("1/2", null));
+    assertNull(dictionary.get(RatNum.make(IntNum.make(1), IntNum.make(3)), null));
+
+    dictionary.put(new FString("a"), "letter");
+    assertEquals("letter", dictionary.get("a", null));
+    assertEquals("default", dictionary.get("A", "default"));
+    assertEquals(3, dictionary.size());
+  }
+
+  public void testPutAndRemove() {
+    YailDictionary dictionary = new YailDictionary();
+    dictionary.put("1", "a");
+    dictionary.put(1, "b");
+    assertEquals(1, dictionary.size());
+    assertTrue(dictionary.containsKey(1.0));
+    dictionary.remove(IntNum.make(1));
+    assertFalse(dictionary.containsKey("1"));
+    assertEquals(0, dictionary.size());
+  }
+
+  public void testConversionToAndFromPairs() {
+    YailList pairs = YailList.makeList(new Object[] {
+        YailList.makeList(new Object[] { "b", 2 }),
+        YailList.makeList(new Object[] { "a", 1 }),
+        YailList.makeList(new Object[] { "b", 3 }) });
+    YailDictionary dictionary = YailDictionary.makeDictionary(pairs);
+    // The first pair with a key wins, as in lookup in pairs.
+    assertEquals(2, dictionary.get("b", null));
+    assertEquals("((b 2) (a 1))", dictionary.toYailList().toString());
+    assertEquals("{\"b\":2,\"a\":1}", dictionary.toJSONString());
+    // Entries keep the order and key they were first put with.
+    dictionary.put("b", 3);
+    assertEquals("((b 3) (a 1))", dictionary.toYailList().toString());
+  }
+
+  public void testMalformedPairs() {
+    try {
+      YailDictionary.makeDictionary(YailList.makeList(new Object[] { "a", "b" }));
+      fail();
+    } catch (YailRuntimeError e) {
+      assertEquals("Item 1 of the list, a, is not a pair of a key and a value", e.getMessage());
+    }
+    Object[] items = new Object[1000];
+    Arrays.fill(items, "x");
+    try {
+      YailDictionary.makeDictionary(YailList.makeList(new Object[] {
+          YailList.makeList(new Object[] { "a", 1 }),
+          YailList.makeList(items) }));
+      fail();
+    } catch (YailRuntimeError e) {
+      // Only the bad item is described, not the whole list.
+      assertEquals("Item 2 of the list, a list of 1000 items, is not a pair of a key and a value",
+          e.getMessage());
+    }
+  }
+}
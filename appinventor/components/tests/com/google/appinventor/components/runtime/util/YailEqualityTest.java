@@ -0,0 +1,89 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.lists.FString;
+import gnu.lists.LList;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+import gnu.math.RatNum;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests YailEquality class.
+ *
+ */
+public class YailEqualityTest extends TestCase {
+
+  public void testAtomicEqual() {
+    assertTrue(YailEquality.atomicEqual("1", IntNum.make(1)));
+    assertTrue(YailEquality.atomicEqual(IntNum.make(1), DFloNum.make(1.0)));
+    assertTrue(YailEquality.atomicEqual(" 1.0 ", new FString("1")));
+    assertTrue(YailEquality.atomicEqual("0", "00"));
+    assertTrue(YailEquality.atomicEqual("0.5", RatNum.make(IntNum.make(1), IntNum.make(2))));
+    assertTrue(YailEquality.atomicEqual(new FString("abc"), "abc"));
+    assertFalse(YailEquality.atomicEqual("abc", "ABC"));
+    assertFalse(YailEquality.atomicEqual("1.000001", 1));
+    assertFalse(YailEquality.atomicEqual(DFloNum.make(Double.NaN), "abc"));
+  }
+
+  public void testEqualLists() {
+    YailList list = YailList.makeList(new Object[] { "1", YailList.makeList(new Object[] { 2 }) });
+    assertTrue(YailEquality.equal(list,
+        YailList.makeList(new Object[] { 1.0, YailList.makeList(new Object[] { "2" }) })));
+    assertFalse(YailEquality.equal(list, YailList.makeList(new Object[] { "1", 2 })));
+    assertFalse(YailEquality.equal(list, YailList.makeList(new Object[] { "1" })));
+    assertTrue(YailEquality.equal(LList.Empty, LList.Empty));
+    assertFalse(YailEquality.equal(LList.Empty, ""));
+  }
+
+  public void testIndexOf() {
+    YailList list = YailList.makeList(new Object[] {
+        "a", IntNum.make(2), "3.0", YailList.makeList(new Object[] { "b" }), "a" });
+    assertEquals(1, YailEquality.indexOf("a", list.getCdr()));
+    assertEquals(2, YailEquality.indexOf("2", list.getCdr()));
+    assertEquals(3, YailEquality.indexOf(IntNum.make(3), list.getCdr()));
+    assertEquals(4, YailEquality.indexOf(YailList.makeList(new Object[] { "b" }), list.getCdr()));
+    assertEquals(0, YailEquality.indexOf("b", list.getCdr()));
+    assertEquals(0, YailEquality.indexOf(4, list.getCdr()));
+  }
+
+  public void testCompare() {
+    assertTrue(YailEquality.compare(IntNum.make(2), "10") < 0);
+    assertTrue(YailEquality.compare("10", "abc") < 0);
+    assertTrue(YailEquality.compare("abc", Boolean.FALSE) < 0);
+    assertTrue(YailEquality.compare(Boolean.FALSE, Boolean.TRUE) < 0);
+    assertTrue(YailEquality.compare(Boolean.TRUE, LList.Empty) < 0);
+    assertEquals(0, YailEquality.compare("1.0", IntNum.make(1)));
+    assertTrue(YailEquality.compare(RatNum.make(IntNum.make(1), IntNum.make(3)), 0.5) < 0);
+    assertTrue(YailEquality.compare(DFloNum.make(Double.NaN), 1) > 0);
+    assertEquals(0, YailEquality.compare(DFloNum.make(0.0), DFloNum.make(-0.0)));
+    assertTrue(YailEquality.compare(DFloNum.make(Double.POSITIVE_INFINITY),
+        IntNum.valueOf("1" + new String(new char[400]).replace('\0', '0'), 10)) > 0);
+    // 2^53 + 1 is not = to the double 2^53, so they don't compare as 0.
+    IntNum big = IntNum.valueOf("9007199254740993", 10);
+    DFloNum bigDouble = DFloNum.make(9007199254740992.0);
+    assertFalse(YailEquality.atomicEqual(big, bigDouble));
+    assertTrue(YailEquality.compare(big, bigDouble) > 0);
+    assertTrue(YailEquality.compare(bigDouble, big) < 0);
+    assertTrue(YailEquality.compare(YailList.makeList(new Object[] { 1 }),
+        YailList.makeList(new Object[] { 1, 0 })) < 0);
+    assertTrue(YailEquality.compare(YailList.makeList(new Object[] { 2 }),
+        YailList.makeList(new Object[] { 1, 0 })) > 0);
+  }
+
+  public void testAsNumber() {
+    assertEquals(IntNum.make(12), YailEquality.asNumber(" 12 "));
+    // Reading the same string again gives the same answer from the cache.
+    assertEquals(IntNum.make(12), YailEquality.asNumber(" 12 "));
+    assertNull(YailEquality.asNumber("twelve"));
+    assertNull(YailEquality.asNumber("twelve"));
+    assertNull(YailEquality.asNumber(Boolean.TRUE));
+    Integer number = 12;
+    assertSame(number, YailEquality.asNumber(number));
+  }
+}
@@ -7,11 +7,16 @@
 package com.google.appinventor.components.runtime.util;
 
 import gnu.lists.FString;
+import gnu.lists.LList;
+import gnu.lists.Pair;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Random;
 
 /**
  * Tests YailList class.
@@ -203,4 +208,120 @@ public class YailListTest extends TestCase {
       // this is the intended behavior
     }
   }
+
+  public void testChangingItems() {
+    YailList yailList = YailList.makeList(new Object[] {"b", "d"});
+    yailList.addObject("e");
+    yailList.insertObject(0, "a");
+    yailList.insertObject(2, "c");
+    assertEquals("(a b c d e)", yailList.toString());
+    assertEquals(5, yailList.size());
+    assertEquals("c", yailList.getObject(2));
+    assertEquals("e", yailList.get(5));
+
+    yailList.setObject(3, "D");
+    yailList.removeObject(0);
+    yailList.removeObject(3);
+    assertEquals("(b c D)", yailList.toString());
+    assertEquals(3, yailList.size());
+    try {
+      yailList.insertObject(4, "f");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+    try {
+      yailList.removeObject(3);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testContentsChangedAsKawaList() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b"});
+    assertEquals(2, yailList.size());
+    // Lists are also extended with set-cdr! on their last pair.
+    ((Pair) ((Pair) yailList.getCdr()).getCdr()).setCdr(new Pair("c", LList.Empty));
+    assertEquals(3, yailList.size());
+    assertEquals("c", yailList.getObject(2));
+    yailList.setCdr(LList.Empty);
+    assertEquals(0, yailList.size());
+    yailList.addObject("e");
+    assertEquals("(e)", yailList.toString());
+  }
+
+  public void testMiddlePairChangedAsKawaList() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c", "d"});
+    assertEquals(4, yailList.size());
+    // set-cdr! on the second pair drops "c" without changing the first or last pair.
+    Pair second = (Pair) ((Pair) yailList.getCdr()).getCdr();
+    second.setCdr(((Pair) second.getCdr()).getCdr());
+    assertEquals(3, yailList.size());
+    assertEquals("d", yailList.getObject(2));
+    // set-cdr! on the second pair cuts the list short.
+    second.setCdr(LList.Empty);
+    assertEquals(2, yailList.size());
+    yailList.addObject("e");
+    assertEquals("(a b e)", yailList.toString());
+  }
+
+  public void testContentsSharedWithKawaList() {
+    Pair last = new Pair("c", LList.Empty);
+    Pair middle = new Pair("b", last);
+    YailList yailList = YailList.makeList(new Object[] {"a"});
+    ((Pair) yailList.getCdr()).setCdr(middle);
+    assertEquals(3, yailList.size());
+    // Pairs that the list did not create can be changed without it noticing.
+    middle.setCdr(LList.Empty);
+    assertEquals(2, yailList.size());
+    yailList.removeObject(1);
+    assertEquals("(a)", yailList.toString());
+  }
+
+  public void testSliceAndSorted() {
+    YailList yailList = YailList.makeList(new Object[] {"c", "a", "d", "b"});
+    assertEquals("(a d)", yailList.slice(1, 3).toString());
+    assertEquals(0, yailList.slice(4, 4).size());
+    try {
+      yailList.slice(2, 5);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+    assertEquals("(a b c d)", yailList.sorted(YailEquality.COMPARATOR).toString());
+    // The list itself is not changed.
+    assertEquals("(c a d b)", yailList.toString());
+  }
+
+  public void testSortedIsStable() {
+    YailList yailList = YailList.makeList(new Object[] {"b2", "a1", "b1", "a2", "c1"});
+    Comparator<Object> byLetter = new Comparator<Object>() {
+      @Override
+      public int compare(Object x, Object y) {
+        return x.toString().charAt(0) - y.toString().charAt(0);
+      }
+    };
+    assertEquals("(a1 a2 b2 b1 c1)", yailList.sorted(byLetter).toString());
+  }
+
+  public void testSortedWithInconsistentComparator() {
+    Object[] items = new Object[200];
+    final Random random = new Random(1);
+    for (int i = 0; i < items.length; i++) {
+      items[i] = random.nextInt(1000);
+    }
+    YailList yailList = YailList.makeList(items);
+    // A user's less-than predicate can say anything.
+    Comparator<Object> inconsistent = new Comparator<Object>() {
+      @Override
+      public int compare(Object x, Object y) {
+        return random.nextBoolean() ? -1 : 0;
+      }
+    };
+    YailList sorted = yailList.sorted(inconsistent);
+    assertEquals(items.length, sorted.size());
+    assertEquals(new HashSet<Object>(Arrays.asList(items)),
+        new HashSet<Object>(Arrays.asList(sorted.toArray())));
+  }
 }